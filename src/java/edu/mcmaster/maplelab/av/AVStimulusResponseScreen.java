@@ -99,6 +99,9 @@ public abstract class AVStimulusResponseScreen<R, T extends AVTrial<R>, L extend
 		_scheduler = new StimulusScheduler();
 		_scheduler.setAnimationFrameAdvance(_session.getAnimationFrameAdvance(), TimeUnit.MILLISECONDS);
 		_scheduler.setAudioCallAhead(_session.getAudioCallAhead(), TimeUnit.MILLISECONDS);
+		_scheduler.setLineAudio(_session.useLineAudio());
+		_scheduler.setTimingMode(_session.getTimingMode(), 
+				_session.getTimingSpinMarginMicros(), TimeUnit.MICROSECONDS);
 		_scheduler.setRenderCallAhead(_session.getRenderCallAhead(), TimeUnit.MILLISECONDS);
 		_vidPanel = new VideoPanel();
 		_keyListener = new ResponseKeyListener();
@@ -226,6 +229,8 @@ public abstract class AVStimulusResponseScreen<R, T extends AVTrial<R>, L extend
     	recordResponse();
     	// perform trial, ending experiment if needed
         if (!doTrial()) {
+        	_scheduler.shutdown();
+        	
             // Hack that needs to be cleaned up with better abstraction.
             // If this was the last trial, we need to include some time
             // for StatusUpdaterRunnable to finish.
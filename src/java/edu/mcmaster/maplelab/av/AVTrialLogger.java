@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import edu.mcmaster.maplelab.av.datamodel.AVSession;
+import edu.mcmaster.maplelab.av.datamodel.AVTrial;
+import edu.mcmaster.maplelab.common.datamodel.FileTrialLogger;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.IntColumn;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.LongColumn;
+
+/**
+ * Trial logger with columns common to audio-visual experiments.
+ *
+ * @author bguseman
+ *
+ */
+public abstract class AVTrialLogger<S extends AVSession<?, T, ?>, T extends AVTrial<?>>
+		extends FileTrialLogger<S, T> {
+
+	public AVTrialLogger(S session, File workingDirectory) throws IOException {
+		super(session, workingDirectory);
+	}
+
+	/**
+	 * Add columns for the scheduling accuracy of the trial's last playback,
+	 * in microseconds, and its missed frames.
+	 */
+	protected void addSchedulingColumns(RowSchema<T> schema, Enum<?> p50Key, Enum<?> p99Key,
+			Enum<?> maxKey, Enum<?> missedKey) {
+		schema.add(new LatenessColumn(p50Key, 50));
+		schema.add(new LatenessColumn(p99Key, 99));
+		schema.add(new LatenessColumn(maxKey, -1));
+		schema.add(new IntColumn<AVTrial<?>>(missedKey) {
+			@Override
+			protected boolean has(AVTrial<?> trial) {
+				return trial.getLastSchedulingLateness() != null;
+			}
+			@Override
+			protected int get(AVTrial<?> trial) {
+				return trial.getLastMissedFrames();
+			}
+		});
+	}
+
+	/**
+	 * Column of a scheduling lateness percentile, or the maximum.
+	 */
+	private static class LatenessColumn extends LongColumn<AVTrial<?>> {
+		private final double _percentile;
+
+		/**
+		 * @param percentile percentile, or negative for the maximum
+		 */
+		LatenessColumn(Enum<?> key, double percentile) {
+			super(key);
+			_percentile = percentile;
+		}
+
+		@Override
+		protected boolean has(AVTrial<?> trial) {
+			return trial.getLastSchedulingLateness() != null;
+		}
+
+		@Override
+		protected long get(AVTrial<?> trial) {
+			LatenessHistogram lateness = trial.getLastSchedulingLateness();
+			long nanos = _percentile < 0 ? lateness.getMaxNanos() :
+				lateness.getPercentileNanos(_percentile);
+			return TimeUnit.NANOSECONDS.toMicros(nanos);
+		}
+	}
+}
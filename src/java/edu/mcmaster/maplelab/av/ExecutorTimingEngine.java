@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ * 
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing engine backed by a {@link ScheduledExecutorService}.  Uses no 
+ * CPU while waiting, but wake up is subject to the operating system's 
+ * timer resolution, which may be a millisecond or more.
+ * 
+ * @author bguseman
+ *
+ */
+class ExecutorTimingEngine implements TimingEngine {
+	private final ScheduledThreadPoolExecutor _exec;
+	private final List<Future<?>> _pending = new ArrayList<Future<?>>();
+	
+	public ExecutorTimingEngine(int threads) {
+		_exec = new ScheduledThreadPoolExecutor(threads, 
+				new Scheduler.PriorityThreadFactory("executor-timer", Thread.MAX_PRIORITY - 1));
+		_exec.prestartAllCoreThreads();
+	}
+
+	@Override
+	public void schedule(Runnable task, long deadlineNanos) {
+		track(_exec.schedule(task, deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS));
+	}
+
+	@Override
+	public void scheduleAtFixedRate(Runnable task, long firstDeadlineNanos, long periodNanos) {
+		track(_exec.scheduleAtFixedRate(task, firstDeadlineNanos - System.nanoTime(), 
+				periodNanos, TimeUnit.NANOSECONDS));
+	}
+	
+	private synchronized void track(Future<?> f) {
+		// drop one-shot tasks that have already run
+		for (Iterator<Future<?>> it = _pending.iterator(); it.hasNext();) {
+			if (it.next().isDone()) it.remove();
+		}
+		_pending.add(f);
+	}
+	
+	@Override
+	public synchronized void cancelAll() {
+		for (Future<?> f : _pending) {
+			f.cancel(false);
+		}
+		_pending.clear();
+		_exec.purge();
+	}
+
+	@Override
+	public void shutdown() {
+		_exec.shutdownNow();
+	}
+}
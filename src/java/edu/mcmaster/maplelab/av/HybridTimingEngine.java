@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * High precision timing engine.  A single timer thread keeps all pending
+ * tasks in deadline order and parks until a short margin before the next
+ * deadline.  The task is then handed off to a waiting dispatch thread,
+ * which spins the rest of the way and runs it, so handoff latency and slow
+ * or blocking tasks never delay the timer.
+ *
+ * Spinning is limited to the margin before each deadline, so accuracy is
+ * close to that of a dedicated busy wait without tying up a core per
+ * scheduled item.
+ *
+ * A periodic task is only queued for its next deadline once its current
+ * run completes, so runs never overlap; after an overrun, late runs follow
+ * back to back, as with {@link java.util.concurrent.ScheduledExecutorService#scheduleAtFixedRate}.
+ *
+ * @author bguseman
+ *
+ */
+class HybridTimingEngine implements TimingEngine, Runnable {
+	/** Default spin margin; comfortably above typical park overshoot. */
+	static final long DEFAULT_SPIN_MARGIN_NANOS = TimeUnit.MICROSECONDS.toNanos(2000);
+
+	private final long _spinMarginNanos;
+	private final PriorityQueue<Task> _queue = new PriorityQueue<Task>();
+	private final ThreadPoolExecutor _dispatch;
+	private final Thread _timer;
+	private volatile boolean _shutdown = false;
+	private long _sequence = 0;
+	/** Incremented on cancellation, so periodic tasks still running aren't requeued. */
+	private int _generation = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param threads number of dispatch threads kept ready; more are
+	 *        created if needed
+	 * @param spinMarginNanos time before each deadline to stop parking
+	 *        and start spinning
+	 */
+	public HybridTimingEngine(int threads, long spinMarginNanos) {
+		_spinMarginNanos = Math.max(0, spinMarginNanos);
+
+		_dispatch = new ThreadPoolExecutor(threads, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), 
+				new Scheduler.PriorityThreadFactory("hybrid-dispatch", Thread.MAX_PRIORITY - 1));
+		// avoid thread creation at the first deadline
+		_dispatch.prestartAllCoreThreads();
+
+		_timer = new Thread(this, "hybrid-timer");
+		_timer.setDaemon(true);
+		_timer.setPriority(Thread.MAX_PRIORITY);
+		_timer.start();
+	}
+
+	@Override
+	public void schedule(Runnable task, long deadlineNanos) {
+		add(new Task(task, deadlineNanos, 0));
+	}
+
+	@Override
+	public void scheduleAtFixedRate(Runnable task, long firstDeadlineNanos, long periodNanos) {
+		add(new Task(task, firstDeadlineNanos, periodNanos));
+	}
+
+	private void add(Task t) {
+		if (_shutdown) return;
+		synchronized (_queue) {
+			t._generation = _generation;
+			enqueue(t);
+		}
+		// the permit is kept if the timer isn't parked yet, so this can't be missed
+		LockSupport.unpark(_timer);
+	}
+
+	/**
+	 * Queue the given task.  Must hold the queue lock.
+	 */
+	private void enqueue(Task t) {
+		t._sequence = _sequence++;
+		_queue.add(t);
+	}
+
+	/**
+	 * Queue a periodic task for its next deadline, once a run has completed,
+	 * unless cancelled meanwhile.
+	 */
+	private void requeue(Task t) {
+		if (_shutdown) return;
+		synchronized (_queue) {
+			if (t._generation != _generation) return;
+			t._deadline += t._period;
+			enqueue(t);
+		}
+		LockSupport.unpark(_timer);
+	}
+
+	@Override
+	public void cancelAll() {
+		synchronized (_queue) {
+			_queue.clear();
+			_generation++;
+		}
+		LockSupport.unpark(_timer);
+	}
+
+	@Override
+	public void shutdown() {
+		_shutdown = true;
+		synchronized (_queue) {
+			_queue.clear();
+		}
+		LockSupport.unpark(_timer);
+		_dispatch.shutdownNow();
+	}
+
+	@Override
+	public void run() {
+		while (!_shutdown) {
+			Task next;
+			synchronized (_queue) {
+				next = _queue.peek();
+			}
+			if (next == null) {
+				LockSupport.park(this);
+				continue;
+			}
+
+			long remaining = next._deadline - System.nanoTime();
+			if (remaining > _spinMarginNanos) {
+				// may wake early, or be woken by a new task; either way, recheck
+				LockSupport.parkNanos(this, remaining - _spinMarginNanos);
+				continue;
+			}
+
+			synchronized (_queue) {
+				if (_queue.peek() != next) continue;
+				_queue.poll();
+			}
+			dispatch(next);
+		}
+	}
+
+	private void dispatch(final Task t) {
+		final long deadline = t._deadline;
+		try {
+			_dispatch.execute(new Runnable() {
+				@Override
+				public void run() {
+					while (System.nanoTime() < deadline) {
+						if (_shutdown) return;
+					}
+					t._task.run();
+					// like the executor, a task that throws isn't run again
+					if (t._period > 0) requeue(t);
+				}
+			});
+		}
+		catch (RuntimeException ex) {
+			// only if shut down while dispatching
+		}
+	}
+
+	/**
+	 * Pending task, ordered by deadline, then by order scheduled.
+	 */
+	private static class Task implements Comparable<Task> {
+		private final Runnable _task;
+		private final long _period;
+		private long _deadline;
+		private long _sequence;
+		private int _generation;
+
+		public Task(Runnable task, long deadline, long period) {
+			_task = task;
+			_deadline = deadline;
+			_period = period;
+		}
+
+		@Override
+		public int compareTo(Task o) {
+			// compare by difference, since nanoTime values may wrap
+			long diff = _deadline - o._deadline;
+			if (diff != 0) return diff < 0 ? -1 : 1;
+			return _sequence < o._sequence ? -1 : (_sequence > o._sequence ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of how late scheduled callbacks ran.  Values are counted in
+ * fixed log-linear buckets (16 per power of two, so within about 6%),
+ * covering up to about 18 minutes, so recording never allocates and
+ * is safe to do on timing critical threads.  Early callbacks count as
+ * zero lateness.
+ *
+ * Recording takes no lock, so it never waits on a thread reading the
+ * histogram.  Reads are consistent with themselves but may miss values
+ * recorded while they run.
+ *
+ * @author bguseman
+ *
+ */
+public final class LatenessHistogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong _count = new AtomicLong();
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * Record a single lateness value.
+	 */
+	public void record(long latenessNanos) {
+		long v = Math.min(MAX_VALUE, Math.max(0, latenessNanos));
+		_counts.incrementAndGet(indexOf(v));
+		_count.incrementAndGet();
+		raiseMax(v);
+	}
+
+	private void raiseMax(long v) {
+		long max = _max.get();
+		while (v > max && !_max.compareAndSet(max, v)) {
+			max = _max.get();
+		}
+	}
+
+	/**
+	 * Get the number of values recorded.
+	 */
+	public long getCount() {
+		return _count.get();
+	}
+
+	/**
+	 * Get the largest value recorded, or 0 if none.
+	 */
+	public long getMaxNanos() {
+		return _max.get();
+	}
+
+	/**
+	 * Get the value below which the given percentage of values fall, to
+	 * bucket precision.
+	 *
+	 * @param percentile 0 - 100
+	 * @return the value, or 0 if none recorded
+	 */
+	public long getPercentileNanos(double percentile) {
+		long[] counts = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = _counts.get(i);
+			total += counts[i];
+		}
+		if (total == 0) return 0;
+
+		long max = _max.get();
+		long target = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total);
+		target = Math.max(1, target);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts[i];
+			if (seen >= target) return Math.min(max, upperBound(i));
+		}
+		return max;
+	}
+
+	/**
+	 * Add all values recorded by the given histogram to this one.
+	 */
+	public void add(LatenessHistogram other) {
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			long n = other._counts.get(i);
+			if (n == 0) continue;
+			_counts.addAndGet(i, n);
+			total += n;
+		}
+		_count.addAndGet(total);
+		raiseMax(other._max.get());
+	}
+
+	/**
+	 * Get a snapshot of this histogram.  Its count is that of the buckets
+	 * copied, so it agrees with its percentiles.
+	 */
+	public LatenessHistogram copy() {
+		LatenessHistogram retval = new LatenessHistogram();
+		retval.add(this);
+		return retval;
+	}
+
+	/**
+	 * Discard all recorded values.  Values recorded meanwhile may be
+	 * partly kept.
+	 */
+	public void reset() {
+		_count.set(0);
+		_max.set(0);
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			_counts.set(i, 0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d p50=%dus p99=%dus max=%dus", getCount(),
+				TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(50)),
+				TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(99)),
+				TimeUnit.NANOSECONDS.toMicros(getMaxNanos()));
+	}
+
+	private static int indexOf(long v) {
+		if (v < SUB_COUNT) return (int) v;
+		int exp = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_COUNT) return index;
+		int exp = index / SUB_COUNT + SUB_BITS - 1;
+		int sub = index % SUB_COUNT;
+		int shift = exp - SUB_BITS;
+		return ((long) (SUB_COUNT + sub) << shift) + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import javax.media.opengl.GLAutoDrawable;
+
+import edu.mcmaster.maplelab.common.LogContext;
+
+/**
+ * Measured refresh period and phase of one display.  The period is found by
+ * timing a run of synchronized buffer swaps, fitted to a regular vsync grid
+ * so that missed refreshes and scheduling hiccups don't skew it, and is
+ * cached per display (identity and mode) across sessions.  A fitted period
+ * more than {@link #NOMINAL_TOLERANCE} from the period the display reports
+ * (say, twice it, when most swaps miss a refresh) is rejected rather than
+ * used or cached.
+ *
+ * Once calibrated, a single swap per trial is enough to keep the phase
+ * current and to check the period: if swaps stop landing on the predicted
+ * grid for several trials in a row, the calibration is marked stale.  The
+ * period in use is kept until it is refitted from the swaps of a later
+ * animation run (see {@link #refit(long[])}), so no trial waits on a full
+ * calibration once one has been made.
+ *
+ * @author bguseman
+ *
+ */
+public class RefreshCalibration {
+	/** Period assumed when the display doesn't report its refresh rate. */
+	public static final long DEFAULT_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1) / 60;
+	/** Swaps timed for a full calibration. */
+	static final int SAMPLES = 100;
+	/** Fraction of a period a sample may be off the grid before it is an outlier. */
+	private static final double OUTLIER_FRACTION = 0.25;
+	/** Fraction of a period a trial swap may be off the grid before it counts as drift. */
+	private static final double DRIFT_FRACTION = 0.125;
+	/** Consecutive off-grid trial swaps that mark the calibration stale. */
+	/** Fraction of the reported period a fitted period may differ from it. */
+	static final double NOMINAL_TOLERANCE = 0.05;
+	private static final int DRIFT_STRIKES = 3;
+	private static final String PREFS_NODE = "refreshCalibration";
+
+	private final String _displayKey;
+	private final long _nominal;
+	/** Whether the display reported its refresh rate, so fits can be checked against it. */
+	private final boolean _nominalReported;
+	private long _period = 0;
+	private long _phase = 0;
+	private boolean _phaseKnown = false;
+	private int _strikes = 0;
+	private boolean _stale = false;
+
+	/**
+	 * Constructor.  Loads any cached calibration for the given display.
+	 *
+	 * @param device display, or null for the default screen
+	 */
+	public RefreshCalibration(GraphicsDevice device) {
+		if (device == null) device = defaultDevice();
+		_displayKey = displayKey(device);
+		_nominal = getNominalPeriodNanos(device);
+		_nominalReported = device.getDisplayMode().getRefreshRate() !=
+				DisplayMode.REFRESH_RATE_UNKNOWN;
+		long cached = prefs().getLong(_displayKey, 0);
+		if (cached > 0 && isPlausible(cached)) {
+			_period = cached;
+			LogContext.getLogger().fine(String.format(
+					"Cached refresh period for %s: %d ns", _displayKey, _period));
+		}
+		else if (cached > 0) {
+			LogContext.getLogger().warning(String.format(
+					"Discarding cached refresh period for %s: %d ns", _displayKey, cached));
+			prefs().remove(_displayKey);
+		}
+	}
+
+	/**
+	 * Get the refresh period the given display reports, or
+	 * {@link #DEFAULT_PERIOD_NANOS} if unknown.
+	 */
+	public static long getNominalPeriodNanos(GraphicsDevice device) {
+		int refresh = device != null ? device.getDisplayMode().getRefreshRate() :
+				DisplayMode.REFRESH_RATE_UNKNOWN;
+		if (refresh == DisplayMode.REFRESH_RATE_UNKNOWN) return DEFAULT_PERIOD_NANOS;
+		return (long) (1000000000.0d / (double) refresh);
+	}
+
+	/**
+	 * Get the key calibrations for the given display are stored under.  A
+	 * change in resolution or refresh rate gives a different key.
+	 */
+	public static String displayKey(GraphicsDevice device) {
+		DisplayMode mode = device.getDisplayMode();
+		String retval = String.format("%s@%dx%d@%d", device.getIDstring(),
+				mode.getWidth(), mode.getHeight(), mode.getRefreshRate());
+		if (retval.length() > Preferences.MAX_KEY_LENGTH) {
+			retval = retval.substring(retval.length() - Preferences.MAX_KEY_LENGTH);
+		}
+		return retval;
+	}
+
+	/**
+	 * Get the default screen device.
+	 */
+	public static GraphicsDevice defaultDevice() {
+		return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice();
+	}
+
+	/**
+	 * Get the key for the display this calibration is for.
+	 */
+	public String getDisplayKey() {
+		return _displayKey;
+	}
+
+	/**
+	 * Determine if a usable measured period is available.
+	 */
+	public synchronized boolean isCalibrated() {
+		return _period > 0;
+	}
+
+	/**
+	 * Determine if drift has been detected since the period was last
+	 * measured, so that it should be refitted.
+	 */
+	public synchronized boolean isStale() {
+		return _stale;
+	}
+
+	/**
+	 * Get the measured refresh period, or the nominal period if not calibrated.
+	 */
+	public synchronized long getPeriodNanos() {
+		return _period > 0 ? _period : _nominal;
+	}
+
+	/**
+	 * Get the {@link System#nanoTime()} of a recent refresh, or null if no
+	 * swap has been timed yet.
+	 */
+	public synchronized Long getPhaseNanos() {
+		return _phaseKnown ? Long.valueOf(_phase) : null;
+	}
+
+	/**
+	 * Swap the given drawable's buffers and wait for the swap to complete,
+	 * which with a swap interval of 1 is the next refresh.
+	 *
+	 * @return the time the swap completed
+	 */
+	public static long swap(GLAutoDrawable drawable) {
+		drawable.swapBuffers();
+		drawable.getGL().glFinish();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Measure the refresh period with a run of swaps on the given drawable,
+	 * which must be current.  The result is cached for the display.
+	 *
+	 * @return the period, which is the nominal period if measurement failed
+	 */
+	public long calibrate(GLAutoDrawable drawable) {
+		drawable.getGL().setSwapInterval(1);
+		long[] stamps = new long[SAMPLES + 1];
+		for (int i = 0; i < stamps.length; i++) {
+			stamps[i] = swap(drawable);
+		}
+		return calibrate(stamps);
+	}
+
+	/**
+	 * Calibrate from the given swap completion times.
+	 */
+	synchronized long calibrate(long[] stamps) {
+		_strikes = 0;
+		_stale = false;
+		long[] fit = fit(stamps, _nominal);
+		if (fit == null || !isPlausible(fit[0])) {
+			LogContext.getLogger().warning(String.format("Refresh calibration for %s failed%s; " +
+					"using nominal period of %d ns", _displayKey,
+					fit != null ? " (fitted " + fit[0] + " ns)" : "", _nominal));
+			_period = 0;
+			return _nominal;
+		}
+		store(fit, stamps.length);
+		return _period;
+	}
+
+	/**
+	 * Refit a stale calibration from the given consecutive swap completion
+	 * times, such as those of an animation run.  If they can't be fitted,
+	 * the current period is kept and the calibration stays stale.
+	 *
+	 * @return the period now in use
+	 */
+	public synchronized long refit(long[] stamps) {
+		if (!_stale) return getPeriodNanos();
+		long[] fit = fit(stamps, _nominal);
+		if (fit == null || !isPlausible(fit[0])) {
+			LogContext.getLogger().fine(String.format("Refresh refit for %s failed " +
+					"(%d samples%s); keeping %d ns", _displayKey, stamps.length,
+					fit != null ? ", fitted " + fit[0] + " ns" : "", getPeriodNanos()));
+			return getPeriodNanos();
+		}
+		_strikes = 0;
+		_stale = false;
+		store(fit, stamps.length);
+		return _period;
+	}
+
+	/**
+	 * Determine if the given fitted period is close enough to the reported
+	 * period to be believed.  Anything goes if the display doesn't report
+	 * its refresh rate.
+	 */
+	private boolean isPlausible(long period) {
+		return !_nominalReported ||
+				Math.abs(period - _nominal) <= _nominal * NOMINAL_TOLERANCE;
+	}
+
+	/**
+	 * Take the given fit as the calibration, and cache the period.
+	 */
+	private void store(long[] fit, int samples) {
+		_period = fit[0];
+		_phase = fit[1];
+		_phaseKnown = true;
+		LogContext.getLogger().info(String.format(
+				"Refresh period for %s: %d ns (%d of %d samples used)",
+				_displayKey, _period, fit[2], samples));
+
+		Preferences prefs = prefs();
+		prefs.putLong(_displayKey, _period);
+		try {
+			prefs.flush();
+		}
+		catch (BackingStoreException e) {
+			LogContext.getLogger().log(Level.WARNING, "Couldn't save refresh calibration.", e);
+		}
+	}
+
+	/**
+	 * Check a swap completion time against the predicted refresh grid, and
+	 * take it as the new phase.
+	 *
+	 * @return true if the calibration has drifted and should be refitted
+	 */
+	public synchronized boolean check(long swapNanos) {
+		if (_period > 0 && _phaseKnown) {
+			long offset = offGrid(swapNanos - _phase, _period);
+			if (Math.abs(offset) > _period * DRIFT_FRACTION) {
+				_strikes++;
+				LogContext.getLogger().fine(String.format(
+						"Swap %d ns off predicted refresh (%d)", offset, _strikes));
+			}
+			else {
+				_strikes = 0;
+			}
+		}
+		_phase = swapNanos;
+		_phaseKnown = true;
+
+		if (_strikes >= DRIFT_STRIKES && !_stale) {
+			LogContext.getLogger().info(String.format(
+					"Refresh period for %s has drifted; refitting from the next run", _displayKey));
+			_stale = true;
+		}
+		return _stale;
+	}
+
+	/**
+	 * Discard the calibration, including the cached value.
+	 */
+	public synchronized void clear() {
+		_period = 0;
+		_strikes = 0;
+		_stale = false;
+		prefs().remove(_displayKey);
+	}
+
+	/**
+	 * Fit swap completion times to a regular grid by least squares.  Each
+	 * interval is assigned a whole number of refreshes relative to the
+	 * median interval, so missed refreshes keep their place on the grid.
+	 * A median near a multiple of the nominal period (as when most swaps
+	 * miss a refresh) is divided down to a single refresh first;
+	 * samples too far between grid lines are discarded, as are samples far
+	 * from the first fit.
+	 *
+	 * @return period, phase (time of the last grid line used) and number
+	 *         of samples used; or null if the samples are unusable
+	 */
+	static long[] fit(long[] stamps, long nominal) {
+		if (stamps.length < 3) return null;
+
+		long[] intervals = new long[stamps.length - 1];
+		for (int i = 0; i < intervals.length; i++) {
+			intervals[i] = stamps[i + 1] - stamps[i];
+		}
+		long[] sorted = intervals.clone();
+		Arrays.sort(sorted);
+		long median = sorted[sorted.length / 2];
+		// far too short to be synchronized to the display
+		if (median < nominal / 20) return null;
+		long unit = median / Math.max(1, Math.round((double) median / nominal));
+
+		long[] index = new long[stamps.length];
+		boolean[] use = new boolean[stamps.length];
+		use[0] = true;
+		for (int i = 0; i < intervals.length; i++) {
+			double refreshes = (double) intervals[i] / unit;
+			long whole = Math.max(1, Math.round(refreshes));
+			index[i + 1] = index[i] + whole;
+			use[i + 1] = Math.abs(refreshes - whole) <= OUTLIER_FRACTION;
+		}
+
+		double[] line = leastSquares(stamps, index, use);
+		if (line == null) return null;
+
+		// second pass, without samples far from the first fit
+		double limit = line[0] * OUTLIER_FRACTION;
+		for (int i = 0; i < stamps.length; i++) {
+			double predicted = line[1] + line[0] * index[i];
+			if (Math.abs((stamps[i] - stamps[0]) - predicted) > limit) use[i] = false;
+		}
+		line = leastSquares(stamps, index, use);
+		if (line == null) return null;
+
+		int used = 0;
+		int last = 0;
+		for (int i = 0; i < stamps.length; i++) {
+			if (use[i]) {
+				used++;
+				last = i;
+			}
+		}
+		if (used < stamps.length / 2) return null;
+
+		long period = Math.round(line[0]);
+		long phase = stamps[0] + Math.round(line[1] + line[0] * index[last]);
+		return new long[] {period, phase, used};
+	}
+
+	/**
+	 * Fit time against grid index for the samples in use.
+	 *
+	 * @return slope and intercept (relative to the first stamp), or null
+	 *         if too few samples
+	 */
+	private static double[] leastSquares(long[] stamps, long[] index, boolean[] use) {
+		int n = 0;
+		double sx = 0, sy = 0, sxx = 0, sxy = 0;
+		for (int i = 0; i < stamps.length; i++) {
+			if (!use[i]) continue;
+			double x = index[i];
+			double y = stamps[i] - stamps[0];
+			n++;
+			sx += x;
+			sy += y;
+			sxx += x * x;
+			sxy += x * y;
+		}
+		double denom = n * sxx - sx * sx;
+		if (n < 2 || denom == 0) return null;
+		double slope = (n * sxy - sx * sy) / denom;
+		return new double[] {slope, (sy - slope * sx) / n};
+	}
+
+	/**
+	 * Get the signed distance of the given time from the nearest grid line.
+	 */
+	static long offGrid(long time, long period) {
+		long offset = time % period;
+		if (offset < 0) offset += period;
+		return offset > period / 2 ? offset - period : offset;
+	}
+
+	private static Preferences prefs() {
+		return Preferences.userNodeForPackage(RefreshCalibration.class).node(PREFS_NODE);
+	}
+}
@@ -7,7 +7,9 @@
  */
 package edu.mcmaster.maplelab.av;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
@@ -15,6 +17,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A class for scheduling events to occur at specific delays relative to an initial
@@ -23,19 +26,41 @@ import java.util.concurrent.TimeUnit;
  * of this, overhead occurs up-front as much as possible, and the actual start time
  * is not initially known.
  * 
+ * Threads are created once, by {@link #prepare()} or the first start, and
+ * reused for every run.  Each run is an epoch: stopping cancels everything 
+ * scheduled for it, and anything already under way when it is stopped is 
+ * discarded rather than run late.  Call {@link #shutdown()} once the 
+ * scheduler is no longer needed.
+ * 
  * @author bguseman
  *
  */
 public class Scheduler {
-	private long _startTime;
+	/**
+	 * Available timing engines.
+	 */
+	public enum TimingMode {
+		/** Thread pool timers; low CPU use, millisecond scale jitter. */
+		EXECUTOR,
+		/** Park, then spin to each deadline on one timer thread; sub-millisecond jitter. */
+		HYBRID
+	}
+	
+	private volatile long _startTime;
 	private long _updatePeriod;
 	private final int _threads;
 	private final ScheduledExecutorService _executor;
-	private TimerClock _clock;
+	private TimingEngine _engine = null;
 	private ScheduledFuture<?> _clockFuture;
 	private final Set<Alarm> _alarms;
 	private final Set<Metronome> _recurring;
-	private CountDownLatch _controlLatch = null;
+	/** Current run; tasks from earlier runs are discarded. */
+	private volatile int _epoch = 0;
+	/** Lateness of every callback in the current run. */
+	private final LatenessHistogram _lateness = new LatenessHistogram();
+	private TimingMode _timingMode = TimingMode.EXECUTOR;
+	private long _spinMarginNanos = HybridTimingEngine.DEFAULT_SPIN_MARGIN_NANOS;
+	private StimulusClock _clock = null;
 	
 	/**
 	 * Create a scheduler that runs repeated events after every update period
@@ -48,8 +73,61 @@ public class Scheduler {
 		_threads = threads;
 		_alarms = new HashSet<Alarm>();
 		_recurring = new HashSet<Metronome>();
-		_executor = Executors.newScheduledThreadPool(1, new PriorityThreadFactory());
-		_clock = new TimerClock();
+		_executor = Executors.newScheduledThreadPool(1, 
+				new PriorityThreadFactory("scheduler-clock", Thread.MAX_PRIORITY - 1));
+	}
+	
+	/**
+	 * Set the timing engine to use.  Takes effect at the next start.
+	 * 
+	 * @param mode timing engine
+	 * @param spinMargin time before each deadline that the hybrid engine
+	 * 			stops parking and spins; ignored by other engines
+	 */
+	public synchronized void setTimingMode(TimingMode mode, long spinMargin, TimeUnit unit) {
+		long margin = TimeUnit.NANOSECONDS.convert(spinMargin, unit);
+		if (mode == _timingMode && margin == _spinMarginNanos) return;
+		
+		_timingMode = mode;
+		_spinMarginNanos = margin;
+		if (_engine != null && _clockFuture == null) {
+			_engine.shutdown();
+			_engine = null;
+		}
+	}
+	
+	/**
+	 * Create and warm up the scheduler threads, if not already done, so the
+	 * first run isn't delayed by thread creation or class loading.
+	 */
+	public synchronized void prepare() {
+		if (_engine != null) return;
+		
+		switch (_timingMode) {
+			case HYBRID: _engine = new HybridTimingEngine(_threads, _spinMarginNanos); break;
+			default: _engine = new ExecutorTimingEngine(_threads);
+		}
+		
+		// run a throwaway task through each stage
+		final long now = currTime();
+		Runnable warm = new Runnable() {
+			@Override
+			public void run() {
+				new ScheduleEvent(now, 0).getRelativeTime(TimeUnit.NANOSECONDS);
+			}
+		};
+		_executor.execute(warm);
+		for (int i = 0; i < _threads; i++) {
+			_engine.schedule(new EpochTask(-1, warm, now, 0), now);
+		}
+	}
+	
+	/**
+	 * Set the clock used to align each run's start time with a predicted 
+	 * display refresh, or null to start as soon as possible.
+	 */
+	public synchronized void setStartClock(StimulusClock clock) {
+		_clock = clock;
 	}
 	
 	/**
@@ -63,10 +141,14 @@ public class Scheduler {
 	 * Start the scheduler.  Some initialization overhead will occur.
 	 * The scheduler will not actually begin until the latch is released.
 	 */
-	public void start(CountDownLatch controlLatch) {
-		_controlLatch = controlLatch;
+	public synchronized void start(CountDownLatch controlLatch) {
+		if (_clockFuture != null) return;
 		
-		startTimer();
+		prepare();
+		_lateness.reset();
+		_clockFuture = _executor.schedule(new TimerClock(++_epoch, controlLatch, 
+				new ArrayList<Alarm>(_alarms), new ArrayList<Metronome>(_recurring)), 
+				0, TimeUnit.NANOSECONDS);
 	}
 
 	/**
@@ -76,20 +158,53 @@ public class Scheduler {
 		start(null);
 	}
 	
+	/**
+	 * Get the start time of the current run, on the {@link System#nanoTime()}
+	 * clock, or 0 if not started.  Set before any of the run's items are called.
+	 */
+	public long getStartTime() {
+		return _startTime;
+	}
+	
 	/**
 	 * Stop the scheduler and return the start time that was used on the last run.
 	 */
-	public long stop() {
-		stopTimer();
+	public synchronized long stop() {
+		if (_clockFuture != null) {
+			_clockFuture = null;
+			++_epoch;
+			_engine.cancelAll();
+		}
 		long retval = _startTime;
 		_startTime = 0;
 		return retval;
 	}
 	
+	/**
+	 * Get the lateness of each alarm and recurring callback in the current 
+	 * (or last) run.
+	 */
+	public LatenessHistogram getLateness() {
+		return _lateness.copy();
+	}
+	
+	/**
+	 * Stop the scheduler and release its threads.  The scheduler may not be
+	 * used afterward.
+	 */
+	public synchronized void shutdown() {
+		stop();
+		_executor.shutdownNow();
+		if (_engine != null) {
+			_engine.shutdown();
+			_engine = null;
+		}
+	}
+	
 	/**
 	 * Remove the given Scheduled item.
 	 */
-	public void unSchedule(Scheduled sched) {
+	public synchronized void unSchedule(Scheduled sched) {
 		_recurring.remove(new Metronome(sched));
 		_alarms.remove(new Alarm(sched, (long) 0));
 	}
@@ -97,7 +212,7 @@ public class Scheduler {
 	/**
 	 * Schedule the given action to occur repeatedly every period via Scheduled.markTime.
 	 */
-	public void schedule(Scheduled sched) {
+	public synchronized void schedule(Scheduled sched) {
 		_recurring.add(new Metronome(sched));
 	}
 	
@@ -105,30 +220,11 @@ public class Scheduler {
 	 * Schedule the given action to occur once after the given alarm delay via
 	 * Scheduled.alarm.
 	 */
-	public void scheduleAlarmOnly(Scheduled sched, long alarmTime, TimeUnit unit) {
+	public synchronized void scheduleAlarmOnly(Scheduled sched, long alarmTime, TimeUnit unit) {
 		long time = TimeUnit.NANOSECONDS.convert(alarmTime, unit);
 		_alarms.add(new Alarm(sched, time - sched.callAheadNanoTime()));
 	}
 	
-	private void startTimer() {
-		if (_clockFuture != null) return;
-		
-		_clockFuture = _executor.schedule(_clock, 0, TimeUnit.NANOSECONDS);
-		
-		//_clockFuture = _executor.scheduleAtFixedRate(_clock, 0, 
-		//		_updatePeriod, TimeUnit.NANOSECONDS);
-	}
-	
-	private void stopTimer() {
-		if (_clockFuture != null) {
-			//_clockFuture.cancel(true);
-			_clockFuture = null;
-			_clock.shutDown();
-			_controlLatch = null;
-			_clock = new TimerClock();
-		}
-	}
-	
 	private long currTime() {
 		return System.nanoTime();
 	}
@@ -136,15 +232,21 @@ public class Scheduler {
 
 	
 	/**
-	 * Class for running scheduled items at regular intervals.
+	 * Class for starting a single run: waits for the control latch, then 
+	 * hands the run's items to the timing engine.
 	 */
 	private class TimerClock implements Runnable {
-		private final ScheduledExecutorService _exec = 
-				Executors.newScheduledThreadPool(_threads, new PriorityThreadFactory());
+		private final int _runEpoch;
+		private final CountDownLatch _controlLatch;
+		private final List<Alarm> _runAlarms;
+		private final List<Metronome> _runRecurring;
 		
-		public void shutDown() {
-			_exec.shutdown();
-			_exec.shutdownNow();
+		public TimerClock(int epoch, CountDownLatch controlLatch, List<Alarm> alarms, 
+				List<Metronome> recurring) {
+			_runEpoch = epoch;
+			_controlLatch = controlLatch;
+			_runAlarms = alarms;
+			_runRecurring = recurring;
 		}
 		
 		@Override
@@ -156,18 +258,59 @@ public class Scheduler {
 				catch (InterruptedException e) {} // if wait fails, just move on
 			}
 			
-			// XXX: 'call ahead' values larger than the update period could cause
-			// serious problems
-			long initDelay = 2*_updatePeriod; // arbitrary multiple of the period
-			_startTime = currTime() + initDelay;
-			for (Alarm alarm : _alarms) {
-				// call ahead already built into alarm delay
-				_exec.schedule(alarm, alarm.getDelay() + initDelay, TimeUnit.NANOSECONDS);
+			synchronized (Scheduler.this) {
+				if (_runEpoch != _epoch) return; // stopped while waiting
+				
+				// XXX: 'call ahead' values larger than the update period could cause
+				// serious problems
+				long initDelay = 2*_updatePeriod; // arbitrary multiple of the period
+				long start = currTime() + initDelay;
+				// start on a refresh, so update ticks are in phase with the display
+				_startTime = _clock != null ? _clock.nextVBlank(start) : start;
+				for (Alarm alarm : _runAlarms) {
+					// call ahead already built into alarm delay
+					long deadline = _startTime + alarm.getDelay();
+					_engine.schedule(new EpochTask(_runEpoch, alarm, deadline, 0), deadline);
+				}
+				
+				for (Metronome m : _runRecurring) {
+					long first = _startTime - m.callAhead();
+					_engine.scheduleAtFixedRate(new EpochTask(_runEpoch, m, first, _updatePeriod), 
+							first, _updatePeriod);
+				}
 			}
-			
-			for (Metronome m : _recurring) {
-				_exec.scheduleAtFixedRate(m, initDelay - m.callAhead(), _updatePeriod, TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	/**
+	 * Class for recording the lateness of a task and discarding it if it 
+	 * belongs to a run that has been stopped.  Warm up tasks use epoch -1,
+	 * so are never recorded.
+	 */
+	private class EpochTask implements Runnable {
+		private final int _taskEpoch;
+		private final Runnable _task;
+		private final long _firstDeadline;
+		private final long _period;
+		private long _runs = 0;
+		
+		public EpochTask(int epoch, Runnable task, long firstDeadline, long period) {
+			_taskEpoch = epoch;
+			_task = task;
+			_firstDeadline = firstDeadline;
+			_period = period;
+		}
+		
+		@Override
+		public void run() {
+			long late = currTime() - (_firstDeadline + _runs++ * _period);
+			if (_taskEpoch != _epoch) {
+				if (_taskEpoch < 0) _task.run();
+				return;
 			}
+			
+			_lateness.record(late);
+			_task.run();
 		}
 	}
 	
@@ -235,12 +378,24 @@ public class Scheduler {
 		/*********************************************************/
 	}
 	
-	private static class PriorityThreadFactory implements ThreadFactory {
-		ThreadFactory _parent = Executors.defaultThreadFactory();
+	/**
+	 * Factory for the scheduling threads: named, high priority, and daemon,
+	 * so a scheduler that is never shut down doesn't keep the program running.
+	 */
+	static class PriorityThreadFactory implements ThreadFactory {
+		private final String _name;
+		private final int _priority;
+		private final AtomicInteger _count = new AtomicInteger();
+		
+		PriorityThreadFactory(String name, int priority) {
+			_name = name;
+			_priority = priority;
+		}
 		@Override
 		public Thread newThread(Runnable r) {
-			Thread retval = _parent.newThread(r);
-			retval.setPriority(Thread.MAX_PRIORITY - (r instanceof Metronome ? 0 : 1));
+			Thread retval = new Thread(r, _name + "-" + _count.incrementAndGet());
+			retval.setDaemon(true);
+			retval.setPriority(_priority);
 			return retval;
 		}
 	}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av;
+
+/**
+ * Predicts display refreshes (vblanks) from the refresh period and observed
+ * swap completion times, so that stimuli can be scheduled relative to when
+ * frames will actually reach the screen rather than to when they are drawn.
+ *
+ * Until a swap has been observed, the clock is not synchronized and times
+ * are not adjusted.
+ *
+ * @author bguseman
+ *
+ */
+public class StimulusClock {
+	private long _period;
+	private long _vblank = 0;
+	private boolean _synchronized = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param periodNanos refresh period
+	 */
+	public StimulusClock(long periodNanos) {
+		_period = periodNanos;
+	}
+
+	/**
+	 * Set the refresh period, keeping the last observed vblank.
+	 */
+	public synchronized void setPeriodNanos(long periodNanos) {
+		_period = periodNanos;
+	}
+
+	/**
+	 * Get the refresh period.
+	 */
+	public synchronized long getPeriodNanos() {
+		return _period;
+	}
+
+	/**
+	 * Record the completion time of a synchronized swap, which is taken as a
+	 * vblank.  Predictions are made from the most recent one, so that any
+	 * error in the period only accumulates over a short time.
+	 */
+	public synchronized void observeVBlank(long nanos) {
+		_vblank = nanos;
+		_synchronized = true;
+	}
+
+	/**
+	 * Determine if a vblank has been observed.
+	 */
+	public synchronized boolean isSynchronized() {
+		return _synchronized;
+	}
+
+	/**
+	 * Get the first predicted vblank at or after the given time, or the
+	 * given time if not synchronized.
+	 */
+	public synchronized long nextVBlank(long nanos) {
+		if (!_synchronized || _period <= 0) return nanos;
+		long since = nanos - _vblank;
+		long periods = since / _period;
+		if (since > periods * _period) periods++;
+		return _vblank + periods * _period;
+	}
+}
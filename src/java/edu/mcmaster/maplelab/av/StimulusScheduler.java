@@ -10,25 +10,33 @@ package edu.mcmaster.maplelab.av;
 import static javax.media.opengl.GL.GL_COLOR_BUFFER_BIT;
 import static javax.media.opengl.GL.GL_DEPTH_BUFFER_BIT;
 
-import java.awt.DisplayMode;
+import java.awt.GraphicsConfiguration;
 import java.awt.GraphicsDevice;
-import java.awt.GraphicsEnvironment;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 
 import javax.media.opengl.GL2;
 import javax.media.opengl.GLAutoDrawable;
 
 import edu.mcmaster.maplelab.av.datamodel.AVTrial;
+import edu.mcmaster.maplelab.av.media.AudioTimeline;
+import edu.mcmaster.maplelab.av.media.LineAudioEngine;
+import edu.mcmaster.maplelab.av.media.PCMSource;
 import edu.mcmaster.maplelab.av.media.Playable;
 import edu.mcmaster.maplelab.av.media.PlayableListener;
 import edu.mcmaster.maplelab.av.media.animation.AnimationListener;
 import edu.mcmaster.maplelab.av.media.animation.AnimationPanel;
 import edu.mcmaster.maplelab.av.media.animation.AnimationRenderer;
 import edu.mcmaster.maplelab.av.media.animation.AnimationRenderer.GLDrawDelegate;
-import edu.mcmaster.maplelab.av.media.animation.ScheduledAnimationTrigger;
+import edu.mcmaster.maplelab.av.media.animation.RenderLoop;
 import edu.mcmaster.maplelab.common.LogContext;
 
 /**
@@ -36,54 +44,75 @@ import edu.mcmaster.maplelab.common.LogContext;
  *
  */
 public class StimulusScheduler {
-	private static final int PERIOD_OFFSET_MULTIPLIER = 1;
-	private static final boolean APPLE_MODE = true;
 	private static final int MAX_STIMULUS_COUNT = 12;
-	private static final long REFRESH_PERIOD;
-	static {
-		GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
-		GraphicsDevice gs = ge.getDefaultScreenDevice();
-		int refresh = gs.getDisplayMode().getRefreshRate();
-		if (refresh == DisplayMode.REFRESH_RATE_UNKNOWN) {
-			refresh = 60;
-		}
-		REFRESH_PERIOD = (long) (1000000000.0d / (double) refresh); // nanos
-	}
+	/** 
+	 * How early pre-rendered audio is handed to the line, ahead of its onset.
+	 * Only needs to cover the handoff; the line pads the rest with silence.
+	 */
+	private static final long LINE_CALL_AHEAD = TimeUnit.MILLISECONDS.toNanos(15);
+	/** 
+	 * How long a start waits for the trial to be scheduled, which may 
+	 * include a full refresh calibration.
+	 */
+	private static final long SCHEDULING_TIMEOUT_SECONDS = 10;
+	private static final long REFRESH_PERIOD = 
+			RefreshCalibration.getNominalPeriodNanos(RefreshCalibration.defaultDevice());
 	
 	private final Scheduler _scheduler;
-	private final ScheduledAnimationTrigger _trigger;
+	/** Runs trial setup and start off the caller's thread. */
+	private final ExecutorService _control;
+	private final RenderLoop _trigger;
 	private final AnimationRenderer _renderer;
 	private final AnimationStartAlarm _animationStart;
 	private final MediaPlaybackAlarm _mediaStart;
+	private final LineStartAlarm _lineStart;
 	private final AnimationCompletionListener _animationListener;
-	private final MediaCompletionListener _mediaListener;
 	private final VSyncedScheduleStarter _starter;
-	private final VSyncedRefreshCalcScheduler _refreshCalculator;
 	private final List<AVStimulusListener> _listeners;
 	private final AnimationPanel _aniPanel;
-	private long _audioCallAhead;
-	private long _animationFrameAdvance;
-	private AVTrial<?> _trial;
-	private CountDownLatch _schedulingGuard;
-	private CountDownLatch _completionLatch;
-	private boolean _running = false;
-	private Long _lastStart = null;
+	private RefreshCalibration _calibration;
+	private final StimulusClock _clock;
+	private volatile long _audioCallAhead;
+	private volatile boolean _lineAudio = false;
+	private volatile long _animationFrameAdvance;
+	/** Trial set up by {@link #setStimulusSource(AVTrial)}, or null. */
+	private final AtomicReference<TrialPlaybackPlan> _plan = 
+			new AtomicReference<TrialPlaybackPlan>();
+	/** Trial being run, or null if not running. */
+	private final AtomicReference<TrialPlaybackPlan> _run = 
+			new AtomicReference<TrialPlaybackPlan>();
+	private final AtomicInteger _epoch = new AtomicInteger();
+	private final LatenessHistogram _sessionLateness = new LatenessHistogram();
+	private final AtomicInteger _sessionMissedFrames = new AtomicInteger();
 	
 	public StimulusScheduler() {
+		// the render loop draws from its own thread; needed before the
+		// animation panel's canvas is created
+		RenderLoop.initThreading();
+		
 		_scheduler = new Scheduler(REFRESH_PERIOD, TimeUnit.NANOSECONDS, MAX_STIMULUS_COUNT);
-		_trigger = new ScheduledAnimationTrigger();
-		_scheduler.schedule(_trigger);
+		_clock = new StimulusClock(REFRESH_PERIOD);
+		_scheduler.setStartClock(_clock);
+		_control = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "stimulus-control");
+				t.setDaemon(true);
+				t.setPriority(Thread.MAX_PRIORITY);
+				return t;
+			}
+		});
 		_renderer = new AnimationRenderer();
+		_trigger = new RenderLoop(_renderer, _clock);
 		_animationStart = new AnimationStartAlarm();
 		_mediaStart = new MediaPlaybackAlarm();
+		_lineStart = new LineStartAlarm();
 		_scheduler.scheduleAlarmOnly(new CompletionAlarm(), 0, TimeUnit.NANOSECONDS);
 		_animationListener = new AnimationCompletionListener();
-		_mediaListener = new MediaCompletionListener();
 		_renderer.addAnimationListener(_animationListener);
-		_listeners = new ArrayList<AVStimulusListener>();
+		_listeners = new CopyOnWriteArrayList<AVStimulusListener>();
 		_aniPanel = new AnimationPanel(_renderer, _trigger);
 		_starter = new VSyncedScheduleStarter();
-		_refreshCalculator = new VSyncedRefreshCalcScheduler();
 	}
 	
 	public AnimationPanel getAnimationPanel() {
@@ -91,141 +120,332 @@ public class StimulusScheduler {
 	}
 	
 	public void setRenderCallAhead(Long renderCallAhead, TimeUnit unit) {
-		if (!_running) {
+		if (!isRunning()) {
 			_trigger.setRenderCallAhead(renderCallAhead != null ? 
 					TimeUnit.NANOSECONDS.convert(renderCallAhead, unit) : 0);
 		}
 	}
 	
 	public void setAudioCallAhead(Long audioCallAhead, TimeUnit unit) {
-		if (!_running) {
+		if (!isRunning()) {
 			_audioCallAhead = audioCallAhead != null ? 
 					TimeUnit.NANOSECONDS.convert(audioCallAhead, unit) : 0;
 		}
 	}
 	
+	/**
+	 * Set the timing engine used to run the schedule.
+	 * 
+	 * @see Scheduler#setTimingMode(Scheduler.TimingMode, long, TimeUnit)
+	 */
+	public void setTimingMode(Scheduler.TimingMode mode, long spinMargin, TimeUnit unit) {
+		if (!isRunning()) {
+			_scheduler.setTimingMode(mode, spinMargin, unit);
+		}
+	}
+	
+	/**
+	 * Set whether audio is pre-rendered and played through the
+	 * {@link LineAudioEngine} rather than started on a timer.
+	 */
+	public void setLineAudio(boolean lineAudio) {
+		if (!isRunning()) {
+			_lineAudio = lineAudio;
+		}
+	}
+	
 	public void setAnimationFrameAdvance(Long animationFrameAdvance, TimeUnit unit) {
-		if (!_running) {
+		if (!isRunning()) {
 			_animationFrameAdvance = animationFrameAdvance != null ? 
 					TimeUnit.NANOSECONDS.convert(animationFrameAdvance, unit) : 0;
 		}
 	}
 	
+	/**
+	 * Determine if a trial is running.
+	 */
+	private boolean isRunning() {
+		return _run.get() != null;
+	}
+	
+	/**
+	 * Determine if the given plan is for the trial currently set up.
+	 */
+	private boolean isCurrent(TrialPlaybackPlan plan) {
+		TrialPlaybackPlan current = _plan.get();
+		return current != null && current._epoch == plan._epoch;
+	}
+	
 	/**
 	 * Set the trial that will provide stimuli at start time.
 	 */
 	public void setStimulusSource(AVTrial<?> trial) {
-		if (_running) return;
+		if (isRunning()) return;
 		
+		_scheduler.unSchedule(_trigger);
 		_scheduler.unSchedule(_mediaStart);
+		_scheduler.unSchedule(_lineStart);
 		_scheduler.unSchedule(_animationStart);
 		
-		_trial = trial;
+		// callbacks still pending for the previous trial are dropped from here
+		int epoch = _epoch.incrementAndGet();
+		if (trial == null) {
+			_plan.set(null);
+			return;
+		}
 		
-		if (_trial == null) return;
-
-		_schedulingGuard = new CountDownLatch(1);
-		calculateRefreshAndSchedule();
-		_completionLatch = new CountDownLatch(_trial.getNumMediaObjects());
+		TrialPlaybackPlan plan = new TrialPlaybackPlan(epoch, trial, null, 0,
+				new CountDownLatch(1), new CountDownLatch(trial.getNumMediaObjects()));
+		_plan.set(plan);
+		_scheduler.prepare();
+		calculateRefreshAndSchedule(plan);
 	}
 	
 	/**
-	 * Schedule the trial for the given refresh period.
+	 * Schedule the trial for the given refresh period.  Releases the plan's
+	 * scheduling guard however it returns.
 	 */
-	private void scheduleTrial(long period) {
-		Playable p = _trial.isVideo() ? _trial.getVideoPlayable() : _trial.getAudioPlayable();
-		long adjust = 0;
-		if (_trial.getAnimationSequence() != null) {
-			_renderer.setAnimationSource(_trial);
+	private void scheduleTrial(TrialPlaybackPlan plan, long period) {
+		try {
+			if (!isCurrent(plan)) return; // replaced while calibrating
+			
+			AVTrial<?> trial = plan._trial;
+			Playable p = trial.isVideo() ? trial.getVideoPlayable() : trial.getAudioPlayable();
+			long adjust = 0;
+			// audio only trials have nothing to draw
+			if (trial.isAnimation() || trial.isVideo()) {
+				_scheduler.scheduleAlarmOnly(_trigger, 0, TimeUnit.NANOSECONDS);
+			}
+			if (trial.getAnimationSequence() != null) {
+				_renderer.setAnimationSource(trial);
 			
-			long aniDelay = _trial.getAnimationDelayNanos();
-			adjust = (_trial.getAnimationStrikeTimeNanos() + aniDelay) % period;
-			_scheduler.scheduleAlarmOnly(_animationStart, aniDelay - adjust, TimeUnit.NANOSECONDS);
+				// the scheduler starts on a refresh, and the render loop draws each 
+				// frame for the refresh it is shown at, so this shows the strike
+				// at exactly the scheduled time
+				long aniDelay = trial.getAnimationDelayNanos();
+				adjust = (trial.getAnimationStrikeTimeNanos() + aniDelay) % period;
+				_scheduler.scheduleAlarmOnly(_animationStart, aniDelay - adjust, TimeUnit.NANOSECONDS);
+			}
+			if (p != null) {
+				long time = trial.getMediaDelayNanos() - adjust;
+				AudioTimeline timeline = null;
+				if (_lineAudio && !trial.isVideo() && p instanceof PCMSource) {
+					// the line pads to the onset itself, from its own position
+					try {
+						timeline = AudioTimeline.render((PCMSource) p, 0);
+					}
+					catch (Exception ex) {
+						LogContext.getLogger().log(Level.WARNING, 
+								"Unable to render audio; falling back to timed playback", ex);
+					}
+				}
+				if (timeline != null) {
+					TrialPlaybackPlan withTimeline = plan.withTimeline(timeline, time);
+					if (!_plan.compareAndSet(plan, withTimeline)) return;
+					plan = withTimeline;
+					_scheduler.scheduleAlarmOnly(_lineStart, time, TimeUnit.NANOSECONDS);
+				}
+				else {
+					p.addListener(new MediaCompletionListener(plan));
+					_mediaStart.setCallAhead(trial.isVideo() ? 0 : _audioCallAhead);
+					_scheduler.scheduleAlarmOnly(_mediaStart, time, TimeUnit.NANOSECONDS);
+				}
+			}
+		}
+		finally {
+			plan._schedulingGuard.countDown();
 		}
-		if (p != null) {
-			p.addListener(_mediaListener);
-			long time = (_trial.getMediaDelayNanos() - adjust) + 
-					(PERIOD_OFFSET_MULTIPLIER*period); // XXX: ~2+ periods for vsync buffering
-			_scheduler.scheduleAlarmOnly(_mediaStart, time, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Get the refresh calibration for the display currently showing the
+	 * animation panel.
+	 */
+	private synchronized RefreshCalibration getCalibration() {
+		GraphicsConfiguration gc = _aniPanel.getGraphicsConfiguration();
+		GraphicsDevice device = gc != null ? gc.getDevice() : RefreshCalibration.defaultDevice();
+		if (_calibration == null || 
+				!_calibration.getDisplayKey().equals(RefreshCalibration.displayKey(device))) {
+			_calibration = new RefreshCalibration(device);
 		}
-		_schedulingGuard.countDown();
+		return _calibration;
 	}
 	
 	/**
-	 * Run the refresh period calculation renderer.
+	 * Use the given refresh period for scheduling and rendering.
 	 */
-	private void calculateRefreshAndSchedule() {
-		if (_trial.isAnimation()) {
+	private void setRefreshPeriod(long period) {
+		_clock.setPeriodNanos(period);
+		_scheduler.setUpdatePeriodNanos(period);
+		_renderer.setFramePeriod(period, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Schedule the trial, first running the refresh period calibration
+	 * renderer if the display has no usable calibration.
+	 */
+	private void calculateRefreshAndSchedule(TrialPlaybackPlan plan) {
+		if (plan._trial.isAnimation()) {
+			RefreshCalibration cal = getCalibration();
+			if (cal.isCalibrated()) {
+				long period = cal.getPeriodNanos();
+				setRefreshPeriod(period);
+				scheduleTrial(plan, period);
+				return;
+			}
+			
 			// is this the best way to do this?
-			_renderer.setDisplayProxy(_refreshCalculator);
-			//XXX: executor service?
-			Thread t = new Thread(new Runnable() {
+			_renderer.setDisplayProxy(new VSyncedRefreshCalcScheduler(plan));
+			_control.execute(new Runnable() {
 				@Override
 				public void run() {
 					_trigger.forceDisplay();
-				}}) {{
-				setPriority(Thread.MAX_PRIORITY);
-			}};
-			t.start();
+				}
+			});
 		}
 		else {
-			scheduleTrial(0);
+			scheduleTrial(plan, 0);
 		}
 	}
 	
 	public void start() {
-		if (_running || _trial == null) return;
-		_running = true;
-
-		_lastStart = null;
+		final TrialPlaybackPlan plan = _plan.get();
+		if (plan == null || !_run.compareAndSet(null, plan)) return;
 		
-		Thread t = new Thread(new Runnable() {
+		_control.execute(new Runnable() {
 			@Override
 			public void run() {
 				try {
-					_schedulingGuard.await();
+					if (!plan._schedulingGuard.await(SCHEDULING_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+						LogContext.getLogger().warning(String.format(
+								"Trial not scheduled after %d s; not starting", 
+								SCHEDULING_TIMEOUT_SECONDS));
+						abandon(plan);
+						return;
+					}
 				} 
-				catch (InterruptedException e) {} // ignore*/
+				catch (InterruptedException e) {
+					abandon(plan);
+					return;
+				}
+				
+				// pick up anything scheduling added to the plan, unless stopped
+				TrialPlaybackPlan scheduled = _plan.get();
+				if (scheduled == null || scheduled._epoch != plan._epoch || 
+						!_run.compareAndSet(plan, scheduled)) {
+					return;
+				}
 				
-				if (_trial.isAnimation()) {
+				if (scheduled._trial.isAnimation()) {
 					_renderer.setDisplayProxy(_starter);
 					_trigger.forceDisplay();
 				}
 				else {
 					_scheduler.start();
 				}
-			}}) {{
-			setPriority(Thread.MAX_PRIORITY);
-		}};
-		t.start();
+			}
+		});
+	}
+	
+	/**
+	 * Give up on starting the given plan's run, and tell listeners the
+	 * stimuli are done so nothing waits on them.
+	 */
+	private void abandon(TrialPlaybackPlan plan) {
+		if (_run.compareAndSet(plan, null)) notifyListeners();
 	}
 	
 	/**
 	 * Stop the scheduler and return the reference start time used on the last run in nanoseconds.
 	 */
 	public Long stop() {
-		if (_lastStart == null) {
-			_lastStart = _scheduler.stop();
+		_trigger.endRun();
+		TrialPlaybackPlan plan = _run.getAndSet(null);
+		boolean wasRunning = plan != null;
+		if (plan == null) plan = _plan.get();
+		if (plan == null) return null;
+		
+		Long lastStart;
+		if (wasRunning) {
+			// release the completion alarm, if still waiting; it drops itself
+			while (plan._completionLatch.getCount() > 0) {
+				plan._completionLatch.countDown();
+			}
+			lastStart = plan.stopRun(_scheduler);
+		}
+		else {
+			lastStart = plan.getLastStart();
+			if (lastStart == null) return null; // never run
 		}
 		
+		AVTrial<?> trial = plan._trial;
 		String runDesc = "\t---- Trial run complete. ---\n\tReference start time: %d\n" +
 				"%s%s--------------------------\n\n";
 		String aniDesc = "";
 		String medDesc = "";
 		long millisVal = 0;
-		if (_trial.getNumMediaObjects() > 1) {
+		if (trial.getNumMediaObjects() > 1) {
 			millisVal = TimeUnit.MILLISECONDS.convert(
-					_trial.getLastAnimationStartNanos() - _lastStart, TimeUnit.NANOSECONDS);
+					trial.getLastAnimationStartNanos() - lastStart, TimeUnit.NANOSECONDS);
 			aniDesc = String.format("\tRelative animation start time: %d\n", millisVal);
 			millisVal = TimeUnit.MILLISECONDS.convert(
-					_trial.getLastMediaStartNanos() - _lastStart, TimeUnit.NANOSECONDS);
+					trial.getLastMediaStartNanos() - lastStart, TimeUnit.NANOSECONDS);
 			medDesc = String.format("\tRelative media start time: %d\n", millisVal);
 		}
-		millisVal = TimeUnit.MILLISECONDS.convert(_lastStart, TimeUnit.NANOSECONDS);
+		millisVal = TimeUnit.MILLISECONDS.convert(lastStart, TimeUnit.NANOSECONDS);
 		LogContext.getLogger().fine(String.format(runDesc, millisVal, aniDesc, medDesc));
+		
+		if (wasRunning) {
+			LatenessHistogram lateness = _scheduler.getLateness();
+			int missed = _trigger.getMissedFrames();
+			trial.markSchedulingStats(lateness, missed);
+			_sessionLateness.add(lateness);
+			_sessionMissedFrames.addAndGet(missed);
+			LogContext.getLogger().fine(String.format(
+					"\tScheduling lateness: %s, missed frames: %d", lateness, missed));
+			
+			// the next trial is set up with the refitted period
+			if (trial.isAnimation()) {
+				RefreshCalibration cal = getCalibration();
+				if (cal.isStale()) cal.refit(_trigger.getSwapTimes());
+			}
+		}
 
-		_running = false;
-		return _lastStart;
+		return lastStart;
+	}
+	
+	/**
+	 * Stop and release all scheduling threads.  The scheduler may not be
+	 * used afterward.
+	 */
+	public void shutdown() {
+		logSessionLateness();
+		_scheduler.shutdown();
+		_control.shutdownNow();
+	}
+	
+	/**
+	 * Get the lateness of scheduled callbacks over all trials run so far.
+	 */
+	public LatenessHistogram getSessionLateness() {
+		return _sessionLateness.copy();
+	}
+	
+	/**
+	 * Get the number of display updates missed over all trials run so far.
+	 */
+	public int getSessionMissedFrames() {
+		return _sessionMissedFrames.get();
+	}
+	
+	/**
+	 * Log a summary of scheduling accuracy over all trials run so far.
+	 */
+	public void logSessionLateness() {
+		if (_sessionLateness.getCount() == 0) return;
+		LogContext.getLogger().info(String.format(
+				"Session scheduling lateness: %s, missed frames: %d", 
+				_sessionLateness, _sessionMissedFrames.get()));
 	}
 	
 	/**
@@ -255,18 +475,55 @@ public class StimulusScheduler {
 	 * Class for scheduling media playback.
 	 */
 	private class MediaPlaybackAlarm implements Scheduled {
+		private volatile long _callAhead = 0;
+		
+		public void setCallAhead(long callAhead) {
+			_callAhead = callAhead;
+		}
 		@Override
 		public void markTime(ScheduleEvent e) {}
 		@Override
 		public void alarm(ScheduleEvent e) {
+			TrialPlaybackPlan plan = _run.get();
+			if (plan == null) return;
+			
 			long time = System.nanoTime();
 			//System.out.println("media:\t" + time);
-			_trial.markMediaStartNanos(time);
-			_trial.getMedia().getMediaObject().play();
+			plan._trial.markMediaStartNanos(time);
+			plan._trial.getMedia().getMediaObject().play();
+		}
+		@Override
+		public long callAheadNanoTime() {
+			return _callAhead;
+		}
+	}
+	
+	/**
+	 * Class for handing the pre-rendered audio to the line shortly before 
+	 * its onset.  The line places the onset at the scheduled time by sample
+	 * count, so this alarm only has to be early, not exact, and the start 
+	 * time recorded is when the line actually played it.
+	 */
+	private class LineStartAlarm implements Scheduled {
+		@Override
+		public void markTime(ScheduleEvent e) {}
+		@Override
+		public void alarm(ScheduleEvent e) {
+			final TrialPlaybackPlan plan = _run.get();
+			if (plan == null || plan._timeline == null) return;
+			
+			long onset = _scheduler.getStartTime() + plan._lineOnsetNanos;
+			LineAudioEngine.getInstance().play(plan._timeline, onset, 
+					new LineAudioEngine.OnsetListener() {
+						@Override
+						public void onsetPlayed(long nanos) {
+							if (isCurrent(plan)) plan._trial.markMediaStartNanos(nanos);
+						}
+					}, new MediaCompletionListener(plan));
 		}
 		@Override
 		public long callAheadNanoTime() {
-			return _trial.isVideo() ? 0 : _audioCallAhead;
+			return LINE_CALL_AHEAD;
 		}
 	}
 	
@@ -278,8 +535,11 @@ public class StimulusScheduler {
 		public void markTime(ScheduleEvent e) {}
 		@Override
 		public void alarm(ScheduleEvent e) {
+			TrialPlaybackPlan plan = _run.get();
+			if (plan == null) return;
+			
 			// TODO - use time from event?
-			_trial.markAnimationStartNanos(System.nanoTime());
+			plan._trial.markAnimationStartNanos(System.nanoTime());
 			_renderer.setNanoStartTime(e.getEventTime(TimeUnit.NANOSECONDS));
 		}
 		@Override
@@ -294,19 +554,28 @@ public class StimulusScheduler {
 	private class AnimationCompletionListener implements AnimationListener {
 		@Override
 		public void animationDone() {
-			_renderer.setAnimationSource(null);
-			_completionLatch.countDown();
+			TrialPlaybackPlan plan = _run.get();
+			// only if the animation finished is this run's
+			if (plan != null && _renderer.clearAnimationSource(plan._trial)) {
+				plan._completionLatch.countDown();
+			}
 		}
 	}
 	
 	/**
-	 * Class for listening to media playback completion.
+	 * Class for listening to media playback completion for one trial.
 	 */
 	private class MediaCompletionListener extends PlayableListener {
+		private final TrialPlaybackPlan _trialPlan;
+		
+		public MediaCompletionListener(TrialPlaybackPlan plan) {
+			_trialPlan = plan;
+		}
 		@Override
 		public void playableEnded() {
-			_trial.getMedia().getMediaObject().removeListener(this);
-			_completionLatch.countDown();
+			_trialPlan._trial.getMedia().getMediaObject().removeListener(this);
+			// media may be reused by a later trial; don't count for that one
+			if (isCurrent(_trialPlan)) _trialPlan._completionLatch.countDown();
 		}
 	}
 	
@@ -318,12 +587,17 @@ public class StimulusScheduler {
 		public void markTime(ScheduleEvent e) {}
 		@Override
 		public void alarm(ScheduleEvent e) {
+			TrialPlaybackPlan plan = _run.get();
+			if (plan == null) return;
+			
 			try {
-				_completionLatch.await();
+				plan._completionLatch.await();
 			} 
 			catch (InterruptedException e1) {}
 			
-			_lastStart = _scheduler.stop();
+			if (_run.get() != plan) return; // stopped while waiting
+			_trigger.endRun();
+			plan.stopRun(_scheduler);
 			notifyListeners();
 		}
 		@Override
@@ -331,50 +605,27 @@ public class StimulusScheduler {
 	}
 	
 	/**
-	 * Class for calculating the current refresh period on-the-fly.
+	 * Class for calibrating the current display's refresh period.
 	 */
 	private class VSyncedRefreshCalcScheduler implements GLDrawDelegate {
-		private static final long ITERATIONS = 100;
+		private final TrialPlaybackPlan _trialPlan;
+		
+		public VSyncedRefreshCalcScheduler(TrialPlaybackPlan plan) {
+			_trialPlan = plan;
+		}
 		@Override
 		public void draw(GLAutoDrawable drawable) {
 			_renderer.clearProxy(); // remove self
 			
 			GL2 gl = drawable.getGL().getGL2();
-			gl.setSwapInterval(1);
-			
 			gl.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
 			gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 			
-			long curr = System.nanoTime();
-			long total = 0;
-			
-			if (APPLE_MODE) {
-				for (int i = 0; i < ITERATIONS; i++) { 
-					float alpha = 1.0f - (float) (.01 * i % 2);
-					gl.glClearColor(0.0f, 0.0f, 0.0f, alpha);
-					gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT); 
-					gl.glSwapAPPLE();
-					long tmp = System.nanoTime();
-					total += tmp - curr;
-					curr = tmp;
-				}
-			}
-			else {
-				for (int i = 0; i < ITERATIONS; i++) { 
-					float alpha = 1.0f - (float) (.01 * i % 2);
-					gl.glClearColor(0.0f, 0.0f, 0.0f, alpha);
-					gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT); 
-					gl.glFinish(); // TODO: would this even work?
-					long tmp = System.nanoTime();
-					total += curr - tmp;
-					curr = tmp;
-				}
-			}
-			long period = total / ITERATIONS;
-			// cap the refresh period at an arbitrary, unreasonable value
-			if (period < REFRESH_PERIOD / 20) period = REFRESH_PERIOD;
-			_scheduler.setUpdatePeriodNanos(period);
-			scheduleTrial(period);
+			RefreshCalibration cal = getCalibration();
+			long period = cal.calibrate(drawable);
+			if (cal.getPhaseNanos() != null) _clock.observeVBlank(cal.getPhaseNanos());
+			setRefreshPeriod(period);
+			scheduleTrial(_trialPlan, period);
 		}
 	}
 	
@@ -393,15 +644,14 @@ public class StimulusScheduler {
 			gl.setSwapInterval(1);
 			gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);  
 			
-			if (APPLE_MODE) {
-				gl.glSwapAPPLE();
-			}
-			else {
-				gl.glFinish(); // TODO: would this even work?
-			}
+			long vsync = RefreshCalibration.swap(drawable);
+			_clock.observeVBlank(vsync);
 			
-			// release scheduler to start after vsync
+			// release scheduler to start after vsync, in phase with it
 			latch.countDown();
+			
+			// drift is refitted from this run's swaps when it stops
+			getCalibration().check(vsync);
 		}
 	}
 	
@@ -428,4 +678,59 @@ public class StimulusScheduler {
 			}
 		}
 	}
+	
+	/**
+	 * Everything one trial's callbacks need, fixed when the trial is set up
+	 * and published whole.  Callbacks work from the plan they were given,
+	 * or the one running when they fire, and a plan whose epoch is no 
+	 * longer current belongs to a trial that has been replaced.
+	 */
+	private static final class TrialPlaybackPlan {
+		private final int _epoch;
+		private final AVTrial<?> _trial;
+		private final AudioTimeline _timeline;
+		/** Onset of the timeline relative to the scheduler start. */
+		private final long _lineOnsetNanos;
+		private final CountDownLatch _schedulingGuard;
+		private final CountDownLatch _completionLatch;
+		/** Start time of the run, once stopped; guarded by this. */
+		private Long _lastStart = null;
+		
+		public TrialPlaybackPlan(int epoch, AVTrial<?> trial, AudioTimeline timeline,
+				long lineOnsetNanos, CountDownLatch schedulingGuard, 
+				CountDownLatch completionLatch) {
+			_epoch = epoch;
+			_trial = trial;
+			_timeline = timeline;
+			_lineOnsetNanos = lineOnsetNanos;
+			_schedulingGuard = schedulingGuard;
+			_completionLatch = completionLatch;
+		}
+		
+		/**
+		 * Get a copy of this plan, with the given pre-rendered audio to be
+		 * heard at the given time after the scheduler start.
+		 */
+		public TrialPlaybackPlan withTimeline(AudioTimeline timeline, long onsetNanos) {
+			return new TrialPlaybackPlan(_epoch, _trial, timeline, onsetNanos,
+					_schedulingGuard, _completionLatch);
+		}
+		
+		/**
+		 * Stop the scheduler for this plan's run, if not already done.
+		 * 
+		 * @return the run's start time
+		 */
+		public synchronized Long stopRun(Scheduler scheduler) {
+			if (_lastStart == null) _lastStart = scheduler.stop();
+			return _lastStart;
+		}
+		
+		/**
+		 * Get the start time of this plan's run, or null if not stopped yet.
+		 */
+		public synchronized Long getLastStart() {
+			return _lastStart;
+		}
+	}
 }
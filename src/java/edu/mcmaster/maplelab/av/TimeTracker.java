@@ -1,80 +1,346 @@
 package edu.mcmaster.maplelab.av;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 
 import edu.mcmaster.maplelab.common.LogContext;
 
+/**
+ * Records {@link System#nanoTime()} stamps against named identifiers,
+ * cheaply enough to call from rendering and audio alarm code without
+ * disturbing the timing being measured.
+ *
+ * Each identifier has a preallocated ring buffer, and stamping only writes
+ * a long and advances an index - no locking, boxing or allocation.  A
+ * background drainer empties the rings periodically, either into memory
+ * (for {@link #logTimes(String, File, boolean)} and
+ * {@link #clearStamps(String)}) or straight to a file set up with
+ * {@link #streamTo(String, File, Format)}.
+ *
+ * XXX: Each identifier must only be stamped from one thread at a time.
+ * Use {@link #register(String)} ahead of time so the ring isn't allocated
+ * on the first stamp.  If a ring fills before it is drained, further
+ * stamps are dropped and counted (see {@link #getDropped(String)}).
+ */
 public class TimeTracker {
-	private static Map<String, List<Long>> _timeStamps = new HashMap<String, List<Long>>();
-	private static ExecutorService _executor = Executors.newSingleThreadExecutor();
-	
-	/**
-	 * Record the current time for the given identifier.  Does not block.
-	 */
-	public static void timeStamp(final String identifier) {
-		final long currTime = System.currentTimeMillis();
-		Runnable r = new Runnable() {
+	/** Output file formats. */
+	public enum Format {
+		/** One decimal nanosecond value per line. */
+		CSV,
+		/** Consecutive big endian 64 bit nanosecond values. */
+		BINARY
+	}
+
+	/** Stamps held per identifier between drains; a power of 2. */
+	public static final int CAPACITY = 1 << 13;
+	private static final int MASK = CAPACITY - 1;
+	private static final long DRAIN_MILLIS = 100;
+
+	private static final ConcurrentMap<String, Channel> _channels =
+			new ConcurrentHashMap<String, Channel>();
+	private static final ScheduledExecutorService _drainer =
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "time-tracker-drainer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	static {
+		_drainer.scheduleWithFixedDelay(new Runnable() {
 			@Override
 			public void run() {
-				List<Long> stamps = _timeStamps.get(identifier);
-				if (stamps == null) {
-					stamps = new ArrayList<Long>();
-					_timeStamps.put(identifier, stamps);
+				for (Channel c : _channels.values()) {
+					c.drain();
 				}
-				stamps.add(currTime);
 			}
-		};
-		_executor.execute(r);
+		}, DRAIN_MILLIS, DRAIN_MILLIS, TimeUnit.MILLISECONDS);
 	}
-	
+
+	/**
+	 * Allocate the buffer for the given identifier, if not already done.
+	 */
+	public static void register(String identifier) {
+		channel(identifier);
+	}
+
+	/**
+	 * Record the current time for the given identifier.  Does not block
+	 * or allocate (once the identifier is registered).
+	 */
+	public static void timeStamp(String identifier) {
+		long now = System.nanoTime();
+		channel(identifier).add(now);
+	}
+
+	/**
+	 * Get the number of stamps dropped for the given identifier because
+	 * its buffer was full.
+	 */
+	public static long getDropped(String identifier) {
+		Channel c = _channels.get(identifier);
+		return c != null ? c._dropped.get() : 0;
+	}
+
+	/**
+	 * Write all future stamps for the given identifier to the given file as
+	 * they are drained, rather than keeping them in memory.  Any stamps
+	 * already held are written first.
+	 */
+	public static void streamTo(String identifier, File file, Format format) throws IOException {
+		Channel c = channel(identifier);
+		Sink sink = format == Format.BINARY ? new BinarySink(file) : new CSVSink(file);
+		c.setSink(sink);
+	}
+
+	/**
+	 * Stop writing stamps for the given identifier to file, writing out
+	 * anything pending and closing the file.
+	 */
+	public static void stopStreaming(String identifier) {
+		Channel c = _channels.get(identifier);
+		if (c != null) c.setSink(null);
+	}
+
 	/**
 	 * Log all times stamped for the given identifier in the given file.  Stamps are cleared
 	 * according to the given boolean.  Does not block - file will be written in a separate
 	 * thread.
 	 */
-	public static void logTimes(final String identifier, final File logFile, 
-			final boolean clearStamps) {
-		
-		Runnable r = new Runnable() {
+	public static void logTimes(String identifier, File logFile, boolean clearStamps) {
+		logTimes(identifier, logFile, Format.CSV, clearStamps);
+	}
+
+	/**
+	 * Log all times stamped for the given identifier in the given file and
+	 * format.  Stamps are cleared according to the given boolean.  Does not
+	 * block - file will be written in a separate thread.
+	 */
+	public static void logTimes(final String identifier, final File logFile,
+			final Format format, final boolean clearStamps) {
+		final Channel c = _channels.get(identifier);
+		if (c == null) return;
+
+		_drainer.execute(new Runnable() {
 			@Override
 			public void run() {
-				List<Long> stamps = clearStamps ? 
-						_timeStamps.remove(identifier) : _timeStamps.get(identifier);
-				if (stamps == null) return;
-				
-				FileWriter fw = null;
+				long[] stamps = c.snapshot(clearStamps);
+				Sink sink = null;
 				try {
-					fw = new FileWriter(logFile);
-					fw.append(String.format("Times stamped for %s\n", identifier));
-					for (Long ts : stamps) {
-						fw.append(String.format("%d\n", ts));
+					if (format == Format.BINARY) {
+						sink = new BinarySink(logFile);
+					}
+					else {
+						CSVSink csv = new CSVSink(logFile);
+						csv._out.write(String.format("Times stamped for %s\n", identifier));
+						sink = csv;
+					}
+					for (long ts : stamps) {
+						sink.write(ts);
 					}
-					LogContext.getLogger().info("Timestamp log written to " + 
+					LogContext.getLogger().info("Timestamp log written to " +
 							logFile.getAbsolutePath());
-				} 
+				}
 				catch (IOException e) {
-					LogContext.getLogger().severe("Timestamp log failed for " + 
+					LogContext.getLogger().severe("Timestamp log failed for " +
 							logFile.getAbsolutePath());
 				}
+				finally {
+					close(sink);
+				}
 			}
-		};
-		
-		_executor.execute(r);
+		});
 	}
-	
+
 	/**
 	 * Clear all time stamps for the given identifier and return them in
-	 * a list.
+	 * a list, or null if there are none.  Not available while streaming.
 	 */
 	public static List<Long> clearStamps(String identifier) {
-		return _timeStamps.remove(identifier);
+		Channel c = _channels.get(identifier);
+		if (c == null) return null;
+
+		long[] stamps = c.snapshot(true);
+		List<Long> retval = new ArrayList<Long>(stamps.length);
+		for (long ts : stamps) {
+			retval.add(ts);
+		}
+		return retval;
+	}
+
+	private static Channel channel(String identifier) {
+		Channel c = _channels.get(identifier);
+		if (c == null) {
+			c = new Channel();
+			Channel prev = _channels.putIfAbsent(identifier, c);
+			if (prev != null) c = prev;
+		}
+		return c;
+	}
+
+	private static void close(Closeable c) {
+		if (c == null) return;
+		try {
+			c.close();
+		}
+		catch (IOException e) {
+			LogContext.getLogger().log(Level.WARNING, "Timestamp log close failed", e);
+		}
+	}
+
+	/**
+	 * Ring buffer for one identifier.  The stamping thread only advances
+	 * the head; the drainer reads up to it and advances the tail.
+	 */
+	private static class Channel {
+		private final long[] _ring = new long[CAPACITY];
+		private final AtomicLong _head = new AtomicLong();
+		private final AtomicLong _tail = new AtomicLong();
+		private final AtomicLong _dropped = new AtomicLong();
+
+		// drainer side, guarded by this
+		private long[] _held = new long[256];
+		private int _heldCount = 0;
+		private Sink _sink = null;
+
+		public void add(long stamp) {
+			long head = _head.get();
+			if (head - _tail.get() >= CAPACITY) {
+				_dropped.incrementAndGet();
+				return;
+			}
+			_ring[(int) (head & MASK)] = stamp;
+			// publishes the stamp to the drainer
+			_head.lazySet(head + 1);
+		}
+
+		/**
+		 * Move stamps from the ring to the sink, or to memory if none.
+		 */
+		public synchronized void drain() {
+			long tail = _tail.get();
+			long head = _head.get();
+			if (tail == head) return;
+
+			try {
+				for (long i = tail; i < head; i++) {
+					long stamp = _ring[(int) (i & MASK)];
+					if (_sink != null) _sink.write(stamp);
+					else hold(stamp);
+				}
+				if (_sink != null) _sink.flush();
+			}
+			catch (IOException e) {
+				LogContext.getLogger().log(Level.WARNING, "Timestamp stream failed", e);
+				close(_sink);
+				_sink = null;
+			}
+			_tail.lazySet(head);
+		}
+
+		private void hold(long stamp) {
+			if (_heldCount == _held.length) {
+				long[] tmp = new long[_held.length * 2];
+				System.arraycopy(_held, 0, tmp, 0, _heldCount);
+				_held = tmp;
+			}
+			_held[_heldCount++] = stamp;
+		}
+
+		/**
+		 * Drain, then copy the stamps held in memory.
+		 */
+		public synchronized long[] snapshot(boolean clear) {
+			drain();
+			long[] retval = new long[_heldCount];
+			System.arraycopy(_held, 0, retval, 0, _heldCount);
+			if (clear) _heldCount = 0;
+			return retval;
+		}
+
+		public synchronized void setSink(Sink sink) {
+			drain();
+			if (sink != null) {
+				try {
+					for (int i = 0; i < _heldCount; i++) {
+						sink.write(_held[i]);
+					}
+					sink.flush();
+				}
+				catch (IOException e) {
+					LogContext.getLogger().log(Level.WARNING, "Timestamp stream failed", e);
+				}
+				_heldCount = 0;
+			}
+			close(_sink);
+			_sink = sink;
+		}
+	}
+
+	/**
+	 * Destination for drained stamps.
+	 */
+	private interface Sink extends Closeable {
+		void write(long stamp) throws IOException;
+		void flush() throws IOException;
+	}
+
+	private static class CSVSink implements Sink {
+		private final Writer _out;
+
+		public CSVSink(File file) throws IOException {
+			_out = new BufferedWriter(new FileWriter(file));
+		}
+		@Override
+		public void write(long stamp) throws IOException {
+			_out.write(Long.toString(stamp));
+			_out.write('\n');
+		}
+		@Override
+		public void flush() throws IOException {
+			_out.flush();
+		}
+		@Override
+		public void close() throws IOException {
+			_out.close();
+		}
+	}
+
+	private static class BinarySink implements Sink {
+		private final DataOutputStream _out;
+
+		public BinarySink(File file) throws IOException {
+			_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		}
+		@Override
+		public void write(long stamp) throws IOException {
+			_out.writeLong(stamp);
+		}
+		@Override
+		public void flush() throws IOException {
+			_out.flush();
+		}
+		@Override
+		public void close() throws IOException {
+			_out.close();
+		}
 	}
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ * 
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av;
+
+/**
+ * Runs tasks at absolute {@link System#nanoTime()} deadlines on behalf of
+ * a {@link Scheduler}.  Implementations trade precision against CPU use
+ * differently; see {@link Scheduler.TimingMode}.
+ * 
+ * @author bguseman
+ *
+ */
+public interface TimingEngine {
+	/**
+	 * Run the task once at the given deadline.  Deadlines already passed
+	 * run as soon as possible.
+	 */
+	public void schedule(Runnable task, long deadlineNanos);
+	
+	/**
+	 * Run the task at the given deadline and every period after it.
+	 */
+	public void scheduleAtFixedRate(Runnable task, long firstDeadlineNanos, long periodNanos);
+	
+	/**
+	 * Cancel all pending tasks, including recurring ones.  Threads are kept
+	 * for reuse.  Tasks already handed to a thread may still run.
+	 */
+	public void cancelAll();
+	
+	/**
+	 * Cancel all pending tasks and release any threads.  The engine may 
+	 * not be used afterward.
+	 */
+	public void shutdown();
+}
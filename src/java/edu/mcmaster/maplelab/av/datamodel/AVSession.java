@@ -5,8 +5,12 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.Properties;
 
+import edu.mcmaster.maplelab.av.Scheduler.TimingMode;
+import edu.mcmaster.maplelab.av.media.MediaCache;
 import edu.mcmaster.maplelab.av.media.MediaParams;
 import edu.mcmaster.maplelab.av.media.MediaType;
+import edu.mcmaster.maplelab.av.media.SoundClip;
+import edu.mcmaster.maplelab.common.LogContext;
 import edu.mcmaster.maplelab.common.datamodel.Session;
 import edu.mcmaster.maplelab.common.datamodel.Trial;
 import edu.mcmaster.maplelab.common.datamodel.TrialLogger;
@@ -54,6 +58,13 @@ public abstract class AVSession<TM extends AVTrialManager<?, T>, T extends AVTri
 		synchronizeParameters,
 		audioPollWait,
 		showTickMarks,
+		mediaPreloadThreads,
+		mediaCacheMegabytes,
+		audioVoices,
+		audioStreamThreshold,
+		audioEngine,
+		timingEngine,
+		timingSpinMargin,
 	}
 	
 	private Properties _audioFileMetaData = null;
@@ -93,6 +104,73 @@ public abstract class AVSession<TM extends AVTrialManager<?, T>, T extends AVTri
 		return getInteger(ConfigKeys.audioPollWait, 0);
 	}
 	
+	/**
+	 * Get the maximum number of threads used to preload media files.
+	 * Defaults to the number of available processors.
+	 */
+	public int getMediaPreloadThreads() {
+		int threads = getInteger(ConfigKeys.mediaPreloadThreads, 
+				Runtime.getRuntime().availableProcessors());
+		return Math.max(1, threads);
+	}
+	
+	/**
+	 * Get the memory budget for cached media, in bytes.
+	 */
+	public long getMediaCacheBytes() {
+		long mb = getLong(ConfigKeys.mediaCacheMegabytes.name(), 
+				MediaCache.DEFAULT_MAX_BYTES / (1024 * 1024));
+		return Math.max(0, mb) * 1024 * 1024;
+	}
+	
+	/**
+	 * Get the number of OpenAL sources shared by all sounds, i.e. the
+	 * maximum number of sounds that can play at once.
+	 */
+	public int getAudioVoices() {
+		return Math.max(1, getInteger(ConfigKeys.audioVoices, 16));
+	}
+	
+	/**
+	 * Get the audio length (milliseconds) above which sounds are streamed
+	 * rather than loaded whole.
+	 */
+	public int getAudioStreamThreshold() {
+		return getInteger(ConfigKeys.audioStreamThreshold, SoundClip.DEFAULT_STREAM_THRESHOLD_MILLIS);
+	}
+	
+	/**
+	 * Determine if audio should be pre-rendered and played through an output
+	 * line ("line") rather than started through OpenAL on a timer ("openal",
+	 * the default).
+	 */
+	public boolean useLineAudio() {
+		return "line".equalsIgnoreCase(getString(ConfigKeys.audioEngine, "openal"));
+	}
+	
+	/**
+	 * Get the timing engine used to schedule stimuli ("executor", the 
+	 * default, or "hybrid").
+	 */
+	public TimingMode getTimingMode() {
+		String mode = getString(ConfigKeys.timingEngine, TimingMode.EXECUTOR.name());
+		try {
+			return TimingMode.valueOf(mode.trim().toUpperCase());
+		}
+		catch (IllegalArgumentException ex) {
+			LogContext.getLogger().warning("Unknown timing engine: " + mode);
+			return TimingMode.EXECUTOR;
+		}
+	}
+	
+	/**
+	 * Get the time (microseconds) before each deadline that the hybrid
+	 * timing engine spins rather than sleeps.
+	 */
+	public long getTimingSpinMarginMicros() {
+		return Math.max(0, getLong(ConfigKeys.timingSpinMargin, 2000));
+	}
+	
 	/**
 	 * Get whether or not to show tick marks on response sliders.
 	 */
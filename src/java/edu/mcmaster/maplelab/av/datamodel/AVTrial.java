@@ -2,6 +2,7 @@ package edu.mcmaster.maplelab.av.datamodel;
 
 import java.util.concurrent.TimeUnit;
 
+import edu.mcmaster.maplelab.av.LatenessHistogram;
 import edu.mcmaster.maplelab.av.media.Playable;
 import edu.mcmaster.maplelab.av.media.MediaType.MediaWrapper;
 import edu.mcmaster.maplelab.av.media.animation.AnimationSequence;
@@ -47,6 +48,9 @@ public abstract class AVTrial<T> extends AnimationTrial<T> {
 	/** Media start times at last run (approx). */
 	private Long _animationStart = null;
 	private Long _mediaStart = null;
+	/** Scheduling accuracy at last run. */
+	private LatenessHistogram _lateness = null;
+	private int _missedFrames = 0;
 
 	/**
 	 * Constructor.
@@ -205,6 +209,31 @@ public abstract class AVTrial<T> extends AnimationTrial<T> {
 		return _mediaStart;
 	}
 	
+	/**
+	 * Record scheduling accuracy for the last run of this trial.
+	 * 
+	 * @param lateness lateness of each scheduled callback
+	 * @param missedFrames number of display updates missed entirely
+	 */
+	public void markSchedulingStats(LatenessHistogram lateness, int missedFrames) {
+		_lateness = lateness;
+		_missedFrames = missedFrames;
+	}
+	
+	/**
+	 * Get the lateness of scheduled callbacks during the last run of this trial, if available.
+	 */
+	public LatenessHistogram getLastSchedulingLateness() {
+		return _lateness;
+	}
+	
+	/**
+	 * Get the number of display updates missed during the last run of this trial.
+	 */
+	public int getLastMissedFrames() {
+		return _missedFrames;
+	}
+	
 	@Override
 	public AnimationSequence getAnimationSequence() {
 		return _animationSequence;
@@ -9,6 +9,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import edu.mcmaster.maplelab.av.media.MediaCache;
+import edu.mcmaster.maplelab.av.media.MediaPreloader;
 import edu.mcmaster.maplelab.av.media.MediaType;
 import edu.mcmaster.maplelab.av.media.Playable;
 import edu.mcmaster.maplelab.av.media.MediaParams.MediaParamValue;
@@ -47,12 +49,26 @@ public abstract class AVTrialManager<S extends AVSession<?, T, ?>, T extends AVT
 		// get all total combinations - init counts if we need all
 		List<Map<String, MediaParamValue>> audioCombinations = MediaType.AUDIO.buildParameterMaps(session);
 		List<Map<String, MediaParamValue>> animationCombinations = MediaType.ANIMATION.buildParameterMaps(session);
-		if (session.includeAudioBlock() && !_initAudioCount) {
+		boolean needAudio = session.includeAudioBlock() || session.includeAudioAnimationBlock();
+		boolean needAnimation = session.includeAnimationBlock() || session.includeAudioAnimationBlock();
+		// preloading allocates sources for every audio file, so count them all
+		if (needAudio && !_initAudioCount) {
 			MediaType.AUDIO.initializeCount(audioCombinations.size());
 			MediaType.AUDIO.initializeWait(session.getAudioPollWait());
+			MediaType.AUDIO.initializeVoices(session.getAudioVoices());
 			_initAudioCount = true;
 		}
 		
+		// load all distinct media up front, so trial construction hits the caches
+		MediaCache.getInstance().setMaxBytes(session.getMediaCacheBytes());
+		MediaPreloader preloader = new MediaPreloader(session, session.getMediaPreloadThreads());
+		if (needAudio) preloader.addAll(MediaType.AUDIO, audioCombinations);
+		if (needAnimation) preloader.addAll(MediaType.ANIMATION, animationCombinations);
+		if (session.includeVideoBlock()) {
+			preloader.addAll(MediaType.VIDEO, MediaType.VIDEO.buildParameterMaps(session));
+		}
+		preloader.load(null);
+		
 		// iterate over number of repetitions
 		int trialCount = 0;
 		int reps = session.getBlockSetRepetitions();
@@ -200,13 +216,6 @@ public abstract class AVTrialManager<S extends AVSession<?, T, ?>, T extends AVT
 					audioCombinations.removeAll(audioRemovals);
 					animationCombinations.removeAll(animationRemovals);
 					
-					// init audio counts if not done
-					if (!_initAudioCount) {
-						MediaType.AUDIO.initializeCount(audioCombinations.size());
-						MediaType.AUDIO.initializeWait(session.getAudioPollWait());
-						_initAudioCount = true;
-					}
-					
 					// build trial list
 					for (int j = 0; j < innerReps; j++) {
 						List<T> innerTrials = new ArrayList<T>();
@@ -240,12 +249,6 @@ public abstract class AVTrialManager<S extends AVSession<?, T, ?>, T extends AVT
 					}
 				}
 				else {
-					if (!_initAudioCount) {
-						MediaType.AUDIO.initializeCount(audioCombinations.size());
-						MediaType.AUDIO.initializeWait(session.getAudioPollWait());
-						_initAudioCount = true;
-					}
-
 					// build trial list
 					for (int j = 0; j < innerReps; j++) {
 						List<T> innerTrials = new ArrayList<T>();
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media;
+
+import com.jogamp.openal.AL;
+import com.jogamp.openal.ALFactory;
+
+import edu.mcmaster.maplelab.common.LogContext;
+
+/**
+ * Fixed set of OpenAL sources ("voices") shared by all loaded sound
+ * buffers.  A buffer is bound to a free voice when played, and the voice
+ * is returned when playback ends.  Voices that have stopped playing are
+ * reclaimed even if never returned, and if every voice is busy the one
+ * that started playing longest ago is stolen.  Streaming voices are never
+ * reclaimed or stolen, since their owner keeps queueing buffers on them.
+ *
+ * Each acquisition gives a {@link Voice} token, and only the current token
+ * for a voice can return it, so an owner whose voice was taken can't free
+ * it from under the new owner.
+ *
+ * Since voices are independent of buffers, any number of sounds may be
+ * loaded without hitting driver source limits, and several sounds (or
+ * the same sound twice) can play at once.
+ *
+ * @author bguseman
+ */
+final class ALVoicePool {
+	/** Default number of voices. */
+	static final int DEFAULT_VOICES = 16;
+
+	/**
+	 * One acquisition of a voice.
+	 */
+	static final class Voice {
+		private final int _index;
+		private final int _source;
+
+		private Voice(int index, int source) {
+			_index = index;
+			_source = source;
+		}
+
+		/**
+		 * Get the OpenAL source id.
+		 */
+		int getSource() {
+			return _source;
+		}
+	}
+
+	private final AL _al;
+	private final int[] _sources;
+	private final int[] _buffers;
+	/** Current holder of each voice, or null if free. */
+	private final Voice[] _owners;
+	/** Voices with buffers queued by a stream, which may stop briefly on underrun. */
+	private final boolean[] _streaming;
+	private final long[] _started;
+	private final int[] _state = new int[1];
+
+	ALVoicePool(int count) {
+		count = Math.max(1, count);
+		_al = ALFactory.getAL();
+		_sources = new int[count];
+		_buffers = new int[count];
+		_owners = new Voice[count];
+		_streaming = new boolean[count];
+		_started = new long[count];
+		_al.alGenSources(count, _sources, 0);
+	}
+
+	/**
+	 * Get the number of voices.
+	 */
+	int size() {
+		return _sources.length;
+	}
+
+	/**
+	 * Take a voice for playing the given buffer.  The voice is rewound,
+	 * with the buffer attached, and must be returned with
+	 * {@link #release(Voice)}.
+	 *
+	 * @return the voice, or null if every voice is streaming
+	 */
+	synchronized Voice acquire(int buffer) {
+		return acquire(buffer, false);
+	}
+
+	/**
+	 * Take a voice for streaming.  The voice has no buffer attached, so
+	 * buffers may be queued on it, and it is not reclaimed when stopped
+	 * or stolen.  It must be returned with {@link #release(Voice)}.
+	 *
+	 * @return the voice, or null if every voice is streaming
+	 */
+	synchronized Voice acquireStreaming() {
+		return acquire(0, true);
+	}
+
+	private Voice acquire(int buffer, boolean streaming) {
+		int voice = -1;
+		int oldest = -1;
+		for (int i = 0; i < _sources.length && voice < 0; i++) {
+			if (_owners[i] == null || !_streaming[i] && isStopped(i)) voice = i;
+			else if (!_streaming[i] && (oldest < 0 || _started[i] < _started[oldest])) oldest = i;
+		}
+		if (voice < 0) {
+			if (oldest < 0) {
+				LogContext.getLogger().warning(String.format(
+						"All %d audio voices streaming; not playing", _sources.length));
+				return null;
+			}
+			LogContext.getLogger().warning(String.format(
+					"All %d audio voices busy; stopping the oldest", _sources.length));
+			voice = oldest;
+		}
+
+		int source = _sources[voice];
+		_al.alSourceStop(source);
+		_al.alSourcei(source, AL.AL_BUFFER, buffer);
+		_al.alSourceRewind(source);
+		_buffers[voice] = buffer;
+		_owners[voice] = new Voice(voice, source);
+		_streaming[voice] = streaming;
+		_started[voice] = System.nanoTime();
+		return _owners[voice];
+	}
+
+	/**
+	 * Determine if the given voice is still held, i.e. has not been
+	 * returned, reclaimed or stolen.
+	 */
+	synchronized boolean isHeld(Voice voice) {
+		return _owners[voice._index] == voice;
+	}
+
+	/**
+	 * Return a voice taken by {@link #acquire(int)} or {@link #acquireStreaming()}.
+	 * Ignored if the voice has since been reclaimed for someone else.
+	 */
+	synchronized void release(Voice voice) {
+		if (_owners[voice._index] == voice) _owners[voice._index] = null;
+	}
+
+	/**
+	 * Stop and detach the given buffer from any voice using it, so the
+	 * buffer may be deleted.
+	 */
+	synchronized void detach(int buffer) {
+		for (int i = 0; i < _sources.length; i++) {
+			if (_buffers[i] == buffer) {
+				_al.alSourceStop(_sources[i]);
+				_al.alSourcei(_sources[i], AL.AL_BUFFER, 0);
+				_buffers[i] = 0;
+				_owners[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Stop and delete all voices.  The pool may not be used afterward.
+	 */
+	synchronized void dispose() {
+		for (int i = 0; i < _sources.length; i++) {
+			_al.alSourceStop(_sources[i]);
+		}
+		_al.alDeleteSources(_sources.length, _sources, 0);
+	}
+
+	private boolean isStopped(int i) {
+		_al.alGetSourcei(_sources[i], AL.AL_SOURCE_STATE, _state, 0);
+		return _state[0] == AL.AL_STOPPED;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import edu.mcmaster.maplelab.common.LogContext;
+
+/**
+ * A trial's audio rendered ahead of time as one block of 16 bit PCM:
+ * leading silence for the onset delay, followed by the sound at its
+ * playback gain.  Written to an output line as a single stream (see
+ * {@link LineAudioEngine}), the sound starts exactly the requested number
+ * of samples after the stream does, with no thread scheduling involved.
+ *
+ * Decoded samples are kept in the {@link MediaCache}, so rendering a
+ * timeline for a sound already used only costs the copy.
+ *
+ * @author bguseman
+ */
+public final class AudioTimeline {
+
+	/**
+	 * Render the given sound, delayed by the given lead time.
+	 *
+	 * @param source sound to render
+	 * @param leadNanos silence before the sound starts; a negative value
+	 *        can't be honoured, so is logged and treated as 0
+	 */
+	public static AudioTimeline render(PCMSource source, long leadNanos) throws IOException {
+		Decoded pcm = decode(source);
+		AudioFormat format = pcm._format;
+		int frameSize = format.getFrameSize();
+		if (leadNanos < 0) {
+			LogContext.getLogger().warning(String.format(
+					"Audio lead for %s is negative (%d ns); starting it at 0", source.name(), leadNanos));
+		}
+		long leadFrames = Math.round(Math.max(0, leadNanos) * (double) format.getFrameRate() /
+				TimeUnit.SECONDS.toNanos(1));
+		int leadBytes = (int) leadFrames * frameSize;
+
+		byte[] data = new byte[leadBytes + pcm._data.length];
+		float gain = source.getEffectiveGain();
+		if (Float.compare(1.0f, gain) == 0) {
+			System.arraycopy(pcm._data, 0, data, leadBytes, pcm._data.length);
+		}
+		else {
+			// 16 bit signed little endian
+			for (int i = 0; i + 1 < pcm._data.length; i += 2) {
+				int sample = (short) ((pcm._data[i] & 0xff) | (pcm._data[i + 1] << 8));
+				sample = Math.round(sample * gain);
+				sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+				data[leadBytes + i] = (byte) sample;
+				data[leadBytes + i + 1] = (byte) (sample >> 8);
+			}
+		}
+		return new AudioTimeline(source.name(), format, data, leadFrames);
+	}
+
+	/**
+	 * Get the decoded samples for the given sound, from the cache if possible.
+	 */
+	private static Decoded decode(final PCMSource source) throws IOException {
+		String key = MediaCache.key("pcm", source.getSourceFile());
+		Decoded retval = MediaCache.getInstance().get(key, new MediaCache.Loader<Decoded, IOException>() {
+			@Override
+			public Decoded load() throws IOException {
+				return decodeFully(source);
+			}
+			@Override
+			public long sizeOf(Decoded value) {
+				return value._data.length;
+			}
+			@Override
+			public void release(Decoded value) {}
+		}, false);
+		if (retval == null) throw new IOException("Unable to decode audio " + source.name());
+		return retval;
+	}
+
+	/**
+	 * Read all samples, converted to 16 bit signed little endian.  A
+	 * conversion Java Sound doesn't support (on some versions, from more
+	 * than two channels) is reported as an error naming the file.
+	 */
+	private static Decoded decodeFully(PCMSource source) throws IOException {
+		AudioInputStream stream = null;
+		try {
+			stream = source.openStream();
+			AudioFormat f = stream.getFormat();
+			AudioFormat target = new AudioFormat(f.getSampleRate(), 16,
+					Math.min(2, f.getChannels()), true, false);
+			if (!target.matches(f)) {
+				try {
+					stream = AudioSystem.getAudioInputStream(target, stream);
+				}
+				catch (IllegalArgumentException ex) {
+					throw new IOException(String.format("Unable to convert %s from %s to %s",
+							source.getSourceFile(), f, target), ex);
+				}
+			}
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[16384];
+			int n;
+			while ((n = stream.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+			return new Decoded(target, out.toByteArray());
+		}
+		catch (UnsupportedAudioFileException ex) {
+			throw new IOException("Unsupported audio format: " + source.name(), ex);
+		}
+		finally {
+			if (stream != null) stream.close();
+		}
+	}
+
+	private final String _name;
+	private final AudioFormat _format;
+	private final byte[] _data;
+	private final long _leadFrames;
+
+	private AudioTimeline(String name, AudioFormat format, byte[] data, long leadFrames) {
+		_name = name;
+		_format = format;
+		_data = data;
+		_leadFrames = leadFrames;
+	}
+
+	/**
+	 * Get the name of the rendered sound.
+	 */
+	public String name() {
+		return _name;
+	}
+
+	public AudioFormat getFormat() {
+		return _format;
+	}
+
+	/**
+	 * Get the number of silent frames before the sound starts.
+	 */
+	public long getLeadFrames() {
+		return _leadFrames;
+	}
+
+	/**
+	 * Get the time from stream start to sound onset, rounded to the frame.
+	 */
+	public long getLeadNanos() {
+		return (long) (_leadFrames * (double) TimeUnit.SECONDS.toNanos(1) / _format.getFrameRate());
+	}
+
+	/**
+	 * Get the total length, including the lead.
+	 */
+	public long getDurationNanos() {
+		long frames = _data.length / _format.getFrameSize();
+		return (long) (frames * (double) TimeUnit.SECONDS.toNanos(1) / _format.getFrameRate());
+	}
+
+	/**
+	 * Rendered samples.  Not copied; must not be modified.
+	 */
+	byte[] getData() {
+		return _data;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s (+%d frames)", _name, _leadFrames);
+	}
+
+	/**
+	 * Fully decoded sound.
+	 */
+	private static class Decoded {
+		private final AudioFormat _format;
+		private final byte[] _data;
+
+		public Decoded(AudioFormat format, byte[] data) {
+			_format = format;
+			_data = data;
+		}
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+import edu.mcmaster.maplelab.common.LogContext;
+
+/**
+ * Audio engine that plays pre-rendered {@link AudioTimeline}s through a
+ * single output line, as an alternative to starting OpenAL sources from a
+ * timer thread.  Each timeline is given the time its sound should be heard,
+ * and is preceded by as much silence as the line position says is needed to
+ * reach that time, so the onset is set by sample count rather than by when
+ * the writing thread wakes up.  The time the onset actually played is then
+ * read back from the line's frame position, so it includes the buffering
+ * the line adds.
+ *
+ * Timelines are written one after another by a dedicated thread.  The
+ * line is opened on first use and kept open, and is only reopened if a
+ * timeline has a different format.  The output defaults to the system's
+ * {@link SourceDataLine}; a {@link FileOutput} may be substituted to
+ * capture exactly what would have been played.
+ *
+ * @author bguseman
+ */
+public final class LineAudioEngine {
+	/** Bytes written per call, so the line is fed steadily. */
+	private static final int WRITE_CHUNK = 4096;
+	/** How long to keep waiting for an onset to play beyond when it's due. */
+	private static final long ONSET_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static LineAudioEngine _instance = null;
+
+	/**
+	 * Get the shared engine.
+	 */
+	public static synchronized LineAudioEngine getInstance() {
+		if (_instance == null) _instance = new LineAudioEngine();
+		return _instance;
+	}
+
+	/**
+	 * Destination for rendered samples.
+	 */
+	public interface Output {
+		/**
+		 * Prepare for writing samples in the given format.
+		 */
+		void open(AudioFormat format) throws LineUnavailableException;
+		/**
+		 * Write samples, blocking until accepted.
+		 */
+		void write(byte[] data, int offset, int length);
+		/**
+		 * Block until all written samples have been played.
+		 */
+		void drain();
+		/**
+		 * Get the number of frames played since the output was opened.
+		 */
+		long getFramePosition();
+		/**
+		 * Release the output.  It may be opened again afterward.
+		 */
+		void close();
+	}
+
+	/**
+	 * Receiver of the time a timeline's sound was heard.
+	 */
+	public interface OnsetListener {
+		/**
+		 * Called on the writer thread once the onset has played.
+		 *
+		 * @param nanos onset time, on the {@link System#nanoTime()} clock
+		 */
+		void onsetPlayed(long nanos);
+	}
+
+	private final ExecutorService _writer;
+	private Output _output = new LineOutput();
+	private AudioFormat _openFormat = null;
+	/** Frames written since the output was opened. */
+	private long _written = 0;
+	private final byte[] _silence = new byte[WRITE_CHUNK];
+
+	private LineAudioEngine() {
+		_writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "audio-line-writer");
+				t.setDaemon(true);
+				t.setPriority(Thread.MAX_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Replace the output, closing the current one.  Takes effect after
+	 * any timelines already queued.
+	 */
+	public void setOutput(final Output output) {
+		_writer.submit(new Runnable() {
+			@Override
+			public void run() {
+				closeOutput();
+				_output = output;
+			}
+		});
+	}
+
+	/**
+	 * Close the output.  It is reopened if another timeline is played.
+	 */
+	public void close() {
+		_writer.submit(new Runnable() {
+			@Override
+			public void run() {
+				closeOutput();
+			}
+		});
+	}
+
+	/**
+	 * Queue the given timeline for playback, with its onset heard as soon
+	 * as possible.
+	 *
+	 * @param timeline samples to play
+	 * @param listener notified once all samples have been played; may be null
+	 * @return future completed after the listener is notified
+	 */
+	public Future<?> play(AudioTimeline timeline, PlayableListener listener) {
+		return play(timeline, System.nanoTime(), null, listener);
+	}
+
+	/**
+	 * Queue the given timeline for playback, with its onset heard at the 
+	 * given time.  It must be queued ahead of that time by at least the 
+	 * time it takes the writer to get to it; if it is late, the onset is 
+	 * heard as soon as possible and a warning is logged.
+	 *
+	 * @param timeline samples to play
+	 * @param onsetNanos time the sound should be heard, on the 
+	 *        {@link System#nanoTime()} clock
+	 * @param onset notified of when the onset actually played; may be null
+	 * @param listener notified once all samples have been played; may be null
+	 * @return future completed after the listener is notified
+	 */
+	public Future<?> play(final AudioTimeline timeline, final long onsetNanos, 
+			final OnsetListener onset, final PlayableListener listener) {
+		return _writer.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					write(timeline, onsetNanos, onset);
+				}
+				finally {
+					if (listener != null) listener.playableEnded();
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Write silence until the onset time, then the whole timeline, and wait
+	 * for it to play.  Called on the writer thread only.
+	 */
+	private void write(AudioTimeline timeline, long onsetNanos, OnsetListener onset) 
+			throws LineUnavailableException {
+		AudioFormat format = timeline.getFormat();
+		if (_openFormat == null || !_openFormat.matches(format)) {
+			closeOutput();
+			_output.open(format);
+			_openFormat = format;
+			_written = 0;
+		}
+		int frameSize = format.getFrameSize();
+		double framesPerNano = format.getFrameRate() / TimeUnit.SECONDS.toNanos(1);
+
+		// frames already queued play first; pad the rest of the way to the onset
+		long queued = _written - _output.getFramePosition();
+		long pad = Math.round((onsetNanos - System.nanoTime()) * framesPerNano) - 
+				queued - timeline.getLeadFrames();
+		if (pad < 0) {
+			LogContext.getLogger().warning(String.format("Audio onset for %s %d us late", 
+					timeline.name(), Math.round(-pad / framesPerNano / 1000)));
+			pad = 0;
+		}
+		for (long bytes = pad * frameSize; bytes > 0; bytes -= _silence.length) {
+			// whole frames, since the chunk is a multiple of any frame size used
+			writeFrames(_silence, 0, (int) Math.min(_silence.length, bytes), frameSize);
+		}
+
+		long onsetFrame = _written + timeline.getLeadFrames();
+		boolean heard = onset == null;
+		byte[] data = timeline.getData();
+		for (int off = 0; off < data.length; off += WRITE_CHUNK) {
+			writeFrames(data, off, Math.min(WRITE_CHUNK, data.length - off), frameSize);
+			if (!heard) heard = checkOnset(onsetFrame, framesPerNano, onset);
+		}
+
+		// short sounds may be all written before the onset plays
+		long timeout = System.nanoTime() + ONSET_TIMEOUT_NANOS + 
+				Math.round((onsetFrame - _output.getFramePosition()) / framesPerNano);
+		while (!heard && System.nanoTime() < timeout) {
+			try {
+				Thread.sleep(1);
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			heard = checkOnset(onsetFrame, framesPerNano, onset);
+		}
+		if (!heard) {
+			LogContext.getLogger().warning("Audio onset time unknown for " + timeline.name());
+		}
+		_output.drain();
+	}
+
+	private void writeFrames(byte[] data, int offset, int length, int frameSize) {
+		_output.write(data, offset, length);
+		_written += length / frameSize;
+	}
+
+	/**
+	 * Notify the listener if the line has played the given frame, with the
+	 * time it was played.
+	 *
+	 * @return true if notified
+	 */
+	private boolean checkOnset(long onsetFrame, double framesPerNano, OnsetListener onset) {
+		long position = _output.getFramePosition();
+		long now = System.nanoTime();
+		if (position < onsetFrame) return false;
+		onset.onsetPlayed(now - Math.round((position - onsetFrame) / framesPerNano));
+		return true;
+	}
+
+	private void closeOutput() {
+		if (_openFormat == null) return;
+		_openFormat = null;
+		try {
+			_output.close();
+		}
+		catch (RuntimeException ex) {
+			LogContext.getLogger().log(Level.WARNING, "Unable to close audio output", ex);
+		}
+	}
+
+	/**
+	 * Output to the system's default line for the format.
+	 */
+	public static class LineOutput implements Output {
+		private SourceDataLine _line = null;
+
+		@Override
+		public void open(AudioFormat format) throws LineUnavailableException {
+			_line = AudioSystem.getSourceDataLine(format);
+			_line.open(format);
+			_line.start();
+			LogContext.getLogger().fine(String.format("Opened audio line %s, buffer %d bytes",
+					format, _line.getBufferSize()));
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) {
+			_line.write(data, offset, length);
+		}
+
+		@Override
+		public void drain() {
+			_line.drain();
+		}
+
+		@Override
+		public long getFramePosition() {
+			return _line.getLongFramePosition();
+		}
+
+		@Override
+		public void close() {
+			if (_line == null) return;
+			_line.close();
+			_line = null;
+		}
+	}
+
+	/**
+	 * Stand-in for a line that collects everything written and saves it
+	 * as a WAV file when closed, so onsets can be checked sample by sample.
+	 * Writes never block.
+	 */
+	public static class FileOutput implements Output {
+		private final File _file;
+		private final ByteArrayOutputStream _data = new ByteArrayOutputStream();
+		private AudioFormat _format = null;
+		private Long _started = null;
+
+		public FileOutput(File file) {
+			_file = file;
+		}
+
+		@Override
+		public void open(AudioFormat format) {
+			_format = format;
+			_data.reset();
+			_started = null;
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) {
+			if (_started == null) _started = System.nanoTime();
+			_data.write(data, offset, length);
+		}
+
+		@Override
+		public void drain() {}
+
+		/**
+		 * Written frames count as played at the format's rate from when the
+		 * first was written, as a line that never underruns would play them.
+		 */
+		@Override
+		public long getFramePosition() {
+			long written = _data.size() / _format.getFrameSize();
+			if (_started == null) return 0;
+			long elapsed = Math.round((System.nanoTime() - _started) * 
+					(double) _format.getFrameRate() / TimeUnit.SECONDS.toNanos(1));
+			return Math.min(written, elapsed);
+		}
+
+		@Override
+		public void close() {
+			byte[] bytes = _data.toByteArray();
+			AudioInputStream stream = new AudioInputStream(new ByteArrayInputStream(bytes),
+					_format, bytes.length / _format.getFrameSize());
+			try {
+				AudioSystem.write(stream, AudioFileFormat.Type.WAVE, _file);
+			}
+			catch (IOException ex) {
+				LogContext.getLogger().log(Level.WARNING, "Unable to write audio to " + _file, ex);
+			}
+			_data.reset();
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+
+import edu.mcmaster.maplelab.common.LogContext;
+
+/**
+ * Shared, thread safe cache of loaded media.  Entries are keyed by
+ * canonical file path plus any parameters that affect loading (see
+ * {@link #key(String, File, Object...)}), and a given key is only ever
+ * loaded by one thread at a time; other threads wait for the result.
+ *
+ * The total size of all entries is held to a byte budget.  When it is
+ * exceeded, least recently used entries are evicted and their native
+ * resources released (see {@link Loader#release(Object)}).  Entries in
+ * the current pin set - everything accessed since the last call to
+ * {@link #newPinSet()} - are never evicted.  A new pin set is started as
+ * each metablock is preloaded (see {@link MediaPreloader}), so media held
+ * by the trials of the current metablock can't be released under them.
+ * For the same reason, pinned values dropped by a reload, and values whose
+ * entry was replaced while they loaded, are released when the next pin
+ * set starts rather than straight away.
+ *
+ * @author bguseman
+ */
+public final class MediaCache {
+	/** Default budget, in bytes. */
+	public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+	private static final MediaCache _instance = new MediaCache(DEFAULT_MAX_BYTES);
+
+	/**
+	 * Get the shared media cache.
+	 */
+	public static MediaCache getInstance() {
+		return _instance;
+	}
+
+	/**
+	 * Build a cache key from the given media type name, file and load parameters.
+	 */
+	public static String key(String type, File file, Object... params) {
+		String path;
+		try {
+			path = file.getCanonicalPath();
+		}
+		catch (IOException ex) {
+			path = file.getAbsolutePath();
+		}
+
+		StringBuilder sb = new StringBuilder(type).append(':').append(path);
+		for (Object o : params) {
+			sb.append('|').append(o);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Loads a cache value and knows how to measure and dispose of it.
+	 */
+	public interface Loader<V, E extends Exception> {
+		/**
+		 * Load the value; null indicates failure, and is not cached.
+		 */
+		V load() throws E;
+		/**
+		 * Estimated memory held by the value, in bytes.
+		 */
+		long sizeOf(V value);
+		/**
+		 * Free any native resources held by an evicted value.
+		 */
+		void release(V value);
+	}
+
+	/** All entries, in least to most recently used order. */
+	private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	/** Current pin set; 0 if none has been started, in which case nothing is pinned. */
+	private int _pinSet = 0;
+	/** Dropped entries that may still be in use, released with the next pin set. */
+	private List<Entry> _deferred = new ArrayList<Entry>();
+	private long _maxBytes;
+	private long _totalBytes = 0;
+
+	private MediaCache(long maxBytes) {
+		_maxBytes = maxBytes;
+	}
+
+	/**
+	 * Set the byte budget, evicting entries if necessary.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		List<Entry> evicted;
+		synchronized (this) {
+			_maxBytes = maxBytes;
+			evicted = evict(null);
+		}
+		release(evicted);
+	}
+
+	public synchronized long getMaxBytes() {
+		return _maxBytes;
+	}
+
+	/**
+	 * Get the estimated size of all cached values, in bytes.
+	 */
+	public synchronized long getTotalBytes() {
+		return _totalBytes;
+	}
+
+	/**
+	 * Get the value for the given key, loading it if not present.
+	 *
+	 * @param key cache key
+	 * @param loader used if the value must be loaded
+	 * @param reload if true, any existing value is dropped and reloaded
+	 * @return the value, or null if it couldn't be loaded
+	 */
+	@SuppressWarnings("unchecked")
+	public <V, E extends Exception> V get(String key, Loader<V, E> loader, boolean reload) throws E {
+		Entry e;
+		boolean owner = false;
+		List<Entry> dropped = null;
+		synchronized (this) {
+			e = _entries.get(key);
+			if (e != null && reload && e._latch.getCount() == 0) {
+				dropped = new ArrayList<Entry>(1);
+				if (remove(e)) dropped.add(e);
+				e = null;
+			}
+			if (e == null) {
+				e = new Entry(key, loader);
+				_entries.put(key, e);
+				owner = true;
+			}
+			e._pinSet = _pinSet;
+		}
+		release(dropped);
+
+		if (!owner) {
+			Object value = e.await();
+			if (value != null) return (V) value;
+			if (Thread.currentThread().isInterrupted()) return null;
+			// the other load failed, so try for ourselves
+			return get(key, loader, false);
+		}
+
+		V value = null;
+		try {
+			value = loader.load();
+		}
+		finally {
+			release(complete(e, value, value != null ? loader.sizeOf(value) : 0));
+		}
+		return value;
+	}
+
+	/**
+	 * Get the value for the given key, if loaded.
+	 */
+	public synchronized Object getIfPresent(String key) {
+		Entry e = _entries.get(key);
+		return e != null ? e._value : null;
+	}
+
+	/**
+	 * Start a new pin set.  Entries accessed only before this call are no
+	 * longer protected from eviction.
+	 */
+	public void newPinSet() {
+		List<Entry> evicted;
+		synchronized (this) {
+			_pinSet++;
+			evicted = _deferred;
+			_deferred = new ArrayList<Entry>();
+			List<Entry> more = evict(null);
+			if (more != null) evicted.addAll(more);
+		}
+		release(evicted);
+	}
+
+	/**
+	 * Record the result of a load, and make room for it.
+	 *
+	 * @return evicted entries, to be released
+	 */
+	private synchronized List<Entry> complete(Entry e, Object value, long size) {
+		e._value = value;
+		e._latch.countDown();
+		if (_entries.get(e._key) != e) {
+			// dropped by a reload while loading; caller still gets the value
+			if (value != null) _deferred.add(e);
+			return null;
+		}
+		if (value == null) {
+			_entries.remove(e._key);
+			return null;
+		}
+
+		e._size = size;
+		_totalBytes += size;
+		return evict(e);
+	}
+
+	/**
+	 * Remove the given entry.  If pinned, it is released with the next pin set.
+	 *
+	 * @return true if the entry may be released now
+	 */
+	private boolean remove(Entry e) {
+		_entries.remove(e._key);
+		if (e._value == null) return false;
+		_totalBytes -= e._size;
+		if (isPinned(e)) {
+			_deferred.add(e);
+			return false;
+		}
+		return true;
+	}
+
+	private boolean isPinned(Entry e) {
+		return _pinSet != 0 && e._pinSet == _pinSet;
+	}
+
+	/**
+	 * Remove least recently used, unpinned entries until within budget.
+	 *
+	 * @param keep entry that must not be evicted (e.g. just loaded), or null
+	 */
+	private List<Entry> evict(Entry keep) {
+		if (_totalBytes <= _maxBytes) return null;
+
+		List<Entry> evicted = new ArrayList<Entry>();
+		Iterator<Entry> it = _entries.values().iterator();
+		while (_totalBytes > _maxBytes && it.hasNext()) {
+			Entry e = it.next();
+			if (e == keep || e._value == null || isPinned(e)) continue;
+			it.remove();
+			_totalBytes -= e._size;
+			evicted.add(e);
+		}
+
+		if (_totalBytes > _maxBytes) {
+			LogContext.getLogger().fine(String.format(
+					"Media cache over budget: %d of %d bytes pinned or loading",
+					_totalBytes, _maxBytes));
+		}
+		return evicted;
+	}
+
+	/**
+	 * Release evicted entries.  Called outside the lock, since releasing
+	 * native resources may block.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void release(List<Entry> evicted) {
+		if (evicted == null) return;
+		for (Entry e : evicted) {
+			try {
+				((Loader) e._loader).release(e._value);
+				LogContext.getLogger().fine("Evicted media " + e._key);
+			}
+			catch (RuntimeException ex) {
+				LogContext.getLogger().log(Level.WARNING, "Unable to release media " + e._key, ex);
+			}
+		}
+	}
+
+	private static class Entry {
+		private final String _key;
+		private final Loader<?, ?> _loader;
+		private final CountDownLatch _latch = new CountDownLatch(1);
+		private volatile Object _value = null;
+		private long _size = 0;
+		private int _pinSet = 0;
+
+		public Entry(String key, Loader<?, ?> loader) {
+			_key = key;
+			_loader = loader;
+		}
+
+		/**
+		 * Wait for the owning thread to finish loading.
+		 */
+		public Object await() {
+			try {
+				_latch.await();
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			return _value;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import edu.mcmaster.maplelab.av.datamodel.AVSession;
+import edu.mcmaster.maplelab.av.media.MediaParams.MediaParamValue;
+import edu.mcmaster.maplelab.common.LogContext;
+import edu.mcmaster.maplelab.common.util.ProgressListener;
+
+/**
+ * Loads the distinct set of media files needed for a group of trials
+ * ahead of time, so that trial construction only hits warm caches.
+ * Media is collected with {@link #add(MediaType, Collection)} (duplicates
+ * are ignored), then decoded and parsed on a bounded pool of worker
+ * threads by {@link #load(ProgressListener)}.
+ *
+ * Loading starts a new {@link MediaCache} pin set, so the preloaded media
+ * (and anything else used until the next preload) can't be evicted.
+ *
+ * Media types that can't be loaded off the calling thread (see
+ * {@link MediaType#supportsParallelLoad()}) are loaded serially, after
+ * the parallel work has been submitted.
+ *
+ * @author bguseman
+ */
+public class MediaPreloader {
+	private static final AtomicInteger _poolNumber = new AtomicInteger(0);
+
+	private final AVSession<?, ?, ?> _session;
+	private final int _maxThreads;
+	private final Map<String, Request> _requests = new LinkedHashMap<String, Request>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param session session providing media locations
+	 * @param maxThreads maximum number of loader threads
+	 */
+	public MediaPreloader(AVSession<?, ?, ?> session, int maxThreads) {
+		_session = session;
+		_maxThreads = Math.max(1, maxThreads);
+	}
+
+	/**
+	 * Add the media file identified by the given type and parameter values.
+	 */
+	public void add(MediaType<?> type, Collection<MediaParamValue> values) {
+		String fileName = type.getFileName(_session, values);
+		if (fileName == null) return;
+
+		String key = type.name() + ":" + fileName;
+		if (!_requests.containsKey(key)) {
+			_requests.put(key, new Request(type, fileName));
+		}
+	}
+
+	/**
+	 * Add all media files identified by the given parameter combinations.
+	 */
+	public void addAll(MediaType<?> type, Collection<Map<String, MediaParamValue>> combinations) {
+		for (Map<String, MediaParamValue> map : combinations) {
+			add(type, map.values());
+		}
+	}
+
+	/**
+	 * Get the number of distinct media files to load.
+	 */
+	public int size() {
+		return _requests.size();
+	}
+
+	/**
+	 * Load all added media, blocking until done.  Missing or invalid files
+	 * are logged by the media type and otherwise skipped.
+	 *
+	 * @param listener receives progress updates; may be called from
+	 *        worker threads
+	 */
+	public void load(ProgressListener listener) {
+		if (listener == null) listener = new ProgressListener.NullProgressListener();
+		MediaCache.getInstance().newPinSet();
+
+		int total = _requests.size();
+		if (total == 0) {
+			listener.progressComplete();
+			return;
+		}
+
+		List<Request> parallel = new ArrayList<Request>();
+		List<Request> serial = new ArrayList<Request>();
+		for (Request r : _requests.values()) {
+			if (r._type.supportsParallelLoad()) parallel.add(r);
+			else serial.add(r);
+		}
+
+		long start = System.currentTimeMillis();
+		listener.messageChanged(String.format("Loading %d media files...", total));
+		listener.percentChanged(0);
+
+		int done = 0;
+		ExecutorService pool = null;
+		try {
+			ExecutorCompletionService<Request> completion = null;
+			if (!parallel.isEmpty()) {
+				pool = Executors.newFixedThreadPool(Math.min(_maxThreads, parallel.size()),
+						new LoaderThreadFactory());
+				completion = new ExecutorCompletionService<Request>(pool);
+				for (Request r : parallel) {
+					completion.submit(r, r);
+				}
+			}
+
+			for (Request r : serial) {
+				r.run();
+				listener.percentChanged(percent(++done, total));
+			}
+
+			for (int i = 0; i < parallel.size(); i++) {
+				try {
+					completion.take().get();
+				}
+				catch (ExecutionException ex) {
+					LogContext.getLogger().log(Level.WARNING, "Media preload failed", ex.getCause());
+				}
+				listener.percentChanged(percent(++done, total));
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			if (pool != null) pool.shutdownNow();
+			listener.progressComplete();
+		}
+
+		LogContext.getLogger().fine(String.format("Preloaded %d of %d media files in %d ms",
+				done, total, System.currentTimeMillis() - start));
+	}
+
+	private static int percent(int done, int total) {
+		return (int) (100L * done / total);
+	}
+
+	/**
+	 * A single media file to be loaded.
+	 */
+	private class Request implements Runnable {
+		private final MediaType<?> _type;
+		private final String _fileName;
+
+		public Request(MediaType<?> type, String fileName) {
+			_type = type;
+			_fileName = fileName;
+		}
+
+		@Override
+		public void run() {
+			_type.loadMediaObject(_session, _fileName);
+		}
+	}
+
+	/**
+	 * Creates named daemon threads, so an abandoned load never holds up exit.
+	 */
+	private static class LoaderThreadFactory implements ThreadFactory {
+		private final int _pool = _poolNumber.incrementAndGet();
+		private final AtomicInteger _count = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, String.format("media-preload-%d-%d", _pool,
+					_count.incrementAndGet()));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -55,7 +55,8 @@ public abstract class MediaType<T extends MediaSource> {
 		protected Playable findMediaObject(String filename, File directory, 
 				AVSession<?, ?, ?> session, boolean forceReload) {
 			float volume = session.getPlaybackGain();
-			return SoundClip.findPlayable(filename, directory, volume, forceReload);
+			return SoundClip.findPlayable(filename, directory, volume, 
+					session.getAudioStreamThreshold(), forceReload);
 		}
 		@Override
 		public void initializeCount(int count) {
@@ -65,6 +66,10 @@ public abstract class MediaType<T extends MediaSource> {
 		public void initializeWait(int waitMillis) {
 			SoundClip.initializePlayPollWait(waitMillis);
 		}
+		@Override
+		public void initializeVoices(int count) {
+			SoundClip.initializeVoiceCount(count);
+		}
 	};
 	public static final MediaType<Playable> VIDEO = new MediaType<Playable>("video", 
 				ParameterKeys.videoParams, ParameterKeys.videoFileFormat) {
@@ -83,9 +88,16 @@ public abstract class MediaType<T extends MediaSource> {
 			return QTVideoClip.findPlayable(filename, directory, volume, forceReload);
 		}
 		@Override
+		protected boolean supportsParallelLoad() {
+			// QTKit movies must be created on the thread that uses them
+			return false;
+		}
+		@Override
 		public void initializeCount(int count) {}
 		@Override
 		public void initializeWait(int waitMillis) {}
+		@Override
+		public void initializeVoices(int count) {}
 	};
 	public static final MediaType<AnimationSequence> ANIMATION = 
 				new MediaType<AnimationSequence>("animation", ParameterKeys.animationParams, 
@@ -116,6 +128,8 @@ public abstract class MediaType<T extends MediaSource> {
 		public void initializeCount(int count) {}
 		@Override
 		public void initializeWait(int waitMillis) {}
+		@Override
+		public void initializeVoices(int count) {}
 	};
 	
 	private final String _name;
@@ -286,12 +300,21 @@ public abstract class MediaType<T extends MediaSource> {
 		return new MediaWrapper<T>(this, file, session, forceReload);
 	}
 	
+	/**
+	 * Determine if media objects of this type may be loaded concurrently
+	 * from multiple threads.
+	 */
+	protected boolean supportsParallelLoad() {
+		return true;
+	}
+	
 	protected abstract List<String> getFileExtensions(AVSession<?, ?, ?> session);
 	protected abstract File getDirectory(AVSession<?, ?, ?> session);
 	protected abstract T findMediaObject(String filename, File directory, 
 			AVSession<?, ?, ?> session, boolean forceReload);
 	public abstract void initializeCount(int count);
 	public abstract void initializeWait(int waitMillis);
+	public abstract void initializeVoices(int count);
 	
 	public static class MediaWrapper<T extends MediaSource> {
 		private final MediaType<T> _type;
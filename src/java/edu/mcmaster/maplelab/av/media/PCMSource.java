@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Sound whose sample data can be read back, so it can be rendered into an
+ * {@link AudioTimeline}.
+ *
+ * @author bguseman
+ */
+public interface PCMSource extends MediaSource {
+	/**
+	 * Get the file the samples come from.  Used to identify cached data.
+	 */
+	File getSourceFile();
+	/**
+	 * Open a decoder positioned at the start of the samples.  The caller
+	 * must close it.
+	 */
+	AudioInputStream openStream() throws IOException, UnsupportedAudioFileException;
+	/**
+	 * Get the effective gain, taking mute state into account.
+	 */
+	float getEffectiveGain();
+}
@@ -13,6 +13,7 @@
 package edu.mcmaster.maplelab.av.media;
 
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 
 
 
@@ -26,14 +27,19 @@ import java.util.concurrent.CountDownLatch;
 public interface Playable extends MediaSource {
     /**
      * Initiate playback of the source. Blocks until latch released, 
-     * then blocks until playback is finished.
+     * then returns once playback has started.
+     * 
+     * @return future completed when playback is finished, after
+     *         listeners have been notified
      */
-    void play(CountDownLatch controlLatch);
+    Future<?> play(CountDownLatch controlLatch);
     /**
-     * Initiate playback of the source. Call blocks until playback
-     * is finished.
+     * Initiate playback of the source. Returns once playback has started.
+     * 
+     * @return future completed when playback is finished, after
+     *         listeners have been notified
      */
-    void play();
+    Future<?> play();
     
     /**
      * Query duration of the source in milliseconds.
@@ -56,7 +62,8 @@ public interface Playable extends MediaSource {
     void setMute(boolean mute);
     
     /**
-     * Add a PlayableListener to this.
+     * Add a PlayableListener to this.  Listeners are notified of playback
+     * completion asynchronously, from a shared monitor thread.
      */
     void addListener(PlayableListener listener);
     
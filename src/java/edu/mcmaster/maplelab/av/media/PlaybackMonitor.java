@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import edu.mcmaster.maplelab.common.LogContext;
+
+/**
+ * Single thread that watches all active playback and reports completion,
+ * so that playing media doesn't tie up the caller's thread.  Each
+ * playback is left alone until its expected end time, then checked at
+ * the poll interval until it reports it has finished.  The thread sleeps
+ * whenever nothing is due, so there is no busy waiting.
+ *
+ * @author bguseman
+ */
+final class PlaybackMonitor implements Runnable {
+	/** Callable that does nothing, used to build completion futures. */
+	private static final Callable<Void> NOOP = new Callable<Void>() {
+		@Override
+		public Void call() {
+			return null;
+		}
+	};
+
+	private static PlaybackMonitor _instance = null;
+
+	/**
+	 * Get the shared monitor, starting its thread if necessary.
+	 */
+	static synchronized PlaybackMonitor getInstance() {
+		if (_instance == null) {
+			_instance = new PlaybackMonitor();
+			Thread t = new Thread(_instance, "playback-monitor");
+			t.setDaemon(true);
+			t.setPriority(Thread.MAX_PRIORITY);
+			t.start();
+		}
+		return _instance;
+	}
+
+	/**
+	 * A playback being watched.
+	 */
+	interface Watch {
+		/**
+		 * Determine if playback has finished.  Not called before the
+		 * expected end time.
+		 */
+		boolean isFinished();
+		/**
+		 * Called once, on the monitor thread, when playback has finished.
+		 */
+		void finished();
+	}
+
+	private final List<Entry> _active = new ArrayList<Entry>();
+	private long _pollNanos = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private PlaybackMonitor() {}
+
+	/**
+	 * Set the time between checks once playback is overdue.  Values below
+	 * one millisecond are raised to one millisecond.
+	 */
+	synchronized void setPollMillis(int millis) {
+		_pollNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, millis));
+	}
+
+	/**
+	 * Watch the given playback.
+	 *
+	 * @param endNanos expected end time, in {@link System#nanoTime()} terms
+	 * @param watch playback to watch
+	 * @return future completed (after {@link Watch#finished()}) when
+	 *         playback finishes
+	 */
+	synchronized Future<?> watch(long endNanos, Watch watch) {
+		Entry e = new Entry(endNanos, watch);
+		_active.add(e);
+		notifyAll();
+		return e._future;
+	}
+
+	@Override
+	public void run() {
+		List<Entry> done = new ArrayList<Entry>();
+		while (true) {
+			synchronized (this) {
+				while (done.isEmpty()) {
+					long now = System.nanoTime();
+					long wait = Long.MAX_VALUE;
+					for (Iterator<Entry> it = _active.iterator(); it.hasNext();) {
+						Entry e = it.next();
+						long remaining = e._endNanos - now;
+						if (remaining > 0) {
+							wait = Math.min(wait, remaining);
+						}
+						else if (isFinished(e)) {
+							it.remove();
+							done.add(e);
+						}
+						else {
+							wait = Math.min(wait, _pollNanos);
+						}
+					}
+					if (!done.isEmpty()) break;
+
+					try {
+						if (wait == Long.MAX_VALUE) wait();
+						else TimeUnit.NANOSECONDS.timedWait(this, wait);
+					}
+					catch (InterruptedException ex) {
+						// keep watching
+					}
+				}
+			}
+
+			// notify outside the lock, so listeners may start new playback
+			for (Entry e : done) {
+				try {
+					e._watch.finished();
+				}
+				catch (RuntimeException ex) {
+					LogContext.getLogger().log(Level.WARNING, "Playback completion failed", ex);
+				}
+				e._future.run();
+			}
+			done.clear();
+		}
+	}
+
+	private static boolean isFinished(Entry e) {
+		try {
+			return e._watch.isFinished();
+		}
+		catch (RuntimeException ex) {
+			LogContext.getLogger().log(Level.WARNING, "Playback state check failed", ex);
+			return true;
+		}
+	}
+
+	private static class Entry {
+		private final long _endNanos;
+		private final Watch _watch;
+		private final FutureTask<Void> _future = new FutureTask<Void>(NOOP);
+
+		public Entry(long endNanos, Watch watch) {
+			_endNanos = endNanos;
+			_watch = watch;
+		}
+	}
+}
@@ -2,10 +2,10 @@ package edu.mcmaster.maplelab.av.media;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import org.rococoa.Rococoa;
@@ -18,7 +18,6 @@ import org.rococoa.cocoa.qtkit.QTTrack;
 
 import edu.mcmaster.maplelab.common.LogContext;
 import edu.mcmaster.maplelab.common.ResourceLoader;
-import edu.mcmaster.maplelab.common.datamodel.Session;
 
 /**
  * Class for encapsulating a Quicktime video clip as a Playable.
@@ -32,34 +31,52 @@ public class QTVideoClip implements Playable {
         QTKit instance = QTKit.instance;
 	}
 	
-	private static final Map<String, Playable> _movieCache = new HashMap<String, Playable>();
+	public static Playable findPlayable(final String filename, final File directory, 
+			final float volume, boolean forceReload) {
+		if (filename == null) return null;
+		
+		final File file = new File(directory, filename);
+		String key = MediaCache.key("video", file, volume);
+		return MediaCache.getInstance().get(key, new MediaCache.Loader<Playable, RuntimeException>() {
+			@Override
+			public Playable load() {
+				return loadPlayable(filename, directory, volume);
+			}
+			@Override
+			public long sizeOf(Playable value) {
+				// XXX: actual movie memory isn't available; use the file size
+				return file.length();
+			}
+			@Override
+			public void release(Playable value) {
+				// movie is freed by Rococoa once no longer referenced
+			}
+		}, forceReload);
+	}
 	
-	public static Playable findPlayable(String filename, File directory, float volume, 
-			boolean forceReload) {
-        Playable p = forceReload ? null : _movieCache.get(filename);
-        if (p == null) {
-            if (filename != null) {
-            	QTMovie m = null;
-            	try {
-                	File f = ResourceLoader.findResource(directory, filename);
-                    m = QTMovie.movieWithFile_error(f.getAbsolutePath(), null);
-            	}
-            	catch (Exception e) {
-            		LogContext.getLogger().log(Level.SEVERE, "Couldn't load video resource " + filename, e);
-                    return null;
-            	}
-                
-                if (m != null) {
-                	p = new QTVideoClip(filename, m);
-                	// don't change the volume unless necessary
-                    if (Float.compare(1.0f, volume) != 0) p.setVolume(volume);
-                	_movieCache.put(filename, p);
-                }
-            }
-        }
-        
-        return p;
-    }
+	/**
+	 * Load the given movie file, bypassing the cache.
+	 */
+	private static Playable loadPlayable(String filename, File directory, float volume) {
+		Playable p = null;
+		QTMovie m = null;
+		try {
+			File f = ResourceLoader.findResource(directory, filename);
+			m = QTMovie.movieWithFile_error(f.getAbsolutePath(), null);
+		}
+		catch (Exception e) {
+			LogContext.getLogger().log(Level.SEVERE, "Couldn't load video resource " + filename, e);
+			return null;
+		}
+		
+		if (m != null) {
+			p = new QTVideoClip(filename, m);
+			// don't change the volume unless necessary
+			if (Float.compare(1.0f, volume) != 0) p.setVolume(volume);
+		}
+		
+		return p;
+	}
 	
 	private final QTMovie _movie;
 	private final String _name;
@@ -83,11 +100,11 @@ public class QTVideoClip implements Playable {
 	}
 
 	@Override
-	public void play() {
-    	play(null);
+	public Future<?> play() {
+    	return play(null);
     }
 
-    public void play(CountDownLatch latch) {
+    public Future<?> play(CountDownLatch latch) {
 		_movie.gotoBeginning();
     	if (latch != null) {
 			try {
@@ -97,15 +114,25 @@ public class QTVideoClip implements Playable {
     	}
 		_movie.play();
 		
-		Session.sleep(durationMillis());
-        
-        synchronized (_listeners) {
-            if (!_listeners.isEmpty()) {
-            	for (PlayableListener pl : _listeners) {
-            		pl.playableEnded();
-            	}
-            }
-        }
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis());
+		return PlaybackMonitor.getInstance().watch(end, new PlaybackMonitor.Watch() {
+			@Override
+			public boolean isFinished() {
+				// no completion state available; rely on duration
+				return true;
+			}
+			@Override
+			public void finished() {
+				// copy, since listeners may remove themselves
+				PlayableListener[] copy;
+		        synchronized (_listeners) {
+		        	copy = _listeners.toArray(new PlayableListener[_listeners.size()]);
+		        }
+		        for (PlayableListener pl : copy) {
+		        	pl.playableEnded();
+		        }
+			}
+		});
 	}
 
 	@Override
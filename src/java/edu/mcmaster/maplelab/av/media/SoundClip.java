@@ -1,12 +1,14 @@
 package edu.mcmaster.maplelab.av.media;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import javax.sound.sampled.*;
@@ -20,66 +22,88 @@ import com.jogamp.openal.util.WAVLoader;
 
 import edu.mcmaster.maplelab.common.LogContext;
 import edu.mcmaster.maplelab.common.ResourceLoader;
-import edu.mcmaster.maplelab.common.datamodel.Session;
 
 /**
  * Wrapper around a {@link Clip}
  *
  */
-public class SoundClip implements Playable {
+public class SoundClip implements Playable, PCMSource {
 	static {
 		AudioSystem3D.init();
         ALut.alutInit();
 	}
 	
-    private static Map<String, Playable> _soundCache = new HashMap<String, Playable>();
+    /** Guards id allocation and other OpenAL state changes during loading. */
+    private static final Object AL_LOCK = new Object();
     private static int[] _bufferIDs = null;
-    private static int[] _sourceIDs = null;
     private static int _index;
-    private static int _pollWaitMillis = 0;
+    /** Default length above which sounds are streamed. */
+    public static final int DEFAULT_STREAM_THRESHOLD_MILLIS = 10000;
+    private static ALVoicePool _voices = null;
     
     /**
-     * Initialize the buffer and source id arrays according to the expected
-     * count.
+     * Initialize the buffer id array according to the expected count.
      */
     public static void initializeSoundCount(int count) {
-    	_index = 0;
-    	_bufferIDs = new int[count];
-    	_sourceIDs = new int[count];
-    	
-    	AL al = ALFactory.getAL();
-        al.alGenBuffers(count, _bufferIDs, 0);
-        al.alGenSources(count, _sourceIDs, 0);
+    	synchronized (AL_LOCK) {
+        	_index = 0;
+        	_bufferIDs = new int[count];
+        	
+        	AL al = ALFactory.getAL();
+            al.alGenBuffers(count, _bufferIDs, 0);
+    	}
+    }
+    
+    /**
+     * Initialize the number of OpenAL sources shared by all sounds, which
+     * limits the number of sounds that can play at once.
+     */
+    public static void initializeVoiceCount(int count) {
+    	synchronized (AL_LOCK) {
+    		if (_voices != null && _voices.size() == count) return;
+    		if (_voices != null) _voices.dispose();
+    		_voices = new ALVoicePool(count);
+    	}
+    }
+    
+    static ALVoicePool getVoices() {
+    	synchronized (AL_LOCK) {
+    		if (_voices == null) _voices = new ALVoicePool(ALVoicePool.DEFAULT_VOICES);
+    		return _voices;
+    	}
     }
     
     /**
      * Initialize wait time between polling for playback finished state.
      */
     public static void initializePlayPollWait(int waitMillis) {
-    	_pollWaitMillis = waitMillis;
+    	PlaybackMonitor.getInstance().setPollMillis(waitMillis);
     }
     
     
     
     private final Clip _clip; // javax.media version
-    private final Integer _sourceID; // open al version
     private final Integer _bufferID; // open al version
-    private float _sourceVol = 1.0f;
+    /** Voice currently playing the buffer, or null. */
+    private volatile ALVoicePool.Voice _voice = null;
+    private volatile float _gain = 1.0f;
+    private volatile boolean _muted = false;
     private final String _name;
+    private final File _directory;
     private int _calculatedDur = Integer.MIN_VALUE;
     private ArrayList<PlayableListener> _listeners = new ArrayList<PlayableListener>();
     
-    public SoundClip(String name, int source, int buffer) {
+    public SoundClip(String name, File directory, int buffer) {
     	_name = name;
-    	_sourceID = source;
+    	_directory = directory;
     	_bufferID = buffer;
     	_clip = null;
     }
 
-    public SoundClip(String name, Clip clip) {
+    public SoundClip(String name, File directory, Clip clip) {
         _name = name;
+        _directory = directory;
         _clip = clip;
-        _sourceID = null;
         _bufferID = null;
     }
 
@@ -120,27 +144,35 @@ public class SoundClip implements Playable {
      * Get playback position, in samples.
      */
     public float getCurrentPlaybackPosition() {
+    	ALVoicePool.Voice voice = _voice;
+    	if (voice == null) return 0;
+    	
     	AL al = ALFactory.getAL();
     	int[] offset = new int[1];
-		al.alGetSourcei(_sourceID, AL.AL_SAMPLE_OFFSET, offset, 0);
+		al.alGetSourcei(voice.getSource(), AL.AL_SAMPLE_OFFSET, offset, 0);
 		return offset[0];
     }
     
-    public void play() {
-    	play(null);
+    public Future<?> play() {
+    	return play(null);
     }
 
-    public void play(CountDownLatch latch) {
+    public Future<?> play(CountDownLatch latch) {
     	AL al = ALFactory.getAL();
-    	if (_sourceID != null) {
-    		al.alSourceRewind(_sourceID);
+    	ALVoicePool.Voice voice = null;
+    	if (_bufferID != null) {
+    		voice = getVoices().acquire(_bufferID);
+    		if (voice != null) {
+    			al.alSourcef(voice.getSource(), AL.AL_GAIN, _muted ? 0 : _gain);
+    			_voice = voice;
+    		}
     		if (latch != null) {
     			try {
     				latch.await();
     			} 
         		catch (InterruptedException e) {}
         	}
-    		al.alSourcePlay(_sourceID);
+    		if (voice != null) al.alSourcePlay(voice.getSource());
     	}
     	else {
             _clip.setFramePosition(0);
@@ -153,40 +185,81 @@ public class SoundClip implements Playable {
             _clip.start();
     	}
     	
-        
-        // The call _clip.drain() below takes too long, messing up synchronization.
-        // Just using Thread.sleep() gives us the accuracy we want. Required
-        // to support blocking semantics of method.
-        Session.sleep(durationMillis());
-        
-        if (_sourceID != null) {
-        	int[] val = new int[1];
-    		al.alGetSourcei(_sourceID, AL.AL_SOURCE_STATE, val, 0);
-        	while (val[0] == AL.AL_PLAYING) {
-        		Session.sleep(_pollWaitMillis);
-        		al.alGetSourcei(_sourceID, AL.AL_SOURCE_STATE, val, 0);
-        	}
-        	//al.alSourceStop(_sourceID);
-        }
-        else _clip.stop();
-        
-        synchronized (_listeners) {
-            if (!_listeners.isEmpty()) {
-            	for (PlayableListener pl : _listeners) {
-            		pl.playableEnded();
-            	}
-            }
-        }
+        // The call _clip.drain() takes too long, messing up synchronization.
+        // Instead, the monitor checks for completion once the expected 
+        // duration has elapsed.
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis());
+        return PlaybackMonitor.getInstance().watch(end, new Completion(voice, _bufferID == null));
+    }
+    
+    /**
+     * Completion handling for a single playback.
+     */
+    private class Completion implements PlaybackMonitor.Watch {
+    	/** Voice played on, or null if none (or not OpenAL). */
+    	private final ALVoicePool.Voice _source;
+    	private final boolean _javaClip;
+    	private final int[] _state = new int[1];
+    	
+    	public Completion(ALVoicePool.Voice source, boolean javaClip) {
+    		_source = source;
+    		_javaClip = javaClip;
+    	}
+    	
+		@Override
+		public boolean isFinished() {
+			if (_source == null) return true;
+			// stolen by another sound
+			if (!getVoices().isHeld(_source)) return true;
+			ALFactory.getAL().alGetSourcei(_source.getSource(), AL.AL_SOURCE_STATE, _state, 0);
+			return _state[0] != AL.AL_PLAYING;
+		}
+
+		@Override
+		public void finished() {
+			if (_source != null) {
+	        	if (_voice == _source) _voice = null;
+	        	getVoices().release(_source);
+			}
+			else if (_javaClip) _clip.stop();
+	        
+	        // copy, since listeners may remove themselves
+	        PlayableListener[] copy;
+	        synchronized (_listeners) {
+	        	copy = _listeners.toArray(new PlayableListener[_listeners.size()]);
+	        }
+	        for (PlayableListener pl : copy) {
+	        	pl.playableEnded();
+	        }
+		}
     }
 
     public String name() {
         return _name;
     }
     
+    @Override
+    public File getSourceFile() {
+    	return new File(_directory, _name);
+    }
+    
+    @Override
+    public AudioInputStream openStream() throws IOException, UnsupportedAudioFileException {
+    	InputStream input = new BufferedInputStream(ResourceLoader.findAudioData(_directory, _name));
+    	return AudioSystem.getAudioInputStream(input);
+    }
+    
+    @Override
+    public float getEffectiveGain() {
+    	return _muted ? 0 : _gain;
+    }
+    
     @Override
     public void setVolume(float volume) {
-    	if (_sourceID != null) {
-    		ALFactory.getAL().alSourcef(_sourceID, AL.AL_GAIN, volume);
+    	_gain = volume;
+    	if (_bufferID != null) {
+    		ALVoicePool.Voice voice = _voice;
+    		if (voice != null && !_muted) ALFactory.getAL().alSourcef(voice.getSource(), AL.AL_GAIN, volume);
     		return;
     	}
     	
@@ -208,17 +281,10 @@ public class SoundClip implements Playable {
     
     @Override
     public void setMute(boolean mute) {
-    	if (_sourceID != null) {
-    		AL al = ALFactory.getAL();
-	        if (mute) {
-    			float[] vol = new float[1];
-    	        al.alGetSourcef(_sourceID, AL.AL_GAIN, vol, 0);
-    	        _sourceVol = vol[0];
-    	        al.alSourcef(_sourceID, AL.AL_GAIN, 0);
-    		}
-    		else {
-    			al.alSourcef(_sourceID, AL.AL_GAIN, _sourceVol);
-    		}
+    	_muted = mute;
+    	if (_bufferID != null) {
+    		ALVoicePool.Voice voice = _voice;
+    		if (voice != null) ALFactory.getAL().alSourcef(voice.getSource(), AL.AL_GAIN, mute ? 0 : _gain);
     		return;
     	}
     	
@@ -243,79 +309,163 @@ public class SoundClip implements Playable {
     
     public static Playable findPlayable(String filename, File directory, float volume, 
     		boolean forceReload) {
-        Playable p = forceReload ? null : _soundCache.get(filename);
-        if (p == null) {
-            if (filename != null) {
-                Clip clip = null;
-                Integer sourceID = null;
-                Integer bufferID = null;
-                try {
-                    InputStream input = ResourceLoader.findAudioData(directory, filename);
-                    if(input == null) {
-                        throw new FileNotFoundException("Couldn't find " + filename);
-                    }
-                    
-                    // load the source
-                    AL al = ALFactory.getAL();
-                    
-                    if (_bufferIDs == null || _index >= _bufferIDs.length) {
-                    	// generate on-the-fly
-                        int[] id = new int[1];
-                        al.alGenBuffers(1, id, 0);
-                        bufferID = id[0];
-                        al.alGenSources(1, id, 0);
-                        sourceID = id[0];
-                    }
-                    else {
-                        bufferID = _bufferIDs[_index];
-                        sourceID = _sourceIDs[_index];
-                        ++_index;
-                    }
-                    
-                    if (sourceID != null) {
-                    	// XXX: Must load buffer before assigning to source!!!!
-                    	// Otherwise, sound will: (1) not work and (2) give no
-                    	// hint as to why.
-                        WAVData wd = WAVLoader.loadFromStream(input);
-                        al.alBufferData(bufferID, wd.format, wd.data, wd.data.capacity(), wd.freq);
-                        al.alSourcei(sourceID, AL.AL_BUFFER, bufferID);
-                        //source = AudioSystem3D.loadSource(input);
-                    }
-                    else {
-                    	// if source load failed, try clip
-                    	input = ResourceLoader.findAudioData(directory, filename);
-                        AudioInputStream stream = AudioSystem.getAudioInputStream(input);
-                        AudioFormat format = stream.getFormat();
-                        LogContext.getLogger().fine(String.format("%s -> %s", format, filename));
-                        clip = (Clip) AudioSystem.getLine(new DataLine.Info(Clip.class, format));
-                        clip.open(stream);
-                    }
-                }
-                catch (Exception ex) {
-                    LogContext.getLogger().log(Level.SEVERE, "Couldn't load audio resource " + filename, ex);
-                    return null;
-                }
+    	return findPlayable(filename, directory, volume, DEFAULT_STREAM_THRESHOLD_MILLIS, forceReload);
+    }
+    
+    /**
+     * Get the auditory stimulus with the given name.  Sounds longer than the
+     * given threshold are streamed (see {@link StreamingSoundClip}) rather than
+     * loaded whole.
+     */
+    public static Playable findPlayable(final String filename, final File directory, 
+    		final float volume, final int streamThresholdMillis, boolean forceReload) {
+    	if (filename == null) return null;
+    	
+    	String key = MediaCache.key("audio", new File(directory, filename), volume);
+    	return MediaCache.getInstance().get(key, new MediaCache.Loader<Playable, RuntimeException>() {
+			@Override
+			public Playable load() {
+				if (getDurationMillis(filename, directory) > streamThresholdMillis) {
+					return StreamingSoundClip.load(filename, directory, volume);
+				}
+				return loadPlayable(filename, directory, volume);
+			}
+			@Override
+			public long sizeOf(Playable value) {
+				return value instanceof StreamingSoundClip ? 
+						((StreamingSoundClip) value).getSizeInBytes() :
+						((SoundClip) value).getSizeInBytes();
+			}
+			@Override
+			public void release(Playable value) {
+				if (value instanceof StreamingSoundClip) ((StreamingSoundClip) value).release();
+				else ((SoundClip) value).release();
+			}
+		}, forceReload);
+    }
+    
+    /**
+     * Read the duration of the given audio file from its header, or 0 if 
+     * unknown.
+     */
+    private static long getDurationMillis(String filename, File directory) {
+    	InputStream input = null;
+    	try {
+    		input = new BufferedInputStream(ResourceLoader.findAudioData(directory, filename));
+    		AudioFileFormat format = AudioSystem.getAudioFileFormat(input);
+    		long frames = format.getFrameLength();
+    		if (frames == AudioSystem.NOT_SPECIFIED) return 0;
+    		return (long) (1000 * frames / format.getFormat().getFrameRate());
+    	}
+    	catch (Exception ex) {
+    		// let the full load report the problem
+    		return 0;
+    	}
+    	finally {
+    		if (input != null) {
+    			try {
+    				input.close();
+    			}
+    			catch (IOException ex) {}
+    		}
+    	}
+    }
+    
+    /**
+     * Load the given audio file, bypassing the cache.
+     */
+    private static Playable loadPlayable(String filename, File directory, float volume) {
+        Playable p = null;
+        Clip clip = null;
+        Integer bufferID = null;
+        try {
+            InputStream input = ResourceLoader.findAudioData(directory, filename);
+            if(input == null) {
+                throw new FileNotFoundException("Couldn't find " + filename);
+            }
+            
+            // decode outside the lock, so files can be loaded in parallel
+            WAVData wd = WAVLoader.loadFromStream(input);
+            
+            // load the source
+            synchronized (AL_LOCK) {
+                AL al = ALFactory.getAL();
                 
-                // create playable according to type
-                if (sourceID != null) {
-                	p = new SoundClip(filename, sourceID, bufferID);
+                if (_bufferIDs == null || _index >= _bufferIDs.length) {
+                	// generate on-the-fly
+                    int[] id = new int[1];
+                    al.alGenBuffers(1, id, 0);
+                    bufferID = id[0];
                 }
-                else if (clip != null)  {
-                    p = new SoundClip(filename, clip);
-                    //(new Thread(new SoundPreparer((SoundClip) p))).start();
+                else {
+                    bufferID = _bufferIDs[_index];
+                    ++_index;
                 }
                 
-                // set playable parameters and cache
-                if (p != null) {
-                    // don't change the volume unless necessary
-                    if (Float.compare(1.0f, volume) != 0) p.setVolume(volume);
-                    
-                    _soundCache.put(filename, p);
-                }
+                // XXX: Must load buffer before assigning to source!!!!
+                // Otherwise, sound will: (1) not work and (2) give no
+                // hint as to why.  Voices are assigned at play time.
+                al.alBufferData(bufferID, wd.format, wd.data, wd.data.capacity(), wd.freq);
             }
+            
+            if (bufferID == null) {
+            	// if source load failed, try clip
+            	input = ResourceLoader.findAudioData(directory, filename);
+                AudioInputStream stream = AudioSystem.getAudioInputStream(input);
+                AudioFormat format = stream.getFormat();
+                LogContext.getLogger().fine(String.format("%s -> %s", format, filename));
+                clip = (Clip) AudioSystem.getLine(new DataLine.Info(Clip.class, format));
+                clip.open(stream);
+            }
+        }
+        catch (Exception ex) {
+            LogContext.getLogger().log(Level.SEVERE, "Couldn't load audio resource " + filename, ex);
+            return null;
+        }
+        
+        // create playable according to type
+        if (bufferID != null) {
+        	p = new SoundClip(filename, directory, bufferID);
+        }
+        else if (clip != null)  {
+            p = new SoundClip(filename, directory, clip);
+            //(new Thread(new SoundPreparer((SoundClip) p))).start();
+        }
+        
+        // set playable parameters
+        if (p != null) {
+            // don't change the volume unless necessary
+            if (Float.compare(1.0f, volume) != 0) p.setVolume(volume);
         }
         return p;
     }
+    
+    /**
+     * Get the memory held by the sound data, in bytes.
+     */
+    long getSizeInBytes() {
+    	if (_bufferID != null) {
+    		int[] val = new int[1];
+    		ALFactory.getAL().alGetBufferi(_bufferID, AL.AL_SIZE, val, 0);
+    		return val[0];
+    	}
+    	return (long) _clip.getFrameLength() * _clip.getFormat().getFrameSize();
+    }
+    
+    /**
+     * Free the native sound resources.  The clip may not be played afterward.
+     */
+    void release() {
+    	if (_bufferID != null) {
+    		synchronized (AL_LOCK) {
+    			getVoices().detach(_bufferID);
+    			ALFactory.getAL().alDeleteBuffers(1, new int[]{_bufferID}, 0);
+    		}
+    	}
+    	else {
+    		_clip.close();
+    	}
+    }
 
     @Override
     public String toString() {
@@ -325,7 +475,7 @@ public class SoundClip implements Playable {
 	@Override
 	public void addListener(PlayableListener listener) {
 		synchronized (_listeners) {
-			if (_sourceID != null) _listeners.add(listener);
+			if (_bufferID != null) _listeners.add(listener);
 			else _clip.addLineListener(listener);
 		}
 	}
@@ -333,7 +483,7 @@ public class SoundClip implements Playable {
 	@Override
 	public void removeListener(PlayableListener listener) {
 		synchronized (_listeners) {
-			if (_sourceID != null) _listeners.remove(listener);
+			if (_bufferID != null) _listeners.remove(listener);
 			else _clip.removeLineListener(listener);
 		}
 	}
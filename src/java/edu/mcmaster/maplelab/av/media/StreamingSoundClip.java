@@ -0,0 +1,550 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import com.jogamp.openal.AL;
+import com.jogamp.openal.ALFactory;
+
+import edu.mcmaster.maplelab.common.LogContext;
+import edu.mcmaster.maplelab.common.ResourceLoader;
+
+/**
+ * Playable for long sounds, which are decoded a chunk at a time and fed
+ * through a small ring of queued OpenAL buffers rather than loaded whole.
+ * Memory use is constant regardless of length.
+ *
+ * There are two rings.  One is filled with the start of the sound ahead
+ * of time, so playback starts as quickly as for a {@link SoundClip}, while
+ * the other plays.  While playing, a shared feeder thread replaces finished
+ * buffers with the next chunks; each play also has the feeder prime the
+ * other ring, so a replay (even while still playing) starts from buffers
+ * that are already filled.  Decoding never happens on the caller's thread:
+ * if a play comes before its ring is primed, a warning is logged and the
+ * play is started late, by the feeder.
+ *
+ * @author bguseman
+ */
+public class StreamingSoundClip implements Playable, PCMSource {
+	/** Number of buffers in the ring. */
+	private static final int BUFFER_COUNT = 4;
+	/** Length of audio in each buffer. */
+	private static final int CHUNK_MILLIS = 250;
+	/** Feeder period; well under the chunk length, to stay ahead. */
+	private static final long FEED_MILLIS = CHUNK_MILLIS / 4;
+
+	private static ScheduledExecutorService _feeder = null;
+
+	private static synchronized ScheduledExecutorService getFeeder() {
+		if (_feeder == null) {
+			_feeder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "audio-stream-feeder");
+					t.setDaemon(true);
+					t.setPriority(Thread.MAX_PRIORITY);
+					return t;
+				}
+			});
+		}
+		return _feeder;
+	}
+
+	/**
+	 * Open the given audio file for streaming.
+	 *
+	 * @return the clip, or null if the file can't be read
+	 */
+	static StreamingSoundClip load(String filename, File directory, float volume) {
+		try {
+			StreamingSoundClip retval = new StreamingSoundClip(filename, directory);
+			if (Float.compare(1.0f, volume) != 0) retval.setVolume(volume);
+			return retval;
+		}
+		catch (Exception ex) {
+			LogContext.getLogger().log(Level.SEVERE, "Couldn't load audio resource " + filename, ex);
+			return null;
+		}
+	}
+
+	private final String _name;
+	private final File _directory;
+	private final int _alFormat;
+	private final int _frequency;
+	private final int _durationMillis;
+	private final int _chunkBytes;
+	private final Ring[] _rings = new Ring[2];
+	private final int[] _val = new int[1];
+	private final ArrayList<PlayableListener> _listeners = new ArrayList<PlayableListener>();
+
+	/** Ring primed, or to be primed, for the next play. */
+	private Ring _next;
+	/** Current play, or null if stopped. */
+	private Play _current = null;
+	private boolean _released = false;
+	private ScheduledFuture<?> _feed = null;
+	/** Voice of the current play, or null. */
+	private volatile ALVoicePool.Voice _voice = null;
+	private volatile float _gain = 1.0f;
+	private volatile boolean _muted = false;
+
+	private StreamingSoundClip(String name, File directory) throws IOException,
+			UnsupportedAudioFileException {
+		_name = name;
+		_directory = directory;
+
+		AudioInputStream stream = open();
+		try {
+			AudioFormat format = stream.getFormat();
+			int bits = format.getSampleSizeInBits();
+			boolean stereo = format.getChannels() == 2;
+			_alFormat = bits == 8 ? (stereo ? AL.AL_FORMAT_STEREO8 : AL.AL_FORMAT_MONO8) :
+					(stereo ? AL.AL_FORMAT_STEREO16 : AL.AL_FORMAT_MONO16);
+			_frequency = (int) format.getSampleRate();
+			long frames = stream.getFrameLength();
+			_durationMillis = frames != AudioSystem.NOT_SPECIFIED ?
+					(int) (1000 * frames / format.getFrameRate()) : 0;
+
+			int frameSize = format.getFrameSize();
+			int chunkFrames = (int) (format.getFrameRate() * CHUNK_MILLIS / 1000);
+			_chunkBytes = chunkFrames * frameSize;
+		}
+		finally {
+			stream.close();
+		}
+
+		for (int i = 0; i < _rings.length; i++) {
+			_rings[i] = new Ring();
+		}
+		_next = _rings[0];
+		_next.prime();
+	}
+
+	/**
+	 * Open a decoder on the file, converted to a format OpenAL accepts
+	 * (8 bit unsigned or 16 bit signed little endian, mono or stereo).
+	 * A conversion Java Sound doesn't support (on some versions, from more
+	 * than two channels) is reported as an error naming the file.
+	 */
+	private AudioInputStream open() throws IOException, UnsupportedAudioFileException {
+		AudioInputStream stream = openStream();
+		AudioFormat f = stream.getFormat();
+		int bits = f.getSampleSizeInBits() == 8 ? 8 : 16;
+		boolean signed = bits == 16;
+		int channels = Math.min(2, f.getChannels());
+		if (f.getEncoding() != (signed ? AudioFormat.Encoding.PCM_SIGNED : AudioFormat.Encoding.PCM_UNSIGNED) ||
+				f.getSampleSizeInBits() != bits || f.getChannels() != channels ||
+				(bits == 16 && f.isBigEndian())) {
+			AudioFormat target = new AudioFormat(f.getSampleRate(), bits, channels, signed, false);
+			try {
+				stream = AudioSystem.getAudioInputStream(target, stream);
+			}
+			catch (IllegalArgumentException ex) {
+				stream.close();
+				throw new IOException(String.format("Unable to convert %s from %s to %s",
+						getSourceFile(), f, target), ex);
+			}
+		}
+		return stream;
+	}
+
+	/**
+	 * Set of buffers, with a decoder positioned after the data in them.
+	 * Touched only under the clip's lock, except by {@link #prime()} while
+	 * priming on the feeder.
+	 */
+	private final class Ring {
+		private final int[] _ids = new int[BUFFER_COUNT];
+		private final byte[] _chunk = new byte[_chunkBytes];
+		private final ByteBuffer _upload = ByteBuffer.allocateDirect(_chunkBytes);
+		private AudioInputStream _stream = null;
+		/** Number of buffers primed with the start of the sound. */
+		private int _primed = 0;
+		private boolean _eof = false;
+		/** Being primed by the feeder, outside the clip's lock. */
+		private boolean _priming = false;
+
+		Ring() {
+			ALFactory.getAL().alGenBuffers(BUFFER_COUNT, _ids, 0);
+		}
+
+		/**
+		 * Determine if primed and not being primed, so ready to play.
+		 */
+		boolean isReady() {
+			return !_priming && _primed > 0;
+		}
+
+		/**
+		 * Fill the buffers with the start of the sound.
+		 */
+		void prime() {
+			close();
+			_eof = false;
+			_primed = 0;
+			try {
+				_stream = open();
+				while (_primed < BUFFER_COUNT && fill(_ids[_primed])) {
+					_primed++;
+				}
+			}
+			catch (Exception ex) {
+				LogContext.getLogger().log(Level.WARNING, "Unable to read audio " + _name, ex);
+				_eof = true;
+			}
+		}
+
+		/**
+		 * Decode the next chunk into the given buffer.
+		 *
+		 * @return false at end of data
+		 */
+		boolean fill(int buffer) throws IOException {
+			if (_eof) return false;
+
+			int len = 0;
+			while (len < _chunk.length) {
+				int n = _stream.read(_chunk, len, _chunk.length - len);
+				if (n < 0) {
+					_eof = true;
+					break;
+				}
+				len += n;
+			}
+			if (len == 0) return false;
+
+			_upload.clear();
+			_upload.put(_chunk, 0, len);
+			_upload.flip();
+			ALFactory.getAL().alBufferData(buffer, _alFormat, _upload, len, _frequency);
+			return true;
+		}
+
+		void close() {
+			if (_stream == null) return;
+			try {
+				_stream.close();
+			}
+			catch (IOException ex) {
+				// ignore
+			}
+			_stream = null;
+		}
+
+		/**
+		 * Close the decoder and delete the buffers.
+		 */
+		void dispose() {
+			close();
+			ALFactory.getAL().alDeleteBuffers(BUFFER_COUNT, _ids, 0);
+		}
+	}
+
+	/**
+	 * Replace finished buffers with new data, restarting playback if
+	 * the feeder fell behind.
+	 */
+	private synchronized void feed() {
+		Play play = _current;
+		if (play == null || play._voice == null) return;
+		Ring ring = play._ring;
+		int voice = play._voice.getSource();
+
+		AL al = ALFactory.getAL();
+		al.alGetSourcei(voice, AL.AL_BUFFERS_PROCESSED, _val, 0);
+		int processed = _val[0];
+		try {
+			while (processed-- > 0) {
+				al.alSourceUnqueueBuffers(voice, 1, _val, 0);
+				if (ring.fill(_val[0])) al.alSourceQueueBuffers(voice, 1, _val, 0);
+			}
+		}
+		catch (IOException ex) {
+			LogContext.getLogger().log(Level.WARNING, "Unable to read audio " + _name, ex);
+			ring._eof = true;
+		}
+
+		if (!ring._eof) {
+			al.alGetSourcei(voice, AL.AL_SOURCE_STATE, _val, 0);
+			if (_val[0] != AL.AL_PLAYING) {
+				LogContext.getLogger().fine("Audio stream underrun: " + _name);
+				al.alSourcePlay(voice);
+			}
+		}
+	}
+
+	@Override
+	public Future<?> play() {
+		return play(null);
+	}
+
+	@Override
+	public Future<?> play(final CountDownLatch latch) {
+		final Play play;
+		boolean ready;
+		synchronized (this) {
+			if (_current != null) stop();
+			play = new Play(_next);
+			_current = play;
+			ready = _next.isReady();
+			// the other ring is free now
+			_next = _next == _rings[0] ? _rings[1] : _rings[0];
+		}
+
+		if (ready) {
+			play.start(latch);
+		}
+		else {
+			LogContext.getLogger().warning("Audio stream not primed in time; starting late: " + _name);
+			getFeeder().execute(new Runnable() {
+				@Override
+				public void run() {
+					play.start(latch);
+				}
+			});
+		}
+		schedulePrime();
+
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_durationMillis);
+		return PlaybackMonitor.getInstance().watch(end, play);
+	}
+
+	/**
+	 * One play of the clip, on one ring.
+	 */
+	private final class Play implements PlaybackMonitor.Watch {
+		private final Ring _ring;
+		private final int[] _state = new int[1];
+		/** Voice played on, once started; guarded by the clip. */
+		private ALVoicePool.Voice _voice = null;
+		/** Set if the play couldn't start; guarded by the clip. */
+		private boolean _failed = false;
+
+		Play(Ring ring) {
+			_ring = ring;
+		}
+
+		/**
+		 * Queue the ring on a voice and start it, unless replaced.  Only
+		 * decodes if the ring isn't primed, which is left to the feeder.
+		 */
+		void start(CountDownLatch latch) {
+			AL al = ALFactory.getAL();
+			ALVoicePool.Voice voice;
+			synchronized (StreamingSoundClip.this) {
+				if (_current != this || _released) return;
+				if (_ring._primed == 0) _ring.prime();
+
+				voice = SoundClip.getVoices().acquireStreaming();
+				if (voice == null) {
+					_failed = true;
+					return;
+				}
+				al.alSourcef(voice.getSource(), AL.AL_GAIN, _muted ? 0 : _gain);
+				al.alSourceQueueBuffers(voice.getSource(), _ring._primed, _ring._ids, 0);
+				_ring._primed = 0;
+				_voice = voice;
+				StreamingSoundClip.this._voice = voice;
+			}
+
+			if (latch != null) {
+				try {
+					latch.await();
+				}
+				catch (InterruptedException e) {}
+			}
+			al.alSourcePlay(voice.getSource());
+
+			synchronized (StreamingSoundClip.this) {
+				if (_current != this) return;
+				_feed = getFeeder().scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						feed();
+					}
+				}, FEED_MILLIS, FEED_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		@Override
+		public boolean isFinished() {
+			synchronized (StreamingSoundClip.this) {
+				if (_current != this) return true;
+				// not started yet
+				if (_voice == null) return _failed;
+				if (!_ring._eof) return false;
+				ALFactory.getAL().alGetSourcei(_voice.getSource(), AL.AL_SOURCE_STATE, _state, 0);
+				return _state[0] != AL.AL_PLAYING;
+			}
+		}
+
+		@Override
+		public void finished() {
+			synchronized (StreamingSoundClip.this) {
+				if (_current == this) stop();
+			}
+			notifyEnded();
+		}
+	}
+
+	private void notifyEnded() {
+		// copy, since listeners may remove themselves
+		PlayableListener[] copy;
+		synchronized (_listeners) {
+			copy = _listeners.toArray(new PlayableListener[_listeners.size()]);
+		}
+		for (PlayableListener pl : copy) {
+			pl.playableEnded();
+		}
+	}
+
+	/**
+	 * Prime the next ring on the feeder thread, unless already primed.
+	 * Decoding is done outside the clip's lock, so plays aren't held up.
+	 */
+	private void schedulePrime() {
+		getFeeder().execute(new Runnable() {
+			@Override
+			public void run() {
+				Ring ring;
+				synchronized (StreamingSoundClip.this) {
+					ring = _next;
+					if (_released || ring._priming || ring._primed > 0) return;
+					ring._priming = true;
+				}
+				ring.prime();
+				synchronized (StreamingSoundClip.this) {
+					ring._priming = false;
+					// release left this ring to us
+					if (_released) ring.dispose();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop the current play and return its voice.  Its ring is left to be
+	 * primed again before it is next played.
+	 */
+	private void stop() {
+		if (_feed != null) {
+			_feed.cancel(false);
+			_feed = null;
+		}
+
+		Play play = _current;
+		_current = null;
+		_voice = null;
+		ALVoicePool.Voice voice = play._voice;
+		if (voice != null) {
+			AL al = ALFactory.getAL();
+			al.alSourceStop(voice.getSource());
+			// detaching unqueues everything, processed or not
+			al.alSourcei(voice.getSource(), AL.AL_BUFFER, 0);
+			SoundClip.getVoices().release(voice);
+		}
+		play._ring._primed = 0;
+	}
+
+	/**
+	 * Get the memory held by the stream buffers, in bytes.
+	 */
+	long getSizeInBytes() {
+		return (long) _rings.length * (BUFFER_COUNT + 2) * _chunkBytes;
+	}
+
+	/**
+	 * Free the native sound resources.  The clip may not be played afterward.
+	 */
+	synchronized void release() {
+		if (_current != null) stop();
+		_released = true;
+		for (Ring ring : _rings) {
+			// one being primed is disposed of when priming ends
+			if (!ring._priming) ring.dispose();
+		}
+	}
+
+	@Override
+	public File getSourceFile() {
+		return new File(_directory, _name);
+	}
+
+	@Override
+	public AudioInputStream openStream() throws IOException, UnsupportedAudioFileException {
+		InputStream input = new BufferedInputStream(ResourceLoader.findAudioData(_directory, _name));
+		return AudioSystem.getAudioInputStream(input);
+	}
+
+	@Override
+	public float getEffectiveGain() {
+		return _muted ? 0 : _gain;
+	}
+
+	@Override
+	public int durationMillis() {
+		return _durationMillis;
+	}
+
+	@Override
+	public String name() {
+		return _name;
+	}
+
+	@Override
+	public void setVolume(float volume) {
+		_gain = volume;
+		ALVoicePool.Voice voice = _voice;
+		if (voice != null && !_muted) ALFactory.getAL().alSourcef(voice.getSource(), AL.AL_GAIN, volume);
+	}
+
+	@Override
+	public void setMute(boolean mute) {
+		_muted = mute;
+		ALVoicePool.Voice voice = _voice;
+		if (voice != null) ALFactory.getAL().alSourcef(voice.getSource(), AL.AL_GAIN, mute ? 0 : _gain);
+	}
+
+	@Override
+	public void addListener(PlayableListener listener) {
+		synchronized (_listeners) {
+			_listeners.add(listener);
+		}
+	}
+
+	@Override
+	public void removeListener(PlayableListener listener) {
+		synchronized (_listeners) {
+			_listeners.remove(listener);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name();
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media.animation;
+
+import static javax.media.opengl.GL2.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.media.opengl.GL2;
+
+/**
+ * Geometry for one animation frame, laid out so the whole frame can be
+ * drawn with one call per primitive type.  Each shape's unit mesh is
+ * computed once; building a frame only copies the meshes, moved, scaled
+ * and coloured for each point, into reused buffers.  Drawing streams the
+ * buffers into vertex buffer objects created once per GL context.
+ *
+ * Vertices are interleaved x, y, r, g, b floats.
+ *
+ * @author bguseman
+ */
+final class AnimationBatch {
+	private static final int FLOATS_PER_VERTEX = 5;
+	private static final int STRIDE = FLOATS_PER_VERTEX * 4;
+	private static final int CIRCLE_SEGMENTS = 32;
+
+	/** Unit meshes (x, y pairs), indexed by shape ordinal. */
+	private static final float[][] MESHES = new float[AnimationShapeDrawable.values().length][];
+	/** Whether each mesh is lines rather than triangles. */
+	private static final boolean[] LINES = new boolean[MESHES.length];
+	static {
+		// circle as a triangle fan, flattened to triangles; matches the
+		// silhouette of the sphere drawn in immediate mode
+		float[] circle = new float[CIRCLE_SEGMENTS * 6];
+		for (int i = 0; i < CIRCLE_SEGMENTS; i++) {
+			double a0 = 2 * Math.PI * i / CIRCLE_SEGMENTS;
+			double a1 = 2 * Math.PI * (i + 1) / CIRCLE_SEGMENTS;
+			int j = i * 6;
+			circle[j + 2] = (float) Math.cos(a0);
+			circle[j + 3] = (float) Math.sin(a0);
+			circle[j + 4] = (float) Math.cos(a1);
+			circle[j + 5] = (float) Math.sin(a1);
+		}
+		MESHES[AnimationShapeDrawable.DOT.ordinal()] = circle;
+		MESHES[AnimationShapeDrawable.CROSS.ordinal()] = new float[] {
+			0, 1,  0, -1,  -1, 0,  1, 0
+		};
+		LINES[AnimationShapeDrawable.CROSS.ordinal()] = true;
+		MESHES[AnimationShapeDrawable.SQUARE.ordinal()] = new float[] {
+			-1, -1,  -1, 1,  1, 1,   -1, -1,  1, 1,  1, -1
+		};
+		MESHES[AnimationShapeDrawable.DIAMOND.ordinal()] = new float[] {
+			0, -1,  -1, 0,  0, 1,   0, -1,  0, 1,  1, 0
+		};
+	}
+
+	private FloatBuffer _strip = allocate(64);
+	private FloatBuffer _triangles = allocate(1024);
+	private FloatBuffer _lines = allocate(64);
+	private long _frameTime;
+	private boolean _valid = false;
+
+	/**
+	 * Determine if this holds a built frame.
+	 */
+	public boolean isValid() {
+		return _valid;
+	}
+
+	/**
+	 * Mark this as not holding a usable frame.
+	 */
+	public void invalidate() {
+		_valid = false;
+	}
+
+	/**
+	 * Get the animation time this frame was built for.
+	 */
+	public long getFrameTime() {
+		return _frameTime;
+	}
+
+	/**
+	 * Fill the buffers with the given frame.
+	 *
+	 * @param frame point data
+	 * @param count number of points to draw
+	 * @param radius base shape radius
+	 * @param aspect horizontal scale divisor
+	 * @param connect whether to join points with lines
+	 * @param frameTime animation time the frame represents
+	 */
+	public void build(AnimationFrameBuffer frame, int count, float radius, float aspect,
+			boolean connect, long frameTime) {
+		_strip.clear();
+		_triangles.clear();
+		_lines.clear();
+
+		if (connect) {
+			for (int i = 0; i < count; i++) {
+				if (!frame.hasLocation(i)) continue;
+				_strip = ensure(_strip, FLOATS_PER_VERTEX);
+				put(_strip, (float) frame.getX(i), (float) frame.getY(i), 1f, 1f, 1f);
+			}
+		}
+
+		// as in immediate mode, points without colour keep the last colour set
+		float r = 1f, g = 1f, b = 1f;
+		for (int i = 0; i < count; i++) {
+			if (!frame.hasLocation(i)) continue;
+
+			if (frame.hasColor(i)) {
+				float scale = (float) frame.getLuminance(1.0) / 255f;
+				r = (float) frame.getRed(i) * scale;
+				g = (float) frame.getGreen(i) * scale;
+				b = (float) frame.getBlue(i) * scale;
+			}
+
+			int shape = frame.getShape(i).ordinal();
+			float[] mesh = MESHES[shape];
+			float size = (float) frame.getSize(i, 1.0) * radius;
+			float sx = size / aspect;
+			float x = (float) frame.getX(i);
+			float y = (float) frame.getY(i);
+
+			FloatBuffer dest = LINES[shape] ? _lines : _triangles;
+			dest = ensure(dest, mesh.length / 2 * FLOATS_PER_VERTEX);
+			for (int v = 0; v < mesh.length; v += 2) {
+				put(dest, x + mesh[v] * sx, y + mesh[v + 1] * size, r, g, b);
+			}
+			if (LINES[shape]) _lines = dest;
+			else _triangles = dest;
+		}
+
+		_strip.flip();
+		_triangles.flip();
+		_lines.flip();
+		_frameTime = frameTime;
+		_valid = true;
+	}
+
+	/**
+	 * Draw the frame.  The given buffers must have been generated in the
+	 * current context; they are bound to {@link GL2#GL_ARRAY_BUFFER} and
+	 * left unbound afterward.
+	 *
+	 * @param buffers strip, triangle and line buffer names
+	 */
+	public void draw(GL2 gl, int[] buffers) {
+		gl.glEnableClientState(GL_VERTEX_ARRAY);
+		gl.glEnableClientState(GL_COLOR_ARRAY);
+
+		if (_strip.hasRemaining()) {
+			gl.glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+			draw(gl, buffers[0], _strip, GL_LINE_STRIP);
+		}
+		draw(gl, buffers[1], _triangles, GL_TRIANGLES);
+		draw(gl, buffers[2], _lines, GL_LINES);
+
+		gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+		gl.glDisableClientState(GL_COLOR_ARRAY);
+		gl.glDisableClientState(GL_VERTEX_ARRAY);
+	}
+
+	private static void draw(GL2 gl, int buffer, FloatBuffer data, int mode) {
+		int vertices = data.remaining() / FLOATS_PER_VERTEX;
+		if (vertices == 0) return;
+
+		gl.glBindBuffer(GL_ARRAY_BUFFER, buffer);
+		// respecify rather than update, so the driver needn't wait on the last frame
+		gl.glBufferData(GL_ARRAY_BUFFER, data.remaining() * 4L, data, GL_STREAM_DRAW);
+		gl.glVertexPointer(2, GL_FLOAT, STRIDE, 0);
+		gl.glColorPointer(3, GL_FLOAT, STRIDE, 2 * 4);
+		gl.glDrawArrays(mode, 0, vertices);
+	}
+
+	private static void put(FloatBuffer fb, float x, float y, float r, float g, float b) {
+		fb.put(x).put(y).put(r).put(g).put(b);
+	}
+
+	/**
+	 * Make sure the buffer has room for the given number of floats,
+	 * replacing it with a larger one if not.
+	 */
+	private static FloatBuffer ensure(FloatBuffer fb, int floats) {
+		if (fb.remaining() >= floats) return fb;
+		FloatBuffer retval = allocate(Math.max(fb.capacity() * 2, fb.position() + floats));
+		fb.flip();
+		retval.put(fb);
+		return retval;
+	}
+
+	private static FloatBuffer allocate(int floats) {
+		return ByteBuffer.allocateDirect(floats * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media.animation;
+
+import static javax.media.opengl.GL2.*;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.imageio.ImageIO;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GLAutoDrawable;
+import javax.media.opengl.GLCapabilities;
+import javax.media.opengl.GLDrawableFactory;
+import javax.media.opengl.GLEventListener;
+import javax.media.opengl.GLException;
+import javax.media.opengl.GLOffscreenAutoDrawable;
+import javax.media.opengl.GLProfile;
+
+import edu.mcmaster.maplelab.av.LatenessHistogram;
+
+/**
+ * Replays an animation through {@link AnimationRenderer} into an offscreen
+ * drawable, and reports how long each frame took to draw: CPU time spent in
+ * the renderer, and GPU time where timer queries are supported.  Frames are
+ * drawn for exact multiples of the frame period, so output is reproducible
+ * and may be dumped for image comparison.
+ *
+ * Run with no arguments for usage.
+ *
+ * @author bguseman
+ */
+public class AnimationBenchmark {
+	/** Frame dump formats. */
+	public enum DumpFormat {
+		PNG,
+		/** Bottom-up rows of RGBA bytes, as read from GL. */
+		RAW
+	}
+
+	private final AnimationRenderer _renderer = new AnimationRenderer();
+	private final AnimationSequence _sequence;
+	private final Harness _harness = new Harness();
+	private final int _width;
+	private final int _height;
+	private long _period = TimeUnit.SECONDS.toNanos(1) / 60;
+	private boolean _paced = true;
+	private int _passes = 1;
+	private File _dumpDir = null;
+	private DumpFormat _dumpFormat = DumpFormat.PNG;
+	private PrintWriter _csv = null;
+
+	private final LatenessHistogram _cpu = new LatenessHistogram();
+	private final LatenessHistogram _gpu = new LatenessHistogram();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sequence animation to replay
+	 * @param numPoints number of points to draw
+	 * @param radius point radius
+	 * @param connected whether to join points
+	 * @param width drawable width
+	 * @param height drawable height
+	 */
+	public AnimationBenchmark(final AnimationSequence sequence, final int numPoints,
+			final float radius, final boolean connected, int width, int height) {
+		_sequence = sequence;
+		_width = width;
+		_height = height;
+		_renderer.setAnimationSource(new AnimationSource() {
+			@Override
+			public AnimationSequence getAnimationSequence() {
+				return sequence;
+			}
+			@Override
+			public int getNumPoints() {
+				return numPoints;
+			}
+			@Override
+			public float getDiskRadius() {
+				return radius;
+			}
+			@Override
+			public boolean isConnected() {
+				return connected;
+			}
+		});
+	}
+
+	/**
+	 * Set the replay frame rate.
+	 */
+	public void setFrameRate(double fps) {
+		_period = (long) (TimeUnit.SECONDS.toNanos(1) / fps);
+	}
+
+	/**
+	 * Set whether frames are drawn at the frame rate in real time (the
+	 * default), or as fast as possible.
+	 */
+	public void setPaced(boolean paced) {
+		_paced = paced;
+	}
+
+	/**
+	 * Set the number of times to replay the animation.
+	 */
+	public void setPasses(int passes) {
+		_passes = Math.max(1, passes);
+	}
+
+	/**
+	 * Write each frame of the first pass to the given directory.
+	 */
+	public void setDump(File dir, DumpFormat format) {
+		_dumpDir = dir;
+		_dumpFormat = format;
+	}
+
+	/**
+	 * Write per-frame timings to the given file.
+	 */
+	public void setTimingFile(File file) throws IOException {
+		_csv = new PrintWriter(file);
+		_csv.println("pass,frame,animationTimeNanos,cpuNanos,gpuNanos");
+	}
+
+	/**
+	 * Get the CPU time per frame, in nanoseconds.
+	 */
+	public LatenessHistogram getCPUTimes() {
+		return _cpu;
+	}
+
+	/**
+	 * Get the GPU time per frame, in nanoseconds.  Empty if timer queries
+	 * aren't supported.
+	 */
+	public LatenessHistogram getGPUTimes() {
+		return _gpu;
+	}
+
+	/**
+	 * Replay the animation.
+	 *
+	 * @throws GLException if an offscreen drawable can't be created
+	 */
+	public void run() throws GLException {
+		GLProfile profile = GLProfile.get(GLProfile.GL2);
+		GLCapabilities caps = new GLCapabilities(profile);
+		caps.setOnscreen(false);
+		caps.setDoubleBuffered(false);
+		caps.setHardwareAccelerated(true);
+
+		// framebuffer object or pbuffer, whichever the platform supports
+		GLOffscreenAutoDrawable drawable = GLDrawableFactory.getFactory(profile)
+				.createOffscreenAutoDrawable(null, caps, null, _width, _height, null);
+
+		try {
+			drawable.addGLEventListener(_harness);
+			_renderer.setFramePeriod(_period, TimeUnit.NANOSECONDS);
+			long total = _sequence.getTotalAnimationTimeNanos();
+
+			for (int pass = 0; pass < _passes; pass++) {
+				_harness._pass = pass;
+				_renderer.setNanoStartTime(0);
+				long begin = System.nanoTime();
+				for (int frame = 0; (long) frame * _period <= total; frame++) {
+					if (_paced) {
+						long wait = begin + frame * _period - System.nanoTime();
+						if (wait > 0) LockSupport.parkNanos(wait);
+					}
+					_harness._frame = frame;
+					_renderer.setFrameTime(frame * _period);
+					drawable.display();
+				}
+				_harness._frame = -1;
+				drawable.display(); // collect the last GPU time
+			}
+		}
+		finally {
+			drawable.destroy();
+			if (_csv != null) _csv.close();
+		}
+	}
+
+	/**
+	 * Wraps the renderer to time and capture each frame.  GPU times are
+	 * collected a frame late, so waiting on a query doesn't stall the
+	 * frame being timed.
+	 */
+	private class Harness implements GLEventListener {
+		private final int[] _queries = new int[2];
+		private boolean _gpuTiming = false;
+		private ByteBuffer _pixels = null;
+		private int _pass;
+		private int _frame;
+		private int _pendingFrame = -1;
+		private long _pendingCPU;
+
+		@Override
+		public void init(GLAutoDrawable d) {
+			GL2 gl = d.getGL().getGL2();
+			_renderer.init(d);
+			_gpuTiming = gl.isExtensionAvailable("GL_ARB_timer_query") ||
+					gl.isExtensionAvailable("GL_EXT_timer_query");
+			if (_gpuTiming) gl.glGenQueries(_queries.length, _queries, 0);
+		}
+
+		@Override
+		public void reshape(GLAutoDrawable d, int x, int y, int width, int height) {
+			_renderer.reshape(d, x, y, width, height);
+		}
+
+		@Override
+		public void display(GLAutoDrawable d) {
+			GL2 gl = d.getGL().getGL2();
+			if (_frame < 0) {
+				gl.glFinish();
+				report(gl);
+				return;
+			}
+
+			int query = _queries[_frame % _queries.length];
+			if (_gpuTiming) gl.glBeginQuery(GL_TIME_ELAPSED, query);
+			long start = System.nanoTime();
+			_renderer.display(d);
+			long cpu = System.nanoTime() - start;
+			if (_gpuTiming) gl.glEndQuery(GL_TIME_ELAPSED);
+
+			report(gl);
+			_pendingFrame = _frame;
+			_pendingCPU = cpu;
+
+			if (_dumpDir != null && _pass == 0) dump(gl, _frame);
+		}
+
+		/**
+		 * Record the times for the previous frame.
+		 */
+		private void report(GL2 gl) {
+			if (_pendingFrame < 0) return;
+
+			long gpu = -1;
+			if (_gpuTiming) {
+				long[] result = new long[1];
+				int query = _queries[_pendingFrame % _queries.length];
+				gl.glGetQueryObjectui64v(query, GL_QUERY_RESULT, result, 0);
+				gpu = result[0];
+				_gpu.record(gpu);
+			}
+			_cpu.record(_pendingCPU);
+			if (_csv != null) {
+				_csv.printf("%d,%d,%d,%d,%d%n", _pass, _pendingFrame,
+						_pendingFrame * _period, _pendingCPU, gpu);
+			}
+			_pendingFrame = -1;
+		}
+
+		private void dump(GL2 gl, int frame) {
+			if (_pixels == null) _pixels = ByteBuffer.allocateDirect(_width * _height * 4);
+			_pixels.clear();
+			gl.glPixelStorei(GL_PACK_ALIGNMENT, 1);
+			gl.glReadPixels(0, 0, _width, _height, GL_RGBA, GL_UNSIGNED_BYTE, _pixels);
+
+			String name = String.format("frame-%05d.%s", frame,
+					_dumpFormat == DumpFormat.PNG ? "png" : "rgba");
+			File file = new File(_dumpDir, name);
+			try {
+				if (_dumpFormat == DumpFormat.PNG) {
+					BufferedImage image = new BufferedImage(_width, _height,
+							BufferedImage.TYPE_INT_ARGB);
+					for (int y = 0; y < _height; y++) {
+						int row = (_height - 1 - y) * _width * 4;
+						for (int x = 0; x < _width; x++) {
+							int i = row + x * 4;
+							int argb = (_pixels.get(i + 3) & 0xff) << 24 |
+									(_pixels.get(i) & 0xff) << 16 |
+									(_pixels.get(i + 1) & 0xff) << 8 |
+									(_pixels.get(i + 2) & 0xff);
+							image.setRGB(x, y, argb);
+						}
+					}
+					ImageIO.write(image, "png", file);
+				}
+				else {
+					byte[] bytes = new byte[_pixels.capacity()];
+					_pixels.get(bytes);
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+					try {
+						out.write(bytes);
+					}
+					finally {
+						out.close();
+					}
+				}
+			}
+			catch (IOException e) {
+				System.err.println("Could not write " + file + ": " + e.getMessage());
+			}
+		}
+
+		@Override
+		public void dispose(GLAutoDrawable d) {
+			if (_gpuTiming) d.getGL().getGL2().glDeleteQueries(_queries.length, _queries, 0);
+			_renderer.dispose(d);
+		}
+	}
+
+	private static void usage() {
+		System.err.println("usage: AnimationBenchmark [options] <animation file>");
+		System.err.println("  -fps <rate>          replay frame rate (default 60)");
+		System.err.println("  -size <w>x<h>        drawable size (default 800x600)");
+		System.err.println("  -points <n>          points to draw (default all)");
+		System.err.println("  -radius <r>          point radius (default 0.3)");
+		System.err.println("  -connect             join points with lines");
+		System.err.println("  -passes <n>          times to replay (default 1)");
+		System.err.println("  -unpaced             draw frames as fast as possible");
+		System.err.println("  -timings <file>      write per-frame timings as CSV");
+		System.err.println("  -png <dir>           write first pass frames as PNG");
+		System.err.println("  -raw <dir>           write first pass frames as raw RGBA");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) {
+		double fps = 60;
+		int width = 800, height = 600;
+		int points = Integer.MAX_VALUE;
+		float radius = 0.3f;
+		boolean connect = false;
+		int passes = 1;
+		boolean paced = true;
+		File timings = null;
+		File dumpDir = null;
+		DumpFormat dumpFormat = DumpFormat.PNG;
+		File file = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("-fps")) fps = Double.parseDouble(args[++i]);
+				else if (arg.equals("-size")) {
+					String[] dims = args[++i].split("x");
+					width = Integer.parseInt(dims[0]);
+					height = Integer.parseInt(dims[1]);
+				}
+				else if (arg.equals("-points")) points = Integer.parseInt(args[++i]);
+				else if (arg.equals("-radius")) radius = Float.parseFloat(args[++i]);
+				else if (arg.equals("-connect")) connect = true;
+				else if (arg.equals("-passes")) passes = Integer.parseInt(args[++i]);
+				else if (arg.equals("-unpaced")) paced = false;
+				else if (arg.equals("-timings")) timings = new File(args[++i]);
+				else if (arg.equals("-png")) {
+					dumpDir = new File(args[++i]);
+					dumpFormat = DumpFormat.PNG;
+				}
+				else if (arg.equals("-raw")) {
+					dumpDir = new File(args[++i]);
+					dumpFormat = DumpFormat.RAW;
+				}
+				else if (file == null && !arg.startsWith("-")) file = new File(arg);
+				else usage();
+			}
+		}
+		catch (RuntimeException e) {
+			usage();
+		}
+		if (file == null) usage();
+
+		try {
+			AnimationSequence sequence = AnimationParser.parseFile(file);
+			AnimationBenchmark bench = new AnimationBenchmark(sequence, points, radius,
+					connect, width, height);
+			bench.setFrameRate(fps);
+			bench.setPasses(passes);
+			bench.setPaced(paced);
+			if (timings != null) bench.setTimingFile(timings);
+			if (dumpDir != null) {
+				dumpDir.mkdirs();
+				bench.setDump(dumpDir, dumpFormat);
+			}
+
+			bench.run();
+
+			System.out.println(file.getName() + " at " + fps + " fps, " + width + "x" + height);
+			System.out.println("cpu: " + bench.getCPUTimes());
+			System.out.println("gpu: " + (bench.getGPUTimes().getCount() > 0 ?
+					bench.getGPUTimes() : "not supported"));
+			System.exit(0);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
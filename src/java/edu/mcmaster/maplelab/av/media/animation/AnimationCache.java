@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media.animation;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+
+import edu.mcmaster.maplelab.common.LogContext;
+
+/**
+ * Compiled binary cache of parsed animation files.  The first time a text
+ * animation file is parsed, its packed data is written to a sidecar file
+ * in a hidden directory next to the source.  Later loads of the same file
+ * (same path, modification time, length and requested aspect ratio) are
+ * read in one go and copied straight into the sequence arrays, skipping
+ * the text parse entirely.  The file is read rather than memory mapped, as
+ * a live mapping would keep it from being replaced on some platforms.
+ *
+ * Failures (e.g. read-only data directories) are logged and otherwise
+ * ignored; the caller just falls back to parsing the text file.
+ *
+ * @author bguseman
+ */
+final class AnimationCache {
+	/** Name of the cache directory created alongside animation files. */
+	static final String CACHE_DIR = ".animation-cache";
+	private static final String CACHE_EXT = ".anc";
+	/** File identifier: "ANMC". */
+	private static final int MAGIC = 0x414E4D43;
+	/** 
+	 * Bump whenever the layout of this file or of AnimationData changes, or 
+	 * parsing gives different values.
+	 */
+	private static final int VERSION = 3;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private AnimationCache() {}
+
+	/**
+	 * Load the compiled version of the given animation file, if present and
+	 * up to date.
+	 *
+	 * @param source text animation file
+	 * @param aspectRatio requested point aspect ratio, as passed to the parser
+	 * @return the cached sequence, or null if none is available
+	 */
+	static AnimationSequence load(File source, Float aspectRatio) {
+		File cache = getCacheFile(source, aspectRatio);
+		if (!cache.isFile()) return null;
+
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(cache);
+			FileChannel channel = in.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+			while (buf.hasRemaining()) {
+				if (channel.read(buf) < 0) throw new EOFException("Truncated animation cache " + cache);
+			}
+			buf.flip();
+
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION) return null;
+
+			byte[] pathBytes = new byte[buf.getInt()];
+			buf.get(pathBytes);
+			String path = new String(pathBytes, UTF8);
+			long modified = buf.getLong();
+			long length = buf.getLong();
+			float requested = buf.getFloat();
+			float aspect = buf.getFloat();
+
+			if (!path.equals(source.getAbsolutePath()) || modified != source.lastModified() ||
+					length != source.length() || requested != toKey(aspectRatio)) {
+				return null;
+			}
+
+			AnimationData data = new AnimationData(buf);
+			LogContext.getLogger().fine(String.format("Loaded compiled animation %s", cache));
+			return new AnimationSequence(source.getName(), data, aspect);
+		}
+		catch (Exception ex) {
+			// corrupt or unreadable - will be rewritten after parsing
+			LogContext.getLogger().log(Level.FINE, "Unable to read animation cache " + cache, ex);
+			return null;
+		}
+		finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * Write the compiled version of the given sequence, parsed from the
+	 * given source file.
+	 *
+	 * @param source text animation file
+	 * @param aspectRatio requested point aspect ratio, as passed to the parser
+	 * @param seq sequence parsed from the source
+	 */
+	static void store(File source, Float aspectRatio, AnimationSequence seq) {
+		File cache = getCacheFile(source, aspectRatio);
+		File dir = cache.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			LogContext.getLogger().fine("Unable to create animation cache directory " + dir);
+			return;
+		}
+
+		AnimationData data = seq.getData();
+		byte[] pathBytes = source.getAbsolutePath().getBytes(UTF8);
+		ByteBuffer buf = ByteBuffer.allocate(4 + 4 + 4 + pathBytes.length + 8 + 8 + 4 + 4 +
+				data.getSerializedSize());
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(pathBytes.length);
+		buf.put(pathBytes);
+		buf.putLong(source.lastModified());
+		buf.putLong(source.length());
+		buf.putFloat(toKey(aspectRatio));
+		buf.putFloat(seq.getPointAspect());
+		data.writeTo(buf);
+		buf.flip();
+
+		// write to a temporary file first, so readers never see a partial file
+		File temp = new File(dir, cache.getName() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			FileChannel channel = out.getChannel();
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			out.close();
+			out = null;
+
+			if (cache.exists() && !cache.delete() || !temp.renameTo(cache)) {
+				throw new IOException("Unable to rename " + temp + " to " + cache);
+			}
+		}
+		catch (IOException ex) {
+			LogContext.getLogger().log(Level.WARNING, "Unable to write animation cache " + cache, ex);
+			temp.delete();
+		}
+		finally {
+			close(out);
+		}
+	}
+
+	/**
+	 * Get the cache file for the given source and aspect ratio.
+	 */
+	private static File getCacheFile(File source, Float aspectRatio) {
+		File dir = new File(source.getAbsoluteFile().getParentFile(), CACHE_DIR);
+		String name = String.format("%s_%08x%s", source.getName(),
+				Float.floatToIntBits(toKey(aspectRatio)), CACHE_EXT);
+		return new File(dir, name);
+	}
+
+	/**
+	 * Normalize the requested aspect ratio.  Null or non-positive values
+	 * mean "use the file's value".
+	 */
+	private static float toKey(Float aspectRatio) {
+		return aspectRatio != null && aspectRatio > 0 ? aspectRatio : 0f;
+	}
+
+	private static void close(java.io.Closeable c) {
+		if (c == null) return;
+		try {
+			c.close();
+		}
+		catch (IOException ex) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media.animation;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Packed storage for all frames of an animation.  Point values are held
+ * in contiguous primitive arrays, frame by frame, with missing values
+ * recorded in bit sets.  Frames may have differing numbers of points, so
+ * each frame records the offset of its first point.
+ *
+ * Data is appended a point at a time, and each frame is closed with
+ * {@link #endFrame(long, boolean, float)}.  Call {@link #trim()} once
+ * loading is complete to release unused capacity.
+ *
+ * Data can also be written to and read from a flat binary layout
+ * (see {@link AnimationCache}), which is simply each array in turn.
+ *
+ * @author bguseman
+ */
+final class AnimationData {
+	/** Shape lookup by ordinal (values() copies on every call). */
+	private static final AnimationShapeDrawable[] SHAPES = AnimationShapeDrawable.values();
+
+	// per-frame data
+	private int _frameCount = 0;
+	private long[] _times;
+	private int[] _offsets;
+	private float[] _lum;
+	private final BitSet _hasLum;
+
+	// per-point data
+	private int _pointCount = 0;
+	private float[] _x;
+	private float[] _y;
+	private float[] _r;
+	private float[] _g;
+	private float[] _b;
+	private float[] _size;
+	private byte[] _shape;
+	private final BitSet _hasLoc;
+	private final BitSet _hasColor;
+	private final BitSet _hasSize;
+
+	AnimationData() {
+		this(64, 512);
+	}
+
+	AnimationData(int frameCapacity, int pointCapacity) {
+		frameCapacity = Math.max(1, frameCapacity);
+		pointCapacity = Math.max(1, pointCapacity);
+		_times = new long[frameCapacity];
+		_offsets = new int[frameCapacity + 1];
+		_lum = new float[frameCapacity];
+		_x = new float[pointCapacity];
+		_y = new float[pointCapacity];
+		_r = new float[pointCapacity];
+		_g = new float[pointCapacity];
+		_b = new float[pointCapacity];
+		_size = new float[pointCapacity];
+		_shape = new byte[pointCapacity];
+		_hasLum = new BitSet();
+		_hasLoc = new BitSet();
+		_hasColor = new BitSet();
+		_hasSize = new BitSet();
+	}
+	
+	/**
+	 * Read data previously written by {@link #writeTo(ByteBuffer)}.
+	 */
+	AnimationData(ByteBuffer in) {
+		_frameCount = in.getInt();
+		_pointCount = in.getInt();
+		
+		_times = new long[_frameCount];
+		in.asLongBuffer().get(_times);
+		skip(in, 8*_frameCount);
+		_offsets = new int[_frameCount + 1];
+		in.asIntBuffer().get(_offsets);
+		skip(in, 4*_offsets.length);
+		_lum = readFloats(in, _frameCount);
+		_hasLum = readBits(in, _frameCount);
+		
+		_x = readFloats(in, _pointCount);
+		_y = readFloats(in, _pointCount);
+		_r = readFloats(in, _pointCount);
+		_g = readFloats(in, _pointCount);
+		_b = readFloats(in, _pointCount);
+		_size = readFloats(in, _pointCount);
+		_shape = new byte[_pointCount];
+		in.get(_shape);
+		for (byte b : _shape) {
+			if (b < 0 || b >= SHAPES.length) {
+				throw new IllegalArgumentException("Invalid shape: " + b);
+			}
+		}
+		_hasLoc = readBits(in, _pointCount);
+		_hasColor = readBits(in, _pointCount);
+		_hasSize = readBits(in, _pointCount);
+	}
+	
+	/**
+	 * Get the number of bytes needed by {@link #writeTo(ByteBuffer)}.
+	 */
+	int getSerializedSize() {
+		int frameBits = (_frameCount + 7) / 8;
+		int pointBits = (_pointCount + 7) / 8;
+		return 8 + _frameCount*(8 + 4 + 4) + 4 + frameBits + 
+				_pointCount*(6*4 + 1) + 3*pointBits;
+	}
+	
+	/**
+	 * Write all data to the given buffer.
+	 */
+	void writeTo(ByteBuffer out) {
+		out.putInt(_frameCount);
+		out.putInt(_pointCount);
+		
+		out.asLongBuffer().put(_times, 0, _frameCount);
+		skip(out, 8*_frameCount);
+		out.asIntBuffer().put(_offsets, 0, _frameCount + 1);
+		skip(out, 4*(_frameCount + 1));
+		writeFloats(out, _lum, _frameCount);
+		writeBits(out, _hasLum, _frameCount);
+		
+		writeFloats(out, _x, _pointCount);
+		writeFloats(out, _y, _pointCount);
+		writeFloats(out, _r, _pointCount);
+		writeFloats(out, _g, _pointCount);
+		writeFloats(out, _b, _pointCount);
+		writeFloats(out, _size, _pointCount);
+		out.put(_shape, 0, _pointCount);
+		writeBits(out, _hasLoc, _pointCount);
+		writeBits(out, _hasColor, _pointCount);
+		writeBits(out, _hasSize, _pointCount);
+	}
+	
+	private static void skip(ByteBuffer buf, int bytes) {
+		buf.position(buf.position() + bytes);
+	}
+	
+	private static float[] readFloats(ByteBuffer in, int count) {
+		float[] retval = new float[count];
+		in.asFloatBuffer().get(retval);
+		skip(in, 4*count);
+		return retval;
+	}
+	
+	private static void writeFloats(ByteBuffer out, float[] values, int count) {
+		out.asFloatBuffer().put(values, 0, count);
+		skip(out, 4*count);
+	}
+	
+	private static BitSet readBits(ByteBuffer in, int count) {
+		BitSet retval = new BitSet(count);
+		int b = 0;
+		for (int i = 0; i < count; i++) {
+			if ((i & 7) == 0) b = in.get();
+			if ((b & (1 << (i & 7))) != 0) retval.set(i);
+		}
+		return retval;
+	}
+	
+	private static void writeBits(ByteBuffer out, BitSet bits, int count) {
+		int b = 0;
+		for (int i = 0; i < count; i++) {
+			if (bits.get(i)) b |= 1 << (i & 7);
+			if ((i & 7) == 7 || i == count - 1) {
+				out.put((byte) b);
+				b = 0;
+			}
+		}
+	}
+
+	/**
+	 * Append a point to the frame currently being built.
+	 */
+	void addPoint(boolean hasLoc, float x, float y, boolean hasColor, float r, float g, float b,
+			boolean hasSize, float size, AnimationShapeDrawable shape) {
+		if (_pointCount == _x.length) growPoints(2*_x.length);
+
+		int i = _pointCount++;
+		_x[i] = x;
+		_y[i] = y;
+		_r[i] = r;
+		_g[i] = g;
+		_b[i] = b;
+		_size[i] = size;
+		_shape[i] = (byte) (shape != null ? shape : AnimationShapeDrawable.DOT).ordinal();
+		_hasLoc.set(i, hasLoc);
+		_hasColor.set(i, hasColor);
+		_hasSize.set(i, hasSize);
+	}
+
+	/**
+	 * Close the current frame, which will contain all points added since
+	 * the previous frame was closed.
+	 */
+	void endFrame(long nanoTime, boolean hasLum, float lum) {
+		if (_frameCount == _times.length) growFrames(2*_times.length);
+
+		int f = _frameCount++;
+		_times[f] = nanoTime;
+		_lum[f] = lum;
+		_hasLum.set(f, hasLum);
+		_offsets[f + 1] = _pointCount;
+	}
+
+	/**
+	 * Release unused capacity.
+	 */
+	void trim() {
+		if (_times.length > _frameCount) growFrames(_frameCount);
+		if (_x.length > _pointCount) growPoints(_pointCount);
+	}
+
+	private void growFrames(int capacity) {
+		capacity = Math.max(1, capacity);
+		_times = Arrays.copyOf(_times, capacity);
+		_offsets = Arrays.copyOf(_offsets, capacity + 1);
+		_lum = Arrays.copyOf(_lum, capacity);
+	}
+
+	private void growPoints(int capacity) {
+		capacity = Math.max(1, capacity);
+		_x = Arrays.copyOf(_x, capacity);
+		_y = Arrays.copyOf(_y, capacity);
+		_r = Arrays.copyOf(_r, capacity);
+		_g = Arrays.copyOf(_g, capacity);
+		_b = Arrays.copyOf(_b, capacity);
+		_size = Arrays.copyOf(_size, capacity);
+		_shape = Arrays.copyOf(_shape, capacity);
+	}
+
+	int getFrameCount() {
+		return _frameCount;
+	}
+
+	/**
+	 * Get the total number of points over all frames.
+	 */
+	int getTotalPointCount() {
+		return _pointCount;
+	}
+
+	long getTime(int frame) {
+		return _times[frame];
+	}
+
+	boolean hasLuminance(int frame) {
+		return _hasLum.get(frame);
+	}
+
+	float getLuminance(int frame) {
+		return _lum[frame];
+	}
+
+	/**
+	 * Get the number of points in the given frame.
+	 */
+	int getPointCount(int frame) {
+		return _offsets[frame + 1] - _offsets[frame];
+	}
+
+	/**
+	 * Get the index of the first point of the given frame.  Points of
+	 * the frame follow contiguously.
+	 */
+	int getPointOffset(int frame) {
+		return _offsets[frame];
+	}
+
+	boolean hasLocation(int point) {
+		return _hasLoc.get(point);
+	}
+
+	float getX(int point) {
+		return _x[point];
+	}
+
+	float getY(int point) {
+		return _y[point];
+	}
+
+	boolean hasColor(int point) {
+		return _hasColor.get(point);
+	}
+
+	float getRed(int point) {
+		return _r[point];
+	}
+
+	float getGreen(int point) {
+		return _g[point];
+	}
+
+	float getBlue(int point) {
+		return _b[point];
+	}
+
+	boolean hasSize(int point) {
+		return _hasSize.get(point);
+	}
+
+	float getSize(int point) {
+		return _size[point];
+	}
+
+	AnimationShapeDrawable getShape(int point) {
+		return SHAPES[_shape[point]];
+	}
+}
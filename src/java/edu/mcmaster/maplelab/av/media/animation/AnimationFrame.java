@@ -7,29 +7,90 @@
  */
 package edu.mcmaster.maplelab.av.media.animation;
 
+import java.util.AbstractList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
- * AnimationFrame represents one frame in the animation.
+ * AnimationFrame represents one frame in the animation.  Frames of a 
+ * loaded sequence are lightweight views over its packed 
+ * {@link AnimationData}; frames created directly just hold their values.
  * 
  * @author Catherine Elder <cje@datamininglab.com>
  */
 public class AnimationFrame {
-	private List<AnimationPoint> _pointList;
+	private final AnimationData _data;
+	private final int _frame;
+	// values of a frame not backed by data
+	private final List<AnimationPoint> _pointList;
 	private final long _nanoTime;
 	private final Double _luminance;
 
 	public AnimationFrame(double timeInSeconds, List<AnimationPoint> pointList, Double luminance) {
-		_nanoTime = TimeUnit.NANOSECONDS.convert(((long) (1000d*timeInSeconds)), TimeUnit.MILLISECONDS);
+		this(pointList, luminance, toNanos(timeInSeconds));
+	}
+	
+	/**
+	 * Create a frame at an exact nanosecond time.
+	 */
+	AnimationFrame(List<AnimationPoint> pointList, Double luminance, long nanoTime) {
+		_data = null;
+		_frame = -1;
 		_pointList = pointList;
+		_nanoTime = nanoTime;
 		_luminance = luminance;
 	}
+	
+	/**
+	 * Create a view of the given frame in the given data.
+	 */
+	AnimationFrame(AnimationData data, int frame) {
+		_data = data;
+		_frame = frame;
+		_pointList = null;
+		_nanoTime = data.getTime(frame);
+		_luminance = null;
+	}
+	
+	/**
+	 * Convert a frame time in seconds, as found in animation files, to nanoseconds.
+	 * Rounded to the nearest millisecond, since seconds such as 1.001 have no
+	 * exact binary representation.
+	 */
+	static long toNanos(double timeInSeconds) {
+		return TimeUnit.MILLISECONDS.toNanos(Math.round(1000d*timeInSeconds));
+	}
+	
+	/**
+	 * Append the given values to the data as a new frame.
+	 */
+	static void append(AnimationData data, List<AnimationPoint> pointList, Double luminance, 
+			long nanoTime) {
+		for (AnimationPoint ap : pointList) {
+			AnimationPoint.append(data, ap.getLocation(), ap.getColor(), ap.getSize(), ap.getShape());
+		}
+		data.endFrame(nanoTime, luminance != null, 
+				luminance != null ? luminance.floatValue() : 0);
+	}
 
 	/** Provides an unmodifiable ordered list of joint locations. */
 	public List<AnimationPoint> getJointLocations() {	
-		return Collections.unmodifiableList(_pointList);
+		if (_data == null) return Collections.unmodifiableList(_pointList);
+		
+		final int offset = _data.getPointOffset(_frame);
+		final int count = _data.getPointCount(_frame);
+		return new AbstractList<AnimationPoint>() {
+			@Override
+			public AnimationPoint get(int index) {
+				if (index < 0 || index >= count) throw new IndexOutOfBoundsException();
+				return new AnimationPoint(_data, offset + index);
+			}
+			@Override
+			public int size() {
+				return count;
+			}
+		};
 	}
 
 	/**
@@ -43,6 +104,7 @@ public class AnimationFrame {
 	 * Get the luminance value.
 	 */
 	public Double getLuminance () {
-		return _luminance;
+		if (_data == null) return _luminance;
+		return _data.hasLuminance(_frame) ? Double.valueOf(_data.getLuminance(_frame)) : null;
 	}
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media.animation;
+
+import java.util.Arrays;
+
+/**
+ * Reusable, preallocated frame storage filled by
+ * {@link AnimationSequence#getFrameAtTime(long, AnimationFrameBuffer)}.
+ * Point data is kept as parallel primitive arrays so that the render
+ * loop can look up and draw a frame without creating any objects.
+ * Arrays grow as needed, but are never shrunk.
+ *
+ * XXX: Not thread safe - intended to be owned by a single renderer.
+ *
+ * @author bguseman
+ */
+public class AnimationFrameBuffer {
+	/** Initial point capacity. */
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private int _count = 0;
+	private long _time = 0;
+	private boolean _hasLum = false;
+	private double _lum = 0;
+
+	private double[] _x;
+	private double[] _y;
+	private double[] _r;
+	private double[] _g;
+	private double[] _b;
+	private double[] _size;
+	private boolean[] _hasLoc;
+	private boolean[] _hasColor;
+	private boolean[] _hasSize;
+	private AnimationShapeDrawable[] _shape;
+
+	/** Lookup cursor: the sequence last read and the frame index found. */
+	private AnimationSequence _cursorSeq = null;
+	private int _cursor = -1;
+
+	public AnimationFrameBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public AnimationFrameBuffer(int initialCapacity) {
+		allocate(Math.max(1, initialCapacity));
+	}
+
+	private void allocate(int capacity) {
+		_x = new double[capacity];
+		_y = new double[capacity];
+		_r = new double[capacity];
+		_g = new double[capacity];
+		_b = new double[capacity];
+		_size = new double[capacity];
+		_hasLoc = new boolean[capacity];
+		_hasColor = new boolean[capacity];
+		_hasSize = new boolean[capacity];
+		_shape = new AnimationShapeDrawable[capacity];
+	}
+
+	/**
+	 * Prepare the buffer to receive a frame with the given
+	 * number of points at the given time.
+	 */
+	void reset(int pointCount, long time) {
+		if (pointCount > _x.length) {
+			int capacity = Math.max(pointCount, 2*_x.length);
+			_x = Arrays.copyOf(_x, capacity);
+			_y = Arrays.copyOf(_y, capacity);
+			_r = Arrays.copyOf(_r, capacity);
+			_g = Arrays.copyOf(_g, capacity);
+			_b = Arrays.copyOf(_b, capacity);
+			_size = Arrays.copyOf(_size, capacity);
+			_hasLoc = Arrays.copyOf(_hasLoc, capacity);
+			_hasColor = Arrays.copyOf(_hasColor, capacity);
+			_hasSize = Arrays.copyOf(_hasSize, capacity);
+			_shape = Arrays.copyOf(_shape, capacity);
+		}
+		_count = pointCount;
+		_time = time;
+		_hasLum = false;
+	}
+
+	void setLuminance(boolean present, double lum) {
+		_hasLum = present;
+		_lum = lum;
+	}
+
+	void setLocation(int i, boolean present, double x, double y) {
+		_hasLoc[i] = present;
+		_x[i] = x;
+		_y[i] = y;
+	}
+
+	void setColor(int i, boolean present, double r, double g, double b) {
+		_hasColor[i] = present;
+		_r[i] = r;
+		_g[i] = g;
+		_b[i] = b;
+	}
+
+	void setSize(int i, boolean present, double size) {
+		_hasSize[i] = present;
+		_size[i] = size;
+	}
+
+	void setShape(int i, AnimationShapeDrawable shape) {
+		_shape[i] = shape != null ? shape : AnimationShapeDrawable.DOT;
+	}
+
+	/**
+	 * Get the last frame index found in the given sequence, or -1
+	 * if this buffer was last filled from a different sequence.
+	 */
+	int getCursor(AnimationSequence seq) {
+		return seq == _cursorSeq ? _cursor : -1;
+	}
+
+	void setCursor(AnimationSequence seq, int frameIndex) {
+		_cursorSeq = seq;
+		_cursor = frameIndex;
+	}
+
+	/**
+	 * Get the number of points in the current frame.
+	 */
+	public int getPointCount() {
+		return _count;
+	}
+
+	/**
+	 * Get the time of the current frame, in nanoseconds.
+	 */
+	public long getTimeInNanos() {
+		return _time;
+	}
+
+	public boolean hasLuminance() {
+		return _hasLum;
+	}
+
+	/**
+	 * Get the frame luminance, or the given default if none is specified.
+	 */
+	public double getLuminance(double defaultValue) {
+		return _hasLum ? _lum : defaultValue;
+	}
+
+	public boolean hasLocation(int i) {
+		return _hasLoc[i];
+	}
+
+	public double getX(int i) {
+		return _x[i];
+	}
+
+	public double getY(int i) {
+		return _y[i];
+	}
+
+	public boolean hasColor(int i) {
+		return _hasColor[i];
+	}
+
+	public double getRed(int i) {
+		return _r[i];
+	}
+
+	public double getGreen(int i) {
+		return _g[i];
+	}
+
+	public double getBlue(int i) {
+		return _b[i];
+	}
+
+	public boolean hasSize(int i) {
+		return _hasSize[i];
+	}
+
+	/**
+	 * Get the point size, or the given default if none is specified.
+	 */
+	public double getSize(int i, double defaultValue) {
+		return _hasSize[i] ? _size[i] : defaultValue;
+	}
+
+	public AnimationShapeDrawable getShape(int i) {
+		return _shape[i];
+	}
+}
@@ -1,7 +1,7 @@
 /*
  * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
  * <schutz@mcmaster.ca>
- * 
+ *
  * Distributed under the terms of the GNU Lesser General Public License (LGPL).
  * See LICENSE.TXT that came with this file.
  */
@@ -12,21 +12,32 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Scanner;
+import java.io.Reader;
 import java.util.logging.Level;
-import java.util.regex.MatchResult;
-
-import javax.vecmath.Point2d;
-import javax.vecmath.Vector3d;
 
+import edu.mcmaster.maplelab.av.media.MediaCache;
 import edu.mcmaster.maplelab.common.LogContext;
 
 /**
  * This class parses a file and creates an AnimationSequence.
+ *
+ * Two formats are supported.  The original format lists a set of
+ * "key=value" data flags ({@value #COLOR_DATA_KEY}, {@value #SIZE_DATA_KEY},
+ * {@value #SHAPE_DATA_KEY}, {@value #LUMINANCE_DATA_KEY},
+ * {@value #ASPECT_RATIO_KEY}), then one line per frame: the time in seconds,
+ * then x, y and the flagged secondary columns for each point, in any order.
+ * Points are ended by any non-numeric markers, optionally followed by a
+ * frame luminance value.
+ *
+ * The versioned format begins with a "{@value #VERSION_KEY}=n" line, may
+ * contain the same key lines, and then has a title line beginning with
+ * "time" that names every column: "x" starts a new point, followed by
+ * "y" and any of "color", "size" and "shape"; a "luminance" column holds
+ * the frame luminance.  Frame lines then give values in title order.
+ *
+ * In both formats, "-" marks a missing value (or a blank point, if in
+ * place of a location), and lines or tokens beginning with "%" are comments.
+ *
  * @author Catherine Elder <cje@datamininglab.com>
  */
 
@@ -37,566 +48,520 @@ public class AnimationParser {
 	private static final String LUMINANCE_DATA_KEY = "luminanceData";
 	private static final String SHAPE_DATA_KEY = "shapeData";
 	private static final String ASPECT_RATIO_KEY = "pointAspectRatio";
-	private static final String COLOR_PATTERN = "\\(({0,1}\\d{1,3}),\\s*(\\d{1,3}),\\s*(\\d{1,3})\\){0,1}";
-	private static final String SIZE_PATTERN = "size\\s*(\\d*\\.{0,1}\\d*)";
-	
-	private static Map<String, AnimationSequence> _animationCache = new HashMap<String, AnimationSequence>();
+	private static final String SIZE_PREFIX = "size";
+	private static final String TIME_TITLE = "time";
+
+	/** Column types for the versioned format. */
+	private enum Column { X, Y, COLOR, SIZE, SHAPE, LUMINANCE, IGNORED }
+
+	private static final AnimationShapeDrawable[] SHAPES = AnimationShapeDrawable.values();
 
 	public static AnimationSequence parseFile(File file) throws FileNotFoundException {
 		return parseFile(file, null, false);
 	}
-	
-	public static AnimationSequence parseFile(File file, Float aspectRatio, 
+
+	public static AnimationSequence parseFile(final File file, final Float aspectRatio,
 			boolean forceReload) throws FileNotFoundException {
-		
+
 		// method accepts a file  and returns AnimationSequence
 		// assign frames from file contents
-		
+
 		// 1 if not forced to reload and there is a cache, then just use it
-		String filename = file.getName();
-		AnimationSequence retval = forceReload ? null : _animationCache.get(filename);
-		if (retval != null) return retval;
-		
-		// 2 read version from the file. If none, use the old parser; otherwise, use the new parser
-		BufferedReader reader = new BufferedReader(new FileReader(file));	
-		String line = null;
+		String key = MediaCache.key("animation", file, aspectRatio);
+		return MediaCache.getInstance().get(key, 
+				new MediaCache.Loader<AnimationSequence, FileNotFoundException>() {
+			@Override
+			public AnimationSequence load() throws FileNotFoundException {
+				return loadFile(file, aspectRatio);
+			}
+			@Override
+			public long sizeOf(AnimationSequence value) {
+				return value.getData().getSerializedSize();
+			}
+			@Override
+			public void release(AnimationSequence value) {
+				// heap only
+			}
+		}, forceReload);
+	}
+
+	/**
+	 * Load the given file, bypassing the in-memory cache.
+	 */
+	private static AnimationSequence loadFile(File file, Float aspectRatio) 
+			throws FileNotFoundException {
 		
+		// 2 use the compiled version of the file, if it is up to date
+		AnimationSequence retval = AnimationCache.load(file, aspectRatio);
+		if (retval != null) return retval;
+
+		// 3 read version from the first line of the file. If none, use the
+		// old parser; otherwise, use the new parser
+		Reader reader = new BufferedReader(new FileReader(file));
 		try {
-			while ((line = reader.readLine()) != null) {
-				if (line.charAt(0)=='%') continue;
-				
-				Scanner scanner = new Scanner(line);
-				String property = scanner.next();
-				if (property.contains(VERSION_KEY)) 
-					retval = newParseFile(file, aspectRatio);
-				else
-					retval = oldParseFile(file, aspectRatio);
+			AnimationTokenizer tok = new AnimationTokenizer(reader);
+			ParseState state = new ParseState(aspectRatio);
+
+			// find first line with content
+			boolean versioned = false;
+			while (nextContentLine(tok)) {
+				if (tok.startsWith("%", 0)) continue;
+				versioned = tok.contains(VERSION_KEY);
+				break;
 			}
+
+			retval = versioned ? parseVersioned(file, tok, state) : parseOriginal(file, tok, state);
 		}
 		catch (IOException ex) {
 			LogContext.getLogger().log(Level.SEVERE, "Animation file reading error", ex);
 			ex.printStackTrace();
 		}
 		// close the reader
-		finally { 
-			try { 
-				reader.close();
-			} catch (Exception ex) {
-				ex.printStackTrace();
-			}
+		finally {
+			close(reader);
 		}
-		
+
+		// 4 compile for next time
+		if (retval != null) AnimationCache.store(file, aspectRatio, retval);
+
 		return retval;
 	}
 
 	// new Parser parse versioned animation files
 	public static AnimationSequence newParseFile(File file, Float aspectRatio) throws FileNotFoundException {
-		/*
-		BufferedReader reader = null;
-
-		ArrayList<AnimationFrame> frameList = new ArrayList<AnimationFrame>();
+		Reader reader = new BufferedReader(new FileReader(file));
+		try {
+			AnimationTokenizer tok = new AnimationTokenizer(reader);
+			return parseVersioned(file, tok, new ParseState(aspectRatio));
+		}
+		catch (IOException ex) {
+			LogContext.getLogger().log(Level.SEVERE, "Animation file reading error", ex);
+			ex.printStackTrace();
+			return null;
+		}
+		finally {
+			close(reader);
+		}
+	}
 
-		float aspect = aspectRatio != null && aspectRatio > 0 ? aspectRatio : 1.0f;
-		
+	public static AnimationSequence oldParseFile(File file, Float aspectRatio) throws FileNotFoundException {
+		Reader reader = new BufferedReader(new FileReader(file));
 		try {
-			reader = new BufferedReader(new FileReader(file));	
-			String line = null;
-			boolean reachDataLine = false;
-			
-			int nPoints = 0;
-			int [][] orders = new int [100][3];
-			
-			//int colsPerDot = 2;
-
-			while ((line = reader.readLine()) != null) {
-				LogContext.getLogger().finer(line);
-				
-				if (line.charAt(0)=='%') continue;
-
-				Scanner scanner = new Scanner(line);
-				
-				if (!reachDataLine) {
-					String item = scanner.next();
-					
-					String timeStr = "time";
-					String sizeStr = "size";
-					String colorStr = "color";
-					String shapeStr = "shape";
-					
-					if (timeStr.contains(item.toLowerCase())) {	// reach title line
-						
-						while ((item=scanner.next())!=null) {
-							int order;
-							if (item.toLowerCase().charAt(0)=='x') {
-								nPoints++;
-								orders[nPoints-1][0] = orders[nPoints-1][1] = orders[nPoints-1][2] = -1;
-								order = 0;
-							}
-							else if (item.toLowerCase().charAt(0)=='y') {
-								
-							}
-							else if (colorStr.contains(item.toLowerCase())) {
-								orders[nPoints-1][0] = order++;
-							}
-							else if (shapeStr.contains(item.toLowerCase())) {
-								orders[nPoints-1][1] = order++;								
-							}
-							else if (sizeStr.contains(item.toLowerCase())) {
-								orders[nPoints-1][2] = order++;								
-							}
-						
-						}
-						reachDataLine = true;
-					}
-				}
-				else {								
-					// at this point, we should be at frame lines
-					float time = scanner.nextFloat();
-					List<AnimationPoint> dotList = new ArrayList<AnimationPoint>();
-	
-					// search this line only
-					while (scanner.hasNext()) {
-						String item = scanner.next();
-						if (item.charAt(0)=='%') break;
-						
-						while (true) {
-							int cols = 0;
-							Double sizeDouble = null;
-							Vector3d colorVec = null;
-							Point2d point = null;
-							AnimationShapeDrawable shape = null;
-							
-							// should always have x and y
-							String xString = scanner.next();
-							String yString = scanner.next();
-							cols += 2;
-							
-							try {
-								// attempt to get the point location
-								point = new Point2d(Double.parseDouble(xString), 
-										Double.parseDouble(yString)/aspect);
-								
-								// now attempt to gather, then match any secondary properties
-								// for the animation point
-								// XXX: could this be more efficient while remaining robust?
-								String val = "";
-								while (cols < colsPerDot) {
-									String next = scanner.next();
-									if (next.equals("-")) {
-										cols++;
-										continue;
-									}
-									else if (shape == null) {
-										// check for shape, which will be single token
-										try {
-											shape = AnimationShapeDrawable.valueOf(next.toUpperCase());
-											cols++;
-											continue;
-										}
-										catch (Exception e) { }
-									}
-									
-									// concatenate token
-									val += next;
-									
-									// color
-									if (colorData && colorVec == null) {
-										Scanner s = new Scanner(val);
-										if (s.findInLine(COLOR_PATTERN) != null) {
-											MatchResult colorMatch = s.match();
-											colorVec = new Vector3d(Double.parseDouble(colorMatch.group(1)), 
-													Double.parseDouble(colorMatch.group(2)), 
-													Double.parseDouble(colorMatch.group(3)));		
-											cols++;
-										}
-									}
-									
-									// size
-									if (sizeData && sizeDouble == null) {
-										Scanner s = new Scanner(val);
-										String res = s.findInLine(SIZE_PATTERN);
-										// have to check against just "size" in case of space there
-										if (res != null && !res.equals("size")) {
-											MatchResult sizeMatch = s.match();
-											sizeDouble = Double.parseDouble(sizeMatch.group(1));
-											cols++;
-										}
-									}
-								}
-								
-								dotList.add(new AnimationPoint(point, colorVec, sizeDouble, shape));
-								// INNER LOOP ITERATION ENDS
-								if(!scanner.hasNext()) {
-								    break;
-								}
-							}
-							catch (Exception e) {
-								// if this is a "blank" animation point, just
-								// move past all of its entries and add the blank
-								if (xString.equals("-") || yString.equals("-")) {
-									while (cols < colsPerDot && scanner.hasNext()) {
-										scanner.next();
-										cols++;
-									}
-									// add the "blank" animation point - blanks
-									// must be present for interpolation purposes later
-									dotList.add(new AnimationPoint(point, colorVec, sizeDouble, shape));
-									// INNER LOOP ITERATION ENDS
-								}
-								// if we're at the end of the line, see if there
-								// is a luminance value at the end
-								else {
-									while (scanner.hasNext()) {
-										if (scanner.hasNextDouble()) {
-											lum = scanner.nextDouble();
-										}
-										else {
-											scanner.next();
-										}
-									}
-									break; // INNER LOOP ENDS
-								}
-							} 
-						}
-					}
-					frameList.add(new AnimationFrame(time, dotList, lum));	
-				}	// if
-			} 	// while
-		}	// try
+			AnimationTokenizer tok = new AnimationTokenizer(reader);
+			return parseOriginal(file, tok, new ParseState(aspectRatio));
+		}
 		catch (IOException ex) {
 			LogContext.getLogger().log(Level.SEVERE, "Animation file reading error", ex);
 			ex.printStackTrace();
+			return null;
 		}
-		// close the reader
-		finally { 
-			try { 
-				reader.close();
-			} catch (Exception ex) {
-				ex.printStackTrace();
+		finally {
+			close(reader);
+		}
+	}
+
+	/**
+	 * Parse a versioned file, starting with the current line.
+	 */
+	private static AnimationSequence parseVersioned(File file, AnimationTokenizer tok,
+			ParseState state) throws IOException {
+		AnimationData data = new AnimationData();
+		Column[] columns = null;
+
+		// start with the current line, if already read
+		boolean current = tok.length() > 0;
+		for (; current || nextContentLine(tok); current = false) {
+			if (tok.startsWith("%", 0)) continue;
+
+			if (columns == null) {
+				// header keys, then title line
+				if (tok.equalsIgnoreCase(TIME_TITLE) || tok.equalsIgnoreCase("t")) {
+					columns = readTitles(tok);
+				}
+				else {
+					state.readKey(tok);
+				}
+				continue;
 			}
+
+			// frame line
+			double time = tok.toNumber();
+			if (Double.isNaN(time)) {
+				LogContext.getLogger().warning(String.format(
+						"%s line %d: invalid frame time '%s'", file.getName(), tok.getLineNumber(), tok));
+				continue;
+			}
+
+			boolean inPoint = false;
+			for (int c = 0; c < columns.length && tok.next() && !tok.startsWith("%", 0); c++) {
+				Column col = columns[c];
+				if (col == Column.X && inPoint) {
+					state.addPoint(data);
+				}
+				if (col == Column.X) {
+					state.reset();
+					inPoint = true;
+				}
+				if (tok.isDash()) continue;
+
+				switch (col) {
+					case X:
+						state.x = tok.toNumber();
+						break;
+					case Y:
+						state.y = tok.toNumber();
+						break;
+					case COLOR:
+						state.readColor(tok);
+						break;
+					case SIZE:
+						int start = tok.trimStart();
+						if (tok.startsWith(SIZE_PREFIX, start)) start += SIZE_PREFIX.length();
+						state.size = start < tok.trimEnd() ? tok.toNumber(start, tok.trimEnd()) : Double.NaN;
+						break;
+					case SHAPE:
+						state.shape = toShape(tok);
+						break;
+					case LUMINANCE:
+						state.lum = tok.toNumber();
+						break;
+					default:
+						break;
+				}
+			}
+			if (inPoint) state.addPoint(data);
+
+			state.endFrame(data, time);
 		}
 
-		// Cache current animation sequence
-		String filename = file.getName();
-		AnimationSequence aniSeq = new AnimationSequence(filename, frameList, aspect);
-		_animationCache.put(filename, aniSeq);
+		if (columns == null) {
+			LogContext.getLogger().warning(file.getName() + ": no title line found");
+		}
 
-		return aniSeq; */
-		return null;
+		return finish(file, data, state);
 	}
 
-	
-	public static AnimationSequence oldParseFile(File file, Float aspectRatio) throws FileNotFoundException {
-		String filename = file.getName();
-		
-		BufferedReader reader = null;
+	/**
+	 * Move to the first token of the next non-empty line.
+	 * 
+	 * @return false at end of input
+	 */
+	private static boolean nextContentLine(AnimationTokenizer tok) throws IOException {
+		while (tok.nextLine()) {
+			if (tok.next()) return true;
+		}
+		return false;
+	}
 
-		ArrayList<AnimationFrame> frameList = new ArrayList<AnimationFrame>();
+	/**
+	 * Read the column titles of a versioned file.
+	 */
+	private static Column[] readTitles(AnimationTokenizer tok) throws IOException {
+		Column[] columns = new Column[16];
+		int count = 0;
+		while (tok.next()) {
+			if (tok.startsWith("%", 0)) break;
 
-		boolean colorData = false;
-		boolean sizeData = false;
-		boolean luminanceData = false;
-		boolean shapeData = false;
-		float aspect = aspectRatio != null && aspectRatio > 0 ? aspectRatio : 1.0f;
-		
-		try {
-			reader = new BufferedReader(new FileReader(file));	
-			String line = null;
-			int colsPerDot = 2;
-
-			while ((line = reader.readLine()) != null) {
-				LogContext.getLogger().finer(line);
-
-				Scanner scanner = new Scanner(line);
-
-				// parse data keys
-				if (!scanner.hasNextFloat()){					// skip over time data (first column)
-					String property = scanner.next();
-					if (property.contains(SIZE_DATA_KEY)) {
-						try {
-							String val = property.substring(property.indexOf("=") + 1);
-							sizeData = val.contains("t") || val.contains("T");
-							if (sizeData) colsPerDot++;
-						} 
-						catch (Exception ex) {
-							ex.printStackTrace();
-							continue;
-						}
-					}
-					else if (property.contains(COLOR_DATA_KEY)) {
-						try {
-							String val = property.substring(property.indexOf("=") + 1);
-							colorData = val.contains("t") || val.contains("T");
-							if (colorData) colsPerDot++;
-						} 
-						catch (Exception ex) {
-							ex.printStackTrace();
-							continue;
-						}
-					}
-					else if (property.contains(LUMINANCE_DATA_KEY)) {
-						try {
-							String val = property.substring(property.indexOf("=") + 1);
-							luminanceData = val.contains("t") || val.contains("T");
-							// XXX: luminance is per frame ONLY
-							//if (luminanceData) colsPerDot++;
-						} 
-						catch (Exception ex) {
-							ex.printStackTrace();
-							continue;
-						}
-					}
-					else if (property.contains(SHAPE_DATA_KEY)) {
-						try {
-							String val = property.substring(property.indexOf("=") + 1);
-							shapeData = val.contains("t") || val.contains("T");
-							if (shapeData) colsPerDot++;
-						} 
-						catch (Exception ex) {
-							ex.printStackTrace();
-							continue;
-						}
+			Column col;
+			int start = tok.trimStart();
+			char first = start < tok.length() ? Character.toLowerCase(tok.charAt(start)) : 0;
+			if (first == 'x') col = Column.X;
+			else if (first == 'y') col = Column.Y;
+			else if (isPrefixOf(tok, "color") || isPrefixOf(tok, "colour")) col = Column.COLOR;
+			else if (isPrefixOf(tok, "size")) col = Column.SIZE;
+			else if (isPrefixOf(tok, "shape")) col = Column.SHAPE;
+			else if (isPrefixOf(tok, "luminance")) col = Column.LUMINANCE;
+			else col = Column.IGNORED;
+
+			if (count == columns.length) {
+				Column[] grown = new Column[2*count];
+				System.arraycopy(columns, 0, grown, 0, count);
+				columns = grown;
+			}
+			columns[count++] = col;
+		}
+
+		Column[] retval = new Column[count];
+		System.arraycopy(columns, 0, retval, 0, count);
+		return retval;
+	}
+
+	/**
+	 * Determine if the current token is a (case insensitive) prefix of the given word.
+	 */
+	private static boolean isPrefixOf(AnimationTokenizer tok, String word) {
+		int start = tok.trimStart();
+		int len = tok.trimEnd() - start;
+		if (len <= 0 || len > word.length()) return false;
+		for (int i = 0; i < len; i++) {
+			if (Character.toLowerCase(tok.charAt(start + i)) != word.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parse an original (unversioned) file, starting with the current line.
+	 */
+	private static AnimationSequence parseOriginal(File file, AnimationTokenizer tok,
+			ParseState state) throws IOException {
+		AnimationData data = new AnimationData();
+
+		// start with the current line, if already read
+		boolean current = tok.length() > 0;
+		for (; current || nextContentLine(tok); current = false) {
+			double time = tok.toNumber();
+
+			// parse data keys
+			if (Double.isNaN(time)) {
+				// if no time and no property key, line is not valid
+				state.readKey(tok);
+				continue;
+			}
+
+			// at this point, we should be at frame lines
+			// search this line only
+			while (tok.next()) {
+				// should always have x and y
+				boolean blank = tok.isDash();
+				double x = tok.toNumber();
+				if (!tok.next()) {
+					// lone trailing value - may be luminance
+					if (!Double.isNaN(x)) state.lum = x;
+					break;
+				}
+				blank |= tok.isDash();
+				double y = tok.toNumber();
+
+				if (!blank && !Double.isNaN(x) && !Double.isNaN(y)) {
+					state.reset();
+					state.x = x;
+					state.y = y;
+					if (!readSecondary(tok, state)) {
+						// line ended mid-point: drop it
+						break;
 					}
-					else if ((aspectRatio == null || aspectRatio <= 0) && 
-							property.contains(ASPECT_RATIO_KEY)) {
-						
-						try {
-							String val = property.substring(property.indexOf("=") + 1);
-							aspect = Float.valueOf(val.trim());
-						} 
-						catch (Exception ex) {
-							ex.printStackTrace();
-							continue;
-						}
+					state.addPoint(data);
+				}
+				else if (blank) {
+					// if this is a "blank" animation point, just
+					// move past all of its entries and add the blank -
+					// blanks must be present for interpolation purposes later
+					state.reset();
+					readSecondary(tok, state);
+					state.reset();
+					state.addPoint(data);
+				}
+				else {
+					// if we're at the end of the line, see if there
+					// is a luminance value at the end
+					while (tok.next()) {
+						double lum = tok.toNumber();
+						if (!Double.isNaN(lum)) state.lum = lum;
 					}
-					
-					// if no float (time) and no property key, line is not valid
-					scanner.close();
+					break;
+				}
+			}
+
+			state.endFrame(data, time);
+		}
+
+		return finish(file, data, state);
+	}
+
+	/**
+	 * Read the secondary (color, size, shape) columns of a point in the
+	 * original format.  Columns may appear in any order, and a color may
+	 * span several tokens, e.g. "(0, 0, 0)".
+	 *
+	 * @return false if the line ended before all columns were read
+	 */
+	private static boolean readSecondary(AnimationTokenizer tok, ParseState state) throws IOException {
+		for (int cols = 2; cols < state.colsPerDot; cols++) {
+			if (!tok.next()) return false;
+			if (tok.isDash()) continue;
+
+			// check for shape, which will be single token
+			if (state.shape == null) {
+				AnimationShapeDrawable shape = toShape(tok);
+				if (shape != null) {
+					state.shape = shape;
 					continue;
 				}
-				
-				
-				// at this point, we should be at frame lines
-				float time = scanner.nextFloat();
-				Double lum = null;
-				List<AnimationPoint> dotList = new ArrayList<AnimationPoint>();
-
-				// search this line only
-				while (scanner.hasNext()) {
-					while (true) {
-						int cols = 0;
-						Double sizeDouble = null;
-						Vector3d colorVec = null;
-						Point2d point = null;
-						AnimationShapeDrawable shape = null;
-						
-						// should always have x and y
-						String xString = scanner.next();
-						String yString = scanner.next();
-						cols += 2;
-						
-						try {
-							// attempt to get the point location
-							point = new Point2d(Double.parseDouble(xString), 
-									Double.parseDouble(yString)/aspect);
-							
-							// now attempt to gather, then match any secondary properties
-							// for the animation point
-							// XXX: could this be more efficient while remaining robust?
-							String val = "";
-							while (cols < colsPerDot) {
-								String next = scanner.next();
-								if (next.equals("-")) {
-									cols++;
-									continue;
-								}
-								else if (shape == null) {
-									// check for shape, which will be single token
-									try {
-										shape = AnimationShapeDrawable.valueOf(next.toUpperCase());
-										cols++;
-										continue;
-									}
-									catch (Exception e) { }
-								}
-								
-								// concatenate token
-								val += next;
-								
-								// color
-								if (colorData && colorVec == null) {
-									Scanner s = new Scanner(val);
-									if (s.findInLine(COLOR_PATTERN) != null) {
-										MatchResult colorMatch = s.match();
-										colorVec = new Vector3d(Double.parseDouble(colorMatch.group(1)), 
-												Double.parseDouble(colorMatch.group(2)), 
-												Double.parseDouble(colorMatch.group(3)));		
-										cols++;
-									}
-								}
-								
-								// size
-								if (sizeData && sizeDouble == null) {
-									Scanner s = new Scanner(val);
-									String res = s.findInLine(SIZE_PATTERN);
-									// have to check against just "size" in case of space there
-									if (res != null && !res.equals("size")) {
-										MatchResult sizeMatch = s.match();
-										sizeDouble = Double.parseDouble(sizeMatch.group(1));
-										cols++;
-									}
-								}
-							}
-							
-							dotList.add(new AnimationPoint(point, colorVec, sizeDouble, shape));
-							// INNER LOOP ITERATION ENDS
-							if(!scanner.hasNext()) {
-							    break;
-							}
-						}
-						catch (Exception e) {
-							// if this is a "blank" animation point, just
-							// move past all of its entries and add the blank
-							if (xString.equals("-") || yString.equals("-")) {
-								while (cols < colsPerDot && scanner.hasNext()) {
-									scanner.next();
-									cols++;
-								}
-								// add the "blank" animation point - blanks
-								// must be present for interpolation purposes later
-								dotList.add(new AnimationPoint(point, colorVec, sizeDouble, shape));
-								// INNER LOOP ITERATION ENDS
-							}
-							// if we're at the end of the line, see if there
-							// is a luminance value at the end
-							else {
-								while (scanner.hasNext()) {
-									if (scanner.hasNextDouble()) {
-										lum = scanner.nextDouble();
-									}
-									else {
-										scanner.next();
-									}
-								}
-								break; // INNER LOOP ENDS
-							}
-						} 
-					}
-					
-					
-					
-					/*boolean addDot = true;
-					int cols = 0;
-					// collect data for 1 animation point
-					while (cols < colsPerDot) {
-						
-						
-						// attempt to extract the x location value
-						String val = scanner.next();
-						Double x = null;
-						try {
-							x = Double.parseDouble(val);
-						}
-						catch (NumberFormatException e) {
-							if (val.equals("-")) {
-								
-							}
-							// if there is not a valid point next, this
-							// must be pit/vis markers and luminance data
-							// (possibly) at the end of the line
-							while (scanner.hasNext()) {
-								// check for luminance
-								if (scanner.hasNextDouble()) {
-									lum = scanner.nextDouble();
-								}
-								else {
-									scanner.next();
-								}
-							}
-							addDot = false;
-							break; // end of line will break the outer loop, also
-						}
-						
-						// extract the full location			
-						try {
-							point = new Point2d(x, scanner.nextDouble());
-							cols++;
-						}
-						catch (Exception e) {
-							// add this animation point w/ null values
-							break;
-						}
-						
-						// check progress
-						if (cols >= colsPerDot) break;
-						
-						// get dot color and size
-						if (scanner.hasNext("-")) {
-							// assume color and size are null
-							scanner.next();
-//							String color = scanner.next();
-//							System.out.printf("color = %s\n", color);
-							
-							scanner.next();
-//							String size = scanner.next();
-//							System.out.printf("size = %s\n", size);
-						}
-						else {
-							try {
-								scanner.findInLine("((\\d{1,3}),\\s*(\\d{1,3}),\\s*(\\d{1,3}))");									
-								MatchResult colorMatch = scanner.match();
-
-								scanner.findInLine("(size\\s*\\d*\\.{0,1}\\d*)");									
-								MatchResult sizeMatch = scanner.match();
-
-								
-//								System.out.printf("number of matches = %d\n", sizeMatch.groupCount());
-								for (int i = 1; i <= sizeMatch.groupCount(); i++) {
-//									System.out.printf("size match found: %s\n", sizeMatch.group(i));
-								}
-								sizeDouble = new Double(sizeMatch.group(1).substring(4).trim());
-
-
-
-//								System.out.printf("number of matches = %d\n", colorMatch.groupCount());
-								for (int i = 1; i <= colorMatch.groupCount(); i++) {
-//							         System.out.printf("color match found: %s\n", colorMatch.group(i));
-								}
-								colorVec = new Vector3d(Double.parseDouble(colorMatch.group(2)), 
-										Double.parseDouble(colorMatch.group(3)), Double.parseDouble(colorMatch.group(4)));
-							}
-							catch (Exception ex) {
-								ex.printStackTrace();
-								continue;
-							}
-						}
-						cols += 2;
-						
-						if (cols >= colsPerDot) {break;}
+			}
+
+			// color
+			if (state.colorData && Double.isNaN(state.r) && tok.contains('(')) {
+				state.readColor(tok);
+				continue;
+			}
+
+			// size, either "sizeN", "size N" or plain number
+			if (state.sizeData && Double.isNaN(state.size)) {
+				int start = tok.trimStart();
+				if (tok.startsWith(SIZE_PREFIX, start)) {
+					start += SIZE_PREFIX.length();
+					// have to check against just "size" in case of space there
+					if (start == tok.trimEnd()) {
+						if (!tok.next()) return false;
+						start = tok.trimStart();
 					}
-					
-					if (addDot) dotList.add(new AnimationPoint(point, colorVec, sizeDouble, shape));*/
 				}
+				state.size = tok.toNumber(start, tok.trimEnd());
+				continue;
+			}
 
-				frameList.add(new AnimationFrame(time, dotList, lum));	
-			} 
+			// anything else is unrecognized, but still takes up a column
 		}
-		catch (IOException ex) {
-			LogContext.getLogger().log(Level.SEVERE, "Animation file reading error", ex);
+		return true;
+	}
+
+	/**
+	 * Get the shape named by the current token, or null if none.
+	 */
+	private static AnimationShapeDrawable toShape(AnimationTokenizer tok) {
+		for (AnimationShapeDrawable shape : SHAPES) {
+			if (tok.equalsIgnoreCase(shape.name())) return shape;
+		}
+		return null;
+	}
+
+	/**
+	 * Build the sequence from parsed data.
+	 */
+	private static AnimationSequence finish(File file, AnimationData data, ParseState state) {
+		data.trim();
+		String filename = file.getName();
+		AnimationSequence aniSeq = new AnimationSequence(filename, data, state.aspect);
+
+		LogContext.getLogger().fine(String.format("Parsed %s: %d frames, %d points",
+				filename, data.getFrameCount(), data.getTotalPointCount()));
+
+		return aniSeq;
+	}
+
+	private static void close(Reader reader) {
+		try {
+			reader.close();
+		} catch (Exception ex) {
 			ex.printStackTrace();
 		}
-		// close the reader
-		finally { 
-			try { 
-				reader.close();
-			} catch (Exception ex) {
-				ex.printStackTrace();
+	}
+
+	/**
+	 * Header flags, plus values of the point and frame being parsed.
+	 * Missing values are NaN (or null, for shape).
+	 */
+	private static class ParseState {
+		private final Float _requestedAspect;
+		boolean colorData = false;
+		boolean sizeData = false;
+		boolean luminanceData = false;
+		boolean shapeData = false;
+		int colsPerDot = 2;
+		float aspect;
+
+		double x, y, r, g, b, size, lum = Double.NaN;
+		AnimationShapeDrawable shape;
+
+		ParseState(Float aspectRatio) {
+			_requestedAspect = aspectRatio;
+			aspect = aspectRatio != null && aspectRatio > 0 ? aspectRatio : 1.0f;
+		}
+
+		/**
+		 * Check the current token for a "key=value" data flag.
+		 */
+		void readKey(AnimationTokenizer tok) {
+			int eq = tok.indexOf('=');
+			if (eq < 0) return;
+
+			if (tok.contains(SIZE_DATA_KEY)) {
+				sizeData = flag(tok, eq);
+				if (sizeData) colsPerDot++;
+			}
+			else if (tok.contains(COLOR_DATA_KEY)) {
+				colorData = flag(tok, eq);
+				if (colorData) colsPerDot++;
 			}
+			else if (tok.contains(LUMINANCE_DATA_KEY)) {
+				// XXX: luminance is per frame ONLY
+				luminanceData = flag(tok, eq);
+			}
+			else if (tok.contains(SHAPE_DATA_KEY)) {
+				shapeData = flag(tok, eq);
+				if (shapeData) colsPerDot++;
+			}
+			else if ((_requestedAspect == null || _requestedAspect <= 0) &&
+					tok.contains(ASPECT_RATIO_KEY)) {
+				double val = tok.toNumber(eq + 1, tok.trimEnd());
+				if (!Double.isNaN(val) && val > 0) aspect = (float) val;
+				else LogContext.getLogger().warning(String.format(
+						"Line %d: invalid aspect ratio '%s'", tok.getLineNumber(), tok));
+			}
+		}
+
+		private static boolean flag(AnimationTokenizer tok, int eq) {
+			for (int i = eq + 1; i < tok.length(); i++) {
+				char c = tok.charAt(i);
+				if (c == 't' || c == 'T') return true;
+			}
+			return false;
 		}
 
-		AnimationSequence aniSeq = new AnimationSequence(filename, frameList, aspect);
-		_animationCache.put(filename, aniSeq);
+		/**
+		 * Read an "(r, g, b)" color, which may span several tokens,
+		 * starting with the current one.
+		 */
+		void readColor(AnimationTokenizer tok) throws IOException {
+			double[] rgb = _rgb;
+			int n = 0;
+			boolean closed = false;
+			while (true) {
+				int val = -1;
+				for (int i = 0; i < tok.length(); i++) {
+					char c = tok.charAt(i);
+					if (c >= '0' && c <= '9') {
+						val = val < 0 ? c - '0' : 10*val + (c - '0');
+						continue;
+					}
+					if (val >= 0 && n < 3) rgb[n++] = val;
+					val = -1;
+					if (c == ')') closed = true;
+				}
+				if (val >= 0 && n < 3) rgb[n++] = val;
 
-		return aniSeq;
+				if (closed || n == 3 || !tok.next()) break;
+			}
+
+			if (n == 3) {
+				r = rgb[0];
+				g = rgb[1];
+				b = rgb[2];
+			}
+		}
+		private final double[] _rgb = new double[3];
+
+		/**
+		 * Clear point values.
+		 */
+		void reset() {
+			x = y = r = g = b = size = Double.NaN;
+			shape = null;
+		}
+
+		void addPoint(AnimationData data) {
+			boolean loc = !Double.isNaN(x) && !Double.isNaN(y);
+			boolean col = !Double.isNaN(r);
+			boolean sz = !Double.isNaN(size);
+			data.addPoint(loc, loc ? (float) x : 0, loc ? (float) (y/aspect) : 0,
+					col, col ? (float) r : 0, col ? (float) g : 0, col ? (float) b : 0,
+					sz, sz ? (float) size : 0, shape);
+		}
+
+		void endFrame(AnimationData data, double time) {
+			boolean hasLum = !Double.isNaN(lum);
+			data.endFrame(AnimationFrame.toNanos(time), hasLum, hasLum ? (float) lum : 0);
+			lum = Double.NaN;
+		}
 	}
-}
\ No newline at end of file
+}
@@ -11,9 +11,14 @@ import javax.vecmath.Point2d;
 import javax.vecmath.Vector3d;
 /**
  * This class represents one animation point (joint, in most cases) in the image.
+ * Points of a loaded sequence are lightweight views over its packed 
+ * {@link AnimationData}; points created directly just hold their values.
  * @author Catherine Elder <cje@datamininglab.com>
  */
 public class AnimationPoint {
+	private final AnimationData _data;
+	private final int _index;
+	// values of a point not backed by data
 	private final Point2d _location;
 	private final Vector3d _color;
 	private final Double _size;
@@ -25,26 +30,58 @@ public class AnimationPoint {
 	
 	public AnimationPoint(Point2d location, Vector3d color, Double size, 
 			AnimationShapeDrawable shape) {
+		_data = null;
+		_index = -1;
 		_location = location;
 		_color = color != null ? new Vector3d(color) : null;
 		_size = size;
 		_shape = shape != null ? shape : AnimationShapeDrawable.DOT;
 	}
 	
+	/**
+	 * Create a view of the given point in the given data.
+	 */
+	AnimationPoint(AnimationData data, int index) {
+		_data = data;
+		_index = index;
+		_location = null;
+		_color = null;
+		_size = null;
+		_shape = null;
+	}
+	
+	/**
+	 * Append the given values to the data as a new point.
+	 */
+	static void append(AnimationData data, Point2d location, Vector3d color, Double size, 
+			AnimationShapeDrawable shape) {
+		data.addPoint(location != null, 
+				location != null ? (float) location.x : 0, location != null ? (float) location.y : 0, 
+				color != null, color != null ? (float) color.x : 0, 
+				color != null ? (float) color.y : 0, color != null ? (float) color.z : 0, 
+				size != null, size != null ? size.floatValue() : 0, shape);
+	}
+	
 	public Point2d getLocation () {
-		return _location;
+		if (_data == null) return _location;
+		return _data.hasLocation(_index) ? 
+				new Point2d(_data.getX(_index), _data.getY(_index)) : null;
 	}
 	
 	public Vector3d getColor () {
-		return _color != null ? new Vector3d(_color) : null;
+		if (_data == null) return _color != null ? new Vector3d(_color) : null;
+		return _data.hasColor(_index) ? new Vector3d(_data.getRed(_index), 
+				_data.getGreen(_index), _data.getBlue(_index)) : null;
 	}
 	
 	public Double getSize () {
-		return _size;
+		if (_data == null) return _size;
+		return _data.hasSize(_index) ? Double.valueOf(_data.getSize(_index)) : null;
 	}
 	
 	public AnimationShapeDrawable getShape () {
-		return _shape;
+		if (_data == null) return _shape;
+		return _data.getShape(_index);
 	}
 	
 	/**
@@ -12,8 +12,9 @@ import static javax.media.opengl.GL2.*;
 import java.awt.Point;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.media.opengl.*;
 import javax.media.opengl.glu.GLU;
@@ -27,14 +28,30 @@ public class AnimationRenderer implements GLEventListener {
 	private static final boolean APPLE_MODE = true;
 	public static final String TIMESTAMPS = "ANIMATION_TIMESTAMPS";
 	
-	private AnimationSource _source = null;
-	private GLDrawDelegate _proxy = null;
+	/** What to play; published whole so the render thread never sees a partial update. */
+	private final AtomicReference<Playback> _playback = 
+			new AtomicReference<Playback>(new Playback(null, 0, false));
+	/** Playback last drawn; render thread only. */
+	private Playback _shown = null;
+	private volatile GLDrawDelegate _proxy = null;
 	
-	private long _startTime;		
 	private boolean _animatedOnce = true; // set to true when 1 stroke is animated
-	private boolean _extentsDirty = true;
+	private volatile boolean _extentsDirty = true;
 	private Point _lastLoc = null;
-	private CountDownLatch _controlLatch = null;
+	private volatile CountDownLatch _controlLatch = null;
+	/** Reused for every frame lookup, to keep the display path allocation-free. */
+	private final AnimationFrameBuffer _frame = new AnimationFrameBuffer();
+	private GLU _glu = null;
+	/** Geometry for the frame being shown, and for the one expected next. */
+	private AnimationBatch _current = new AnimationBatch();
+	private AnimationBatch _next = new AnimationBatch();
+	/** Strip, triangle and line vertex buffers; null until init. */
+	private int[] _buffers = null;
+	private long _framePeriod = 0;
+	/** Animation time to draw instead of reading the clock; negative for the clock. */
+	private long _fixedTime = -1;
+	/** Time the next frame will be shown, if known; 0 otherwise. */
+	private volatile long _presentationTime = 0;
 	
 	private ArrayList<AnimationListener> _listeners;
 	
@@ -55,6 +72,17 @@ public class AnimationRenderer implements GLEventListener {
 
 	}
 	
+	/**
+	 * Set the display refresh period.  When set, the frame for the next
+	 * refresh is built right after each frame is drawn, so that drawing at
+	 * the next deadline only has to submit it.  0 (the default) builds every
+	 * frame on demand.
+	 */
+	public void setFramePeriod(long period, TimeUnit unit) {
+		_framePeriod = TimeUnit.NANOSECONDS.convert(period, unit);
+		_next.invalidate();
+	}
+	
 	public void setDisplayProxy(GLDrawDelegate delegate) {
 		_proxy = delegate;
 	}
@@ -66,7 +94,19 @@ public class AnimationRenderer implements GLEventListener {
 	/** Set the current animation source. Doing so implies starting at the first frame. */
 	public void setAnimationSource(AnimationSource source) {
 		_extentsDirty = true;
-		_source = source;
+		_playback.set(new Playback(source, 0, false));
+	}
+	
+	/**
+	 * Clear the animation source, if it is still the given one.
+	 * 
+	 * @return true if cleared
+	 */
+	public boolean clearAnimationSource(AnimationSource expected) {
+		Playback pb = _playback.get();
+		if (pb._source != expected) return false;
+		_extentsDirty = true;
+		return _playback.compareAndSet(pb, new Playback(null, 0, false));
 	}
 
 	@Override
@@ -84,6 +124,14 @@ public class AnimationRenderer implements GLEventListener {
 		gl.glEnable(GL_POLYGON_SMOOTH);
 		
 		gl.setSwapInterval(1);
+		
+		_glu = new GLU();
+		
+		// buffer names are per context, so recreate with it
+		_buffers = new int[3];
+		gl.glGenBuffers(_buffers.length, _buffers, 0);
+		_current.invalidate();
+		_next.invalidate();
 	}
 
 
@@ -105,22 +153,39 @@ public class AnimationRenderer implements GLEventListener {
 		gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);       //Clear The Screen And The Depth Buffer
 		gl.glDisable(GL_DEPTH_TEST);
 		
-		if(_source == null || _animatedOnce == true) {
+		Playback pb = _playback.get();
+		if (pb != _shown) {
+			// new source or start time
+			_shown = pb;
+			_animatedOnce = !pb._started;
+			_current.invalidate();
+			_next.invalidate();
+		}
+		if(pb._source == null || _animatedOnce == true) {
 			return;
 		}
 
 		gl.glMatrixMode(GL_MODELVIEW);                          // Make sure we're in the correct matrix mode
 		gl.glLoadIdentity();                                    //Reset The View
 		
-		AnimationSequence as = _source.getAnimationSequence();
+		AnimationSequence as = pb._source.getAnimationSequence();
 		
-		long currentTime = getCurrentTime();
+		long currentTime = getCurrentTime(pb._startTime);
 		if (currentTime > as.getTotalAnimationTimeNanos()) {
 			_animatedOnce = true;
 		}
 		
 		//System.out.println("frame: " + System.nanoTime());
-		displayFrame(gl, as.getFrameAtTime(currentTime));
+		if (prepare(pb._source, currentTime)) {
+			_current.draw(gl, _buffers);
+		}
+		
+		// get the next frame ready while waiting for the swap
+		if (_framePeriod > 0 && !_animatedOnce) {
+			long nextTime = currentTime + _framePeriod;
+			if (as.getFrameAtTime(nextTime, _frame)) build(_next, pb._source, _frame, nextTime);
+			else _next.invalidate();
+		}
 
 		/*if (APPLE_MODE) {
 			//gl.glSwapAPPLE();
@@ -140,10 +205,29 @@ public class AnimationRenderer implements GLEventListener {
 		if (_animatedOnce) notifyListeners();
 	} 
 	
-	private long getCurrentTime() {
-		long time = System.nanoTime();
+	/**
+	 * Draw the given animation time on the next display, rather than the
+	 * time elapsed since the start time.  For offscreen replay, where frames
+	 * must be reproducible; a negative time restores the clock.
+	 */
+	void setFrameTime(long time) {
+		_fixedTime = time;
+	}
+	
+	/**
+	 * Draw the next frame for the given {@link System#nanoTime()}, when it
+	 * is known the frame will be shown then rather than as soon as drawn.  
+	 * 0 restores drawing for the current time.
+	 */
+	void setPresentationTime(long nanoTime) {
+		_presentationTime = nanoTime;
+	}
+	
+	private long getCurrentTime(long startTime) {
+		if (_fixedTime >= 0) return _fixedTime;
+		long time = _presentationTime != 0 ? _presentationTime : System.nanoTime();
 		//System.out.println("renderer:\t" + time);
-		return time - getStartTime();
+		return time - startTime;
 	}
 	
 	protected void notifyListeners() {
@@ -154,52 +238,35 @@ public class AnimationRenderer implements GLEventListener {
 		}
 	}
 
-	// display 1 frame
-	private void displayFrame(GL2 gl, AnimationFrame frame) {
-		if (frame == null) return;
-
-		// TODO: Can the disk can be instantiated in the init method?
-		GLU glu = new GLU();
-		AnimationShapeDrawable.initialize(gl, glu);
-		float radius = _source.getDiskRadius();
-
-		Double luminance = frame.getLuminance();
-		List<AnimationPoint> jointLocations = frame.getJointLocations();
-		
-		// draw connecting lines
-		gl.glColor3f(1f, 1f, 1f);
-		
-		if (_source.isConnected()) {
-			gl.glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
-			gl.glBegin(GL_LINE_STRIP);
-
-			for (int j = 0; j < jointLocations.size(); j++) {
-				if (j < _source.getNumPoints()) {
-					AnimationPoint dot = jointLocations.get(j);
-					
-					if (dot.getLocation() != null) {			
-						gl.glVertex2d(dot.getLocation().x, dot.getLocation().y);
-					}
-				}
-			} 
-			gl.glEnd();
+	/**
+	 * Make the current batch hold the frame for the given time.  The frame
+	 * built ahead is used if it was built for within half a period of the
+	 * given time, which is the case whenever frames are drawn on schedule.
+	 * 
+	 * @return false if the time is outside the sequence
+	 */
+	private boolean prepare(AnimationSource source, long time) {
+		if (_next.isValid() && Math.abs(time - _next.getFrameTime()) <= _framePeriod / 2) {
+			AnimationBatch tmp = _current;
+			_current = _next;
+			_next = tmp;
+			_next.invalidate();
+			return true;
 		}
 		
-		// draw dots
-		for (int i = 0; i < jointLocations.size(); i++) {
-			
-			if (i < _source.getNumPoints()) {
-				AnimationPoint dot = jointLocations.get(i);
-				
-				if (dot.getLocation() == null) {
-					continue;
-				}
-				
-				dot.getShape().draw(gl, glu, dot, luminance, radius);
-			}
-		}			        
-		
-		AnimationShapeDrawable.cleanup(gl, glu);
+		_next.invalidate();
+		if (!source.getAnimationSequence().getFrameAtTime(time, _frame)) {
+			_current.invalidate();
+			return false;
+		}
+		build(_current, source, _frame, time);
+		return true;
+	}
+	
+	private void build(AnimationBatch batch, AnimationSource source, 
+			AnimationFrameBuffer frame, long time) {
+		int count = Math.min(frame.getPointCount(), source.getNumPoints());
+		batch.build(frame, count, source.getDiskRadius(), 1.0f, source.isConnected(), time);
 	}
 
 	@Override
@@ -208,7 +275,8 @@ public class AnimationRenderer implements GLEventListener {
 		if (height <= 0) height=1; // fix 0 val
 
 		GL2 gl = (GL2) canvas.getGL();
-		GLU glu = new GLU();
+		if (_glu == null) _glu = new GLU();
+		GLU glu = _glu;
 		
 		// set viewport
 		gl.glViewport(x, y, width, height);
@@ -218,7 +286,8 @@ public class AnimationRenderer implements GLEventListener {
 		gl.glLoadIdentity();
 		
 		// calculate new ortho projection
-		AnimationSequence as = _source != null ? _source.getAnimationSequence() : null;
+		AnimationSource source = _playback.get()._source;
+		AnimationSequence as = source != null ? source.getAnimationSequence() : null;
 		Rectangle2D.Float r = as != null ? as.getExtents() : null;
 		
 		// find center, width, height
@@ -256,12 +325,15 @@ public class AnimationRenderer implements GLEventListener {
 	}
 
 	public long	getStartTime() {
-		return _startTime;
+		return _playback.get()._startTime;
 	}
 
 	public void setNanoStartTime(long startTime) {
-		_startTime = startTime;
-		_animatedOnce = false;
+		Playback pb;
+		do {
+			pb = _playback.get();
+		} 
+		while (!_playback.compareAndSet(pb, new Playback(pb._source, startTime, true)));
 	}
 	
 	/**
@@ -280,7 +352,27 @@ public class AnimationRenderer implements GLEventListener {
 	}
 
 	@Override
-	public void dispose(GLAutoDrawable arg0) {
+	public void dispose(GLAutoDrawable d) {
+		if (_buffers != null) {
+			d.getGL().glDeleteBuffers(_buffers.length, _buffers, 0);
+			_buffers = null;
+		}
+	}
+	
+	/**
+	 * Source and start time to draw.
+	 */
+	private static final class Playback {
+		private final AnimationSource _source;
+		private final long _startTime;
+		/** Whether the start time has been set since the source. */
+		private final boolean _started;
+		
+		public Playback(AnimationSource source, long startTime, boolean started) {
+			_source = source;
+			_startTime = startTime;
+			_started = started;
+		}
 	}
 	
 	/**
@@ -23,23 +23,45 @@ import edu.mcmaster.maplelab.av.media.MediaSource;
 public class AnimationSequence implements MediaSource {
 	/** Animation extents buffer (each of the 4 sides). */
 	private static final float EXTENT_BUFFER = 0.75f;
-	/** Frames. */
-	private final List<AnimationFrame> _aniFrames;
+	/** Max frames to step forward from a lookup cursor before binary searching. */
+	private static final int CURSOR_SCAN_LIMIT = 4;
+	/** Packed frame data. */
+	private final AnimationData _data;
 	/** Source file name. */
 	private final String _fileName;
 	/** Aspect ratio of points - for reporting only. */
 	private final float _aspect;
 	/** Cached values. */
-	private AnimationFrame _lowestFrame = null;
+	private int _lowestFrame = -1;
 	private Rectangle2D.Float _extent = null;
 	
 	public AnimationSequence(String sourceFileName, List<AnimationFrame> aniFrames, float aspect) {
+		this(sourceFileName, pack(aniFrames), aspect);
+	}
+	
+	AnimationSequence(String sourceFileName, AnimationData data, float aspect) {
 		_fileName = sourceFileName;
-		_aniFrames = aniFrames;	
+		_data = data;
 		_aspect = aspect;
 		calculateExtents();
 	}
 	
+	/**
+	 * Copy the given frames into packed data.
+	 */
+	private static AnimationData pack(List<AnimationFrame> aniFrames) {
+		int points = 0;
+		for (AnimationFrame frame : aniFrames) {
+			points += frame.getJointLocations().size();
+		}
+		AnimationData data = new AnimationData(aniFrames.size(), points);
+		for (AnimationFrame frame : aniFrames) {
+			AnimationFrame.append(data, frame.getJointLocations(), frame.getLuminance(), 
+					frame.getTimeInNanos());
+		}
+		return data;
+	}
+	
 	/**
 	 * Get the name of the source animation file.
 	 */
@@ -53,6 +75,13 @@ public class AnimationSequence implements MediaSource {
 	public float getPointAspect() {
 		return _aspect;
 	}
+	
+	/**
+	 * Get the packed frame data.
+	 */
+	AnimationData getData() {
+		return _data;
+	}
 
 	/**
 	 * Get the frame at the given index.
@@ -61,125 +90,232 @@ public class AnimationSequence implements MediaSource {
 		if(currentFrame < 0 || currentFrame >= getNumFrames()) {
 			throw new IllegalArgumentException(String.format("Frame number must be between 0 and %d.\n", getNumFrames()));
 		}
-		return _aniFrames.get(currentFrame);
+		return new AnimationFrame(_data, currentFrame);
 	}
 
 	/**
 	 * Get a frame for the given time, interpolating if necessary.
 	 * 
 	 * @param time in nanoseconds
-	 * @return a new frame using interpolation.
+	 * @return a new frame using interpolation, or null if the time
+	 * 			falls outside the sequence.
 	 */
 	public AnimationFrame getFrameAtTime(long time) {
-		if (time < getFrameAtIndex(0).getTimeInNanos() || 
-				time > getFrameAtIndex(getNumFrames()-1).getTimeInNanos()) {
-			return null;
+		int index = findFrameIndex(time, -1);
+		if (index < 0) return null;
+		
+		if (_data.getTime(index) == time || index == getNumFrames() - 1) {
+			return getFrameAtIndex(index);
+		}
+		
+		AnimationFrameBuffer buffer = new AnimationFrameBuffer(_data.getPointCount(index));
+		fillBuffer(buffer, index, time);
+		
+		ArrayList<AnimationPoint> dotList = new ArrayList<AnimationPoint>(buffer.getPointCount());
+		for (int i = 0; i < buffer.getPointCount(); i++) {
+			Point2d loc = buffer.hasLocation(i) ? new Point2d(buffer.getX(i), buffer.getY(i)) : null;
+			Vector3d col = buffer.hasColor(i) ? 
+					new Vector3d(buffer.getRed(i), buffer.getGreen(i), buffer.getBlue(i)) : null;
+			Double size = buffer.hasSize(i) ? Double.valueOf(buffer.getSize(i, 0)) : null;
+			dotList.add(new AnimationPoint(loc, col, size, buffer.getShape(i)));
+		}
+		Double lum = buffer.hasLuminance() ? Double.valueOf(buffer.getLuminance(0)) : null;
+		
+		return new AnimationFrame(dotList, lum, time);
+	}
+	
+	/**
+	 * Fill the given buffer with the frame for the given time, interpolating 
+	 * if necessary.  No objects are created.  The buffer remembers the last
+	 * frame found, so that monotonic playback only needs to step forward a
+	 * frame or two; other access falls back to a binary search.
+	 * 
+	 * @param time in nanoseconds
+	 * @param buffer destination for frame data
+	 * @return false if the time falls outside the sequence (buffer unchanged)
+	 */
+	public boolean getFrameAtTime(long time, AnimationFrameBuffer buffer) {
+		int index = findFrameIndex(time, buffer.getCursor(this));
+		if (index < 0) return false;
+		
+		buffer.setCursor(this, index);
+		fillBuffer(buffer, index, time);
+		return true;
+	}
+	
+	/**
+	 * Find the index of the last frame at or before the given time.
+	 * 
+	 * @param time in nanoseconds
+	 * @param hint index from a previous lookup, or -1 if none
+	 * @return the frame index, or -1 if the time is outside the sequence
+	 */
+	private int findFrameIndex(long time, int hint) {
+		AnimationData data = _data;
+		int last = data.getFrameCount() - 1;
+		if (last < 0 || time < data.getTime(0) || time > data.getTime(last)) {
+			return -1;
 		}
 		
-		// get frames
-		AnimationFrame frame1 = null;
-		AnimationFrame frame2 = getFrameAtIndex(0);
-		for (int i = 1; i < getNumFrames() && time > frame2.getTimeInNanos(); i++) {
-			frame1 = getFrameAtIndex(i-1);
-			frame2 = getFrameAtIndex(i);
+		// step forward from the hint for the common (monotonic) case
+		if (hint >= 0 && hint <= last && data.getTime(hint) <= time) {
+			int limit = Math.min(last, hint + CURSOR_SCAN_LIMIT);
+			int i = hint;
+			while (i < limit && data.getTime(i+1) <= time) i++;
+			if (i == last || data.getTime(i+1) > time) return i;
 		}
-		if (frame2.getTimeInNanos() == time) return frame2;
 		
-		return interpolate(frame1, frame2, time);
+		// binary search for the last frame time <= time
+		int low = 0;
+		int high = last;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (data.getTime(mid) <= time) low = mid;
+			else high = mid - 1;
+		}
+		return low;
 	}
 	
 	/**
-	 * Interpolate between the two given frames to produce a new frame at the given nano time.
+	 * Fill the buffer with the given frame, interpolating toward the 
+	 * next frame if the time falls between them.
+	 */
+	private void fillBuffer(AnimationFrameBuffer buffer, int index, long time) {
+		if (_data.getTime(index) == time || index == _data.getFrameCount() - 1) {
+			copy(index, buffer);
+		}
+		else {
+			interpolate(index, index + 1, time, buffer);
+		}
+	}
+	
+	/**
+	 * Copy the given frame into the buffer.
+	 */
+	private void copy(int frame, AnimationFrameBuffer buffer) {
+		AnimationData data = _data;
+		int count = data.getPointCount(frame);
+		int offset = data.getPointOffset(frame);
+		buffer.reset(count, data.getTime(frame));
+		buffer.setLuminance(data.hasLuminance(frame), data.getLuminance(frame));
+		
+		for (int i = 0; i < count; i++) {
+			int p = offset + i;
+			buffer.setLocation(i, data.hasLocation(p), data.getX(p), data.getY(p));
+			buffer.setColor(i, data.hasColor(p), data.getRed(p), data.getGreen(p), data.getBlue(p));
+			buffer.setSize(i, data.hasSize(p), data.getSize(p));
+			buffer.setShape(i, data.getShape(p));
+		}
+	}
+	
+	/**
+	 * Interpolate between the two given frames into the buffer at the given nano time.
+	 * Source frames are not modified.
 	 * 
 	 * @param frame1 the first-occurring frame to interpolate
 	 * @param frame2 the second-occurring frame to interpolate
 	 * @param time the nanosecond time for which to interpolate a frame 
 	 * 			(should fall between the two given frames' times)
-	 * @return a new, interpolated frame
+	 * @param buffer destination for the interpolated frame
 	 */
-	private AnimationFrame interpolate(AnimationFrame frame1, AnimationFrame frame2, long time) {
-		double alpha = (time - frame1.getTimeInNanos()) / 
-				(frame2.getTimeInNanos() - frame1.getTimeInNanos());
+	private void interpolate(int frame1, int frame2, long time, AnimationFrameBuffer buffer) {
+		AnimationData data = _data;
+		long t1 = data.getTime(frame1);
+		double alpha = (double) (time - t1) / (double) (data.getTime(frame2) - t1);
+		double beta = 1 - alpha;
+		boolean second = alpha > 0.5;
 		
-		ArrayList<AnimationPoint> dotList = new ArrayList<AnimationPoint>();
+		int count = data.getPointCount(frame1);
+		int count2 = data.getPointCount(frame2);
+		int offset1 = data.getPointOffset(frame1);
+		int offset2 = data.getPointOffset(frame2);
+		buffer.reset(count, time);
 		
 		// determine luminance
-		Double lum = frame1.getLuminance();
-		Double lum2 = frame2.getLuminance();
-		if (lum == null || lum2 == null) {
-			if (alpha > 0.5) lum = lum2;
+		boolean lum1 = data.hasLuminance(frame1);
+		boolean lum2 = data.hasLuminance(frame2);
+		if (!lum1 || !lum2) {
+			int f = second ? frame2 : frame1;
+			buffer.setLuminance(data.hasLuminance(f), data.getLuminance(f));
 		}
 		else {
-			lum = alpha*lum2 + (1 - alpha)*lum;
+			buffer.setLuminance(true, alpha*data.getLuminance(frame2) + beta*data.getLuminance(frame1));
 		}
 		
 		// interpolate each animation point
-		for (int i = 0; i < frame1.getJointLocations().size(); i++) {
-			AnimationPoint dot1 = frame1.getJointLocations().get(i);
-			AnimationPoint dot2 = frame2.getJointLocations().get(i);
+		for (int i = 0; i < count; i++) {
+			int p1 = offset1 + i;
+			int p2 = i < count2 ? offset2 + i : -1;
+			// nearest point, for values that can't be interpolated
+			// (-1 if the second frame lacks this point)
+			int near = second ? p2 : p1;
 			
 			// determine location
-			Point2d pt = dot1.getLocation();
-			Point2d pt2 = dot2.getLocation();
-			if (pt == null || pt2 == null) {
-				if (alpha > 0.5) pt = pt2;
+			if (p2 >= 0 && data.hasLocation(p1) && data.hasLocation(p2)) {
+				buffer.setLocation(i, true, alpha*data.getX(p2) + beta*data.getX(p1), 
+						alpha*data.getY(p2) + beta*data.getY(p1));
+			}
+			else if (near >= 0) {
+				buffer.setLocation(i, data.hasLocation(near), data.getX(near), data.getY(near));
 			}
 			else {
-				pt.interpolate(pt2, alpha);
+				buffer.setLocation(i, false, 0, 0);
 			}
 			
 			// determine color
-			Vector3d col = dot1.getColor();
-			Vector3d col2 = dot2.getColor();
-			if (col == null || col2 == null) {
-				if (alpha > 0.5) col = col2;
+			if (p2 >= 0 && data.hasColor(p1) && data.hasColor(p2)) {
+				buffer.setColor(i, true, alpha*data.getRed(p2) + beta*data.getRed(p1), 
+						alpha*data.getGreen(p2) + beta*data.getGreen(p1), 
+						alpha*data.getBlue(p2) + beta*data.getBlue(p1));
+			}
+			else if (near >= 0) {
+				buffer.setColor(i, data.hasColor(near), 
+						data.getRed(near), data.getGreen(near), data.getBlue(near));
 			}
 			else {
-				col.interpolate(col2, alpha);
+				buffer.setColor(i, false, 0, 0, 0);
 			}
 			
 			// determine size
-			Double size = dot1.getSize();
-			Double size2 = dot2.getSize();
-			if (size == null || size2 == null) {
-				if (alpha > 0.5) size = size2;
+			if (p2 >= 0 && data.hasSize(p1) && data.hasSize(p2)) {
+				buffer.setSize(i, true, alpha*data.getSize(p2) + beta*data.getSize(p1));
+			}
+			else if (near >= 0) {
+				buffer.setSize(i, data.hasSize(near), data.getSize(near));
 			}
 			else {
-				size = alpha*size2 + (1 - alpha)*size;
+				buffer.setSize(i, false, 0);
 			}
 			
 			// determine shape
-			AnimationShapeDrawable shape = dot1.getShape();
-			if (shape != dot2.getShape() && alpha >= 0.5) {
-				shape = dot2.getShape();
+			AnimationShapeDrawable shape = data.getShape(p1);
+			if (p2 >= 0 && alpha >= 0.5) {
+				shape = data.getShape(p2);
 			}
-			
-			dotList.add(new AnimationPoint(pt, col, size, shape));
+			buffer.setShape(i, shape);
 		}
-		
-		return new AnimationFrame(time, dotList, lum);
 	}
 
 	public int getNumFrames() {
-		return _aniFrames.size();
+		return _data.getFrameCount();
 	}
 
 	/**
 	 * @return the totalAnimationTime in nanoseconds
 	 */
 	public long getTotalAnimationTimeNanos() {
-		int numFrames = _aniFrames.size();
+		int numFrames = _data.getFrameCount();
 		if (numFrames == 0) return 0;
 		
-		return _aniFrames.get(numFrames - 1).getTimeInNanos();
+		return _data.getTime(numFrames - 1);
 	}
 	
 	/**
 	 * Get the time stamp of the frame at which the strike occurs.
 	 */
 	public long getStrikeTimeNanos() {
-		if (_lowestFrame == null) calculateExtents();
-		return _lowestFrame != null ? _lowestFrame.getTimeInNanos() : 0;
+		if (_lowestFrame < 0) calculateExtents();
+		return _lowestFrame >= 0 ? _data.getTime(_lowestFrame) : 0;
 	}
 	
 	/**
@@ -200,39 +336,43 @@ public class AnimationSequence implements MediaSource {
 	 * first dot.
 	 */
 	private void calculateExtents() {
-		if (_aniFrames.size() == 0) return;
+		AnimationData data = _data;
+		int frames = data.getFrameCount();
+		if (frames == 0) return;
 		
-		_extent = new Rectangle2D.Float(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, 
-				Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+		float minX = Float.POSITIVE_INFINITY;
+		float minY = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY;
+		float maxY = Float.NEGATIVE_INFINITY;
 		
-		for (AnimationFrame frame : _aniFrames) {
-			List<AnimationPoint> dots = frame.getJointLocations();
-			for (int i = 0; i < dots.size(); i++) {
-				AnimationPoint dot = dots.get(i);
-				Point2d loc = dot.getLocation();
-				if (loc == null) continue;
+		// points are stored frame by frame, so this is a straight scan
+		for (int f = 0; f < frames; f++) {
+			int first = data.getPointOffset(f);
+			int end = first + data.getPointCount(f);
+			for (int p = first; p < end; p++) {
+				if (!data.hasLocation(p)) continue;
 				
-				if (loc.x < _extent.x) {
-					_extent.x = (float) loc.x;
+				float x = data.getX(p);
+				float y = data.getY(p);
+				if (x < minX) {
+					minX = x;
 				}
-				if (loc.y < _extent.y) {
+				if (y < minY) {
 					// only consider first dot for lowest frame
-					if (i == 0) _lowestFrame = frame;
-					_extent.y = (float) loc.y;
+					if (p == first) _lowestFrame = f;
+					minY = y;
 				}
-				if (loc.x > _extent.width) {
-					_extent.width = (float) loc.x;
+				if (x > maxX) {
+					maxX = x;
 				}
-				if (loc.y > _extent.height) {
-					_extent.height = (float) loc.y;
+				if (y > maxY) {
+					maxY = y;
 				}
 			}
 		}
 		
-		// width and height initially store absolute coordinates,
-		// but they should be relative values
-		_extent.width = _extent.width - _extent.x;
-		_extent.height = _extent.height - _extent.y;
+		// width and height are relative values
+		_extent = new Rectangle2D.Float(minX, minY, maxX - minX, maxY - minY);
 		
 		// make the rectangle square by choosing max
 		// of the two dimensions and re-centering
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media.animation;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Single pass, line oriented tokenizer for animation files.  Reads the
+ * underlying stream once through its own buffer, splitting each line on
+ * whitespace.  Any of "\n", "\r" or "\r\n" ends a line.  The current token
+ * is held in a reusable character buffer, and numbers are parsed directly
+ * from it, so no objects are created per token.
+ *
+ * Usage: call {@link #nextLine()} to move to each line, then {@link #next()}
+ * to step through the tokens of that line.
+ *
+ * @author bguseman
+ */
+final class AnimationTokenizer {
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private final Reader _in;
+	private final char[] _buf = new char[8192];
+	private int _pos = 0;
+	private int _limit = 0;
+
+	private char[] _tok = new char[64];
+	private int _tokLen = 0;
+
+	private boolean _started = false;
+	private boolean _eol = true;
+	private int _line = 0;
+
+	AnimationTokenizer(Reader in) {
+		_in = in;
+	}
+
+	/**
+	 * Move to the start of the next line, skipping anything left on the
+	 * current line.
+	 *
+	 * @return false at end of input
+	 */
+	boolean nextLine() throws IOException {
+		if (_started) {
+			while (!_eol) {
+				int c = read();
+				if (c < 0 || isNewline(c, true)) _eol = true;
+			}
+		}
+		_started = true;
+		_tokLen = 0;
+		if (peek() < 0) return false;
+
+		_eol = false;
+		_line++;
+		return true;
+	}
+
+	/**
+	 * Advance to the next token on the current line.
+	 *
+	 * @return false at end of line
+	 */
+	boolean next() throws IOException {
+		_tokLen = 0;
+		if (_eol) return false;
+
+		int c;
+		do {
+			c = read();
+			if (c < 0 || isNewline(c, true)) {
+				_eol = true;
+				return false;
+			}
+		} while (c <= ' ');
+
+		do {
+			if (_tokLen == _tok.length) {
+				char[] tok = new char[2*_tok.length];
+				System.arraycopy(_tok, 0, tok, 0, _tokLen);
+				_tok = tok;
+			}
+			_tok[_tokLen++] = (char) c;
+
+			c = read();
+			if (c < 0 || isNewline(c, true)) {
+				// token ends the line
+				_eol = true;
+				break;
+			}
+		} while (c > ' ');
+
+		return true;
+	}
+
+	/**
+	 * Get the current line number (1-based).
+	 */
+	int getLineNumber() {
+		return _line;
+	}
+
+	/**
+	 * Get the length of the current token.
+	 */
+	int length() {
+		return _tokLen;
+	}
+
+	char charAt(int i) {
+		return _tok[i];
+	}
+
+	/**
+	 * Determine if the current token is the "blank" marker "-".
+	 */
+	boolean isDash() {
+		return _tokLen == 1 && _tok[0] == '-';
+	}
+
+	/**
+	 * Determine if the current token starts with the given text.
+	 */
+	boolean startsWith(String s, int from) {
+		if (_tokLen - from < s.length()) return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (_tok[from + i] != s.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Determine if the current token (ignoring surrounding quotes)
+	 * equals the given text, ignoring case.
+	 */
+	boolean equalsIgnoreCase(String s) {
+		int start = trimStart();
+		int end = trimEnd();
+		if (end - start != s.length()) return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (Character.toUpperCase(_tok[start + i]) != Character.toUpperCase(s.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determine if the current token contains the given text.
+	 */
+	boolean contains(String s) {
+		for (int i = 0; i + s.length() <= _tokLen; i++) {
+			if (startsWith(s, i)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine if the current token contains the given character.
+	 */
+	boolean contains(char c) {
+		return indexOf(c) >= 0;
+	}
+
+	int indexOf(char c) {
+		for (int i = 0; i < _tokLen; i++) {
+			if (_tok[i] == c) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Index of the first character after any leading quotes.
+	 */
+	int trimStart() {
+		int i = 0;
+		while (i < _tokLen && _tok[i] == '"') i++;
+		return i;
+	}
+
+	/**
+	 * Index after the last character before any trailing quotes.
+	 */
+	int trimEnd() {
+		int i = _tokLen;
+		while (i > 0 && _tok[i - 1] == '"') i--;
+		return i;
+	}
+
+	/**
+	 * Parse the whole token (ignoring surrounding quotes) as a number.
+	 *
+	 * @return the value, or NaN if the token is not a number
+	 */
+	double toNumber() {
+		return toNumber(trimStart(), trimEnd());
+	}
+
+	/**
+	 * Parse the given range of the token as a decimal number, with
+	 * optional sign, fraction and exponent.
+	 *
+	 * @return the value, or NaN if the range is not a number
+	 */
+	double toNumber(int from, int to) {
+		int i = from;
+		if (i >= to) return Double.NaN;
+
+		boolean negative = false;
+		if (_tok[i] == '-' || _tok[i] == '+') {
+			negative = _tok[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int exp = 0;
+		boolean any = false;
+		boolean point = false;
+		for (; i < to; i++) {
+			char c = _tok[i];
+			if (c >= '0' && c <= '9') {
+				any = true;
+				if (digits < 18) {
+					mantissa = 10*mantissa + (c - '0');
+					if (mantissa > 0) digits++;
+					if (point) exp--;
+				}
+				else if (!point) {
+					exp++;
+				}
+			}
+			else if (c == '.' && !point) {
+				point = true;
+			}
+			else {
+				break;
+			}
+		}
+		if (!any) return Double.NaN;
+
+		if (i < to) {
+			char c = _tok[i];
+			if (c != 'e' && c != 'E') return Double.NaN;
+			i++;
+			boolean expNegative = false;
+			if (i < to && (_tok[i] == '-' || _tok[i] == '+')) {
+				expNegative = _tok[i] == '-';
+				i++;
+			}
+			if (i >= to) return Double.NaN;
+			int e = 0;
+			for (; i < to; i++) {
+				c = _tok[i];
+				if (c < '0' || c > '9') return Double.NaN;
+				if (e < 10000) e = 10*e + (c - '0');
+			}
+			exp += expNegative ? -e : e;
+		}
+
+		double value;
+		if (exp == 0) {
+			value = mantissa;
+		}
+		else if (exp > 0 && exp < POW10.length) {
+			value = mantissa * POW10[exp];
+		}
+		else if (exp < 0 && -exp < POW10.length) {
+			value = mantissa / POW10[-exp];
+		}
+		else {
+			value = Double.parseDouble(new String(_tok, from, to - from));
+			return value;
+		}
+		return negative ? -value : value;
+	}
+
+	@Override
+	public String toString() {
+		return new String(_tok, 0, _tokLen);
+	}
+
+	/**
+	 * Determine if the given character is a line terminator, consuming
+	 * the second half of a "\r\n" pair if requested.
+	 */
+	private boolean isNewline(int c, boolean consume) throws IOException {
+		if (c == '\n') return true;
+		if (c == '\r') {
+			if (consume && peek() == '\n') read();
+			return true;
+		}
+		return false;
+	}
+
+	private int read() throws IOException {
+		if (_pos == _limit && !fill()) return -1;
+		return _buf[_pos++];
+	}
+
+	private int peek() throws IOException {
+		if (_pos == _limit && !fill()) return -1;
+		return _buf[_pos];
+	}
+
+	private boolean fill() throws IOException {
+		int n = _in.read(_buf, 0, _buf.length);
+		while (n == 0) n = _in.read(_buf, 0, _buf.length);
+		if (n < 0) return false;
+		_pos = 0;
+		_limit = n;
+		return true;
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.av.media.animation;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import javax.media.opengl.GLAutoDrawable;
+import javax.media.opengl.GLContext;
+import javax.media.opengl.Threading;
+
+import edu.mcmaster.maplelab.av.ScheduleEvent;
+import edu.mcmaster.maplelab.av.Scheduled;
+import edu.mcmaster.maplelab.av.StimulusClock;
+import edu.mcmaster.maplelab.common.LogContext;
+
+/**
+ * Animation trigger that draws from a dedicated thread, one frame per
+ * display refresh.  Each pass swaps and waits for the swap to complete,
+ * so the loop is paced by the display itself rather than by a timer, and
+ * each frame is drawn for the refresh at which it will be shown.
+ *
+ * The thread makes the canvas context current itself for each frame,
+ * rather than going through {@link GLAutoDrawable#display()}, which JOGL
+ * would otherwise hand to the AWT event thread.  This needs JOGL's
+ * single-threading disabled, by {@link #initThreading()}, before any
+ * canvas is created.
+ *
+ * Runs start with the scheduler (via {@link #alarm(ScheduleEvent)}) and
+ * end with {@link #endRun()}.  Swap completion times are passed to the
+ * {@link StimulusClock}, keeping its predictions current, and the most
+ * recent ones of each run are kept for refitting the refresh period.
+ *
+ * @author bguseman
+ *
+ */
+public class RenderLoop implements AnimationTrigger, Scheduled {
+	/** Swap completion times kept from each run. */
+	private static final int SWAP_HISTORY = 128;
+
+	private final AnimationRenderer _renderer;
+	private final StimulusClock _clock;
+	private final AtomicInteger _missedFrames = new AtomicInteger();
+	/** Ring of the run's swap completion times; guarded by itself. */
+	private final long[] _swaps = new long[SWAP_HISTORY];
+	private int _swapCount = 0;
+	private GLAutoDrawable _canvas;
+	private Thread _thread = null;
+	private volatile boolean _enabled = false;
+	private volatile boolean _active = false;
+	private volatile long _callAheadNanos = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param renderer renderer drawing to the canvas
+	 * @param clock clock to predict refreshes with, and to update
+	 */
+	public RenderLoop(AnimationRenderer renderer, StimulusClock clock) {
+		_renderer = renderer;
+		_clock = clock;
+	}
+
+	/**
+	 * Let threads other than the AWT event thread make GL contexts current,
+	 * as the render thread does.  Must be called before any GL canvas is
+	 * created; calling it again has no further effect.
+	 */
+	public static void initThreading() {
+		Threading.disableSingleThreading();
+	}
+
+	/**
+	 * Set how long before the refresh at which a frame will be shown to
+	 * start drawing it.  0 (the default) starts as soon as the previous
+	 * frame is shown.
+	 */
+	public void setRenderCallAhead(Long callAheadNanos) {
+		_callAheadNanos = callAheadNanos != null ? callAheadNanos : 0;
+	}
+
+	/**
+	 * Get the number of frames in the current (or last) run that were shown
+	 * later than the refresh they were drawn for.
+	 */
+	public int getMissedFrames() {
+		return _missedFrames.get();
+	}
+
+	/**
+	 * Get the swap completion times of the current (or last) run, oldest
+	 * first, up to the most recent {@value #SWAP_HISTORY}.
+	 */
+	public long[] getSwapTimes() {
+		synchronized (_swaps) {
+			int count = Math.min(_swapCount, _swaps.length);
+			long[] retval = new long[count];
+			int first = _swapCount - count;
+			for (int i = 0; i < count; i++) {
+				retval[i] = _swaps[(first + i) % _swaps.length];
+			}
+			return retval;
+		}
+	}
+
+	@Override
+	public void setCanvas(GLAutoDrawable canvas) {
+		_canvas = canvas;
+	}
+
+	/**
+	 * Allow runs to start.
+	 */
+	@Override
+	public void start() {
+		_enabled = true;
+	}
+
+	/**
+	 * End any run and prevent further runs from starting.
+	 */
+	@Override
+	public void stop() {
+		_enabled = false;
+		endRun();
+	}
+
+	/**
+	 * Start drawing, if enabled.
+	 */
+	public synchronized void beginRun() {
+		if (!_enabled || _active || _canvas == null) return;
+
+		_missedFrames.set(0);
+		synchronized (_swaps) {
+			_swapCount = 0;
+		}
+		_active = true;
+		if (_thread == null || !_thread.isAlive()) {
+			_thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					loop();
+				}
+			}, "animation-render");
+			_thread.setDaemon(true);
+			_thread.setPriority(Thread.MAX_PRIORITY);
+			_thread.start();
+		}
+		else {
+			LockSupport.unpark(_thread);
+		}
+	}
+
+	/**
+	 * Stop drawing after the current frame.
+	 */
+	public void endRun() {
+		_active = false;
+	}
+
+	/**
+	 * Force a rendering update, unless a run is drawing anyway.  Useful for
+	 * initialization.
+	 */
+	public void forceDisplay() {
+		if (_canvas != null && !_active) _canvas.display();
+	}
+
+	private void loop() {
+		while (true) {
+			while (!_active) {
+				LockSupport.park(this);
+			}
+
+			// event thread repaints between frames mustn't swap
+			_canvas.setAutoSwapBufferMode(false);
+			try {
+				while (_active) {
+					frame();
+				}
+			}
+			catch (Throwable t) {
+				LogContext.getLogger().log(Level.SEVERE, "Animation rendering failed", t);
+				_active = false;
+				// an error ends this thread, and the next run starts a new one;
+				// otherwise this thread waits for the next run
+				if (t instanceof Error) throw (Error) t;
+			}
+			finally {
+				_renderer.setPresentationTime(0);
+				_canvas.setAutoSwapBufferMode(true);
+			}
+		}
+	}
+
+	/**
+	 * Draw and show a single frame.
+	 */
+	private void frame() {
+		// the previous swap just completed, so this is the next refresh
+		long flip = _clock.nextVBlank(System.nanoTime() + 1);
+		long callAhead = _callAheadNanos;
+		if (callAhead > 0) {
+			long wait = flip - callAhead - System.nanoTime();
+			if (wait > 0) LockSupport.parkNanos(wait);
+		}
+
+		long expected = _clock.isSynchronized() ? flip : 0;
+		_renderer.setPresentationTime(expected);
+
+		GLContext context = _canvas.getContext();
+		int current = context != null ? context.makeCurrent() : GLContext.CONTEXT_NOT_CURRENT;
+		if (current == GLContext.CONTEXT_NOT_CURRENT) {
+			// not realized yet; try again at the next refresh
+			LockSupport.parkNanos(_clock.getPeriodNanos());
+			return;
+		}
+
+		long vblank;
+		try {
+			if (current == GLContext.CONTEXT_CURRENT_NEW) _renderer.init(_canvas);
+			_renderer.display(_canvas);
+			_canvas.swapBuffers();
+			_canvas.getGL().glFinish();
+			vblank = System.nanoTime();
+		}
+		finally {
+			context.release();
+		}
+
+		_clock.observeVBlank(vblank);
+		synchronized (_swaps) {
+			_swaps[_swapCount % _swaps.length] = vblank;
+			_swapCount++;
+		}
+		if (expected != 0 && vblank - expected > _clock.getPeriodNanos() / 2) {
+			_missedFrames.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Starts a run; schedule at time 0.
+	 */
+	@Override
+	public void alarm(ScheduleEvent e) {
+		beginRun();
+	}
+
+	@Override
+	public void markTime(ScheduleEvent e) {}
+
+	@Override
+	public long callAheadNanoTime() {
+		return 0;
+	}
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.common.datamodel;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+
+import edu.mcmaster.maplelab.common.LogContext;
+
+/**
+ * Logger writing the same rows as a {@link FileTrialLogger}, but to a
+ * typed, columnar binary file that analysis can scan a column at a time.
+ * Rows are collected into blocks; each block stores each column separately
+ * and deflate-compressed.  Within a block, a column whose values are all
+ * whole numbers is stored as delta-encoded longs, and any other column is
+ * dictionary-encoded.  Values read back exactly as they would appear in
+ * the tab-separated output; see {@link ColumnarTrialReader}.
+ *
+ * File layout (big-endian):
+ * <pre>
+ * int    MAGIC
+ * short  VERSION
+ * int    column count
+ * UTF    column name, per column
+ * then blocks until end of file:
+ *   int  row count
+ *   per column: byte type, int encoded length, int compressed length, data
+ * </pre>
+ * Encoded data is varints: for {@link #LONG} columns, zigzag deltas from
+ * the previous value (the first from 0); for {@link #STRING} columns, the
+ * dictionary size, each entry's UTF-8 length and bytes, then each row's
+ * entry number, with 0 for a value the row doesn't have.
+ *
+ * Encoding and writing happen on a background thread.  Blocks are written
+ * when full and on shutdown; the tab-separated file remains the record
+ * that is kept current trial by trial.  An existing file is appended to if
+ * its columns match; otherwise the rows go to a numbered alternate file, as
+ * with the collected text output.
+ *
+ * @author bguseman
+ *
+ */
+public class ColumnarTrialLogger<T extends Trial<?>> implements TrialLogger<T> {
+	static final int MAGIC = 0x4D545243; // "MTRC"
+	static final short VERSION = 1;
+	static final byte LONG = 1;
+	static final byte STRING = 2;
+	/** File extension for columnar files. */
+	public static final String EXTENSION = "tcol";
+	/** Maximum rows per block. */
+	private static final int BLOCK_ROWS = 1024;
+
+	private final FileTrialLogger<?, T> _source;
+	/** File written to; may change to an alternate when the header is written. */
+	private volatile File _file;
+	private final ExecutorService _writer;
+	private final Cells _cells = new Cells();
+	private List<String> _names = null;
+	private DataOutputStream _out = null;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param source logger supplying the rows
+	 */
+	public ColumnarTrialLogger(FileTrialLogger<?, T> source) {
+		_source = source;
+		_file = getColumnarFile(source.getFile());
+		_writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "trial-columnar-writer");
+				t.setDaemon(true);
+				t.setPriority(Thread.NORM_PRIORITY - 1);
+				return t;
+			}
+		});
+		LogContext.getLogger().fine("Columnar output file: " + _file);
+	}
+
+	/**
+	 * Get the columnar file written alongside the given text file.
+	 */
+	public static File getColumnarFile(File textFile) {
+		String name = textFile.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) name = name.substring(0, dot);
+		return new File(textFile.getParentFile(), name + "." + EXTENSION);
+	}
+
+	/**
+	 * Get the file written to.
+	 */
+	public File getFile() {
+		return _file;
+	}
+
+	@Override
+	public void saveSessionConfig() throws IOException {
+	}
+
+	@Override
+	public synchronized void submit(T trial) throws IOException {
+		RowSchema<T> schema = _source.getSchema();
+		schema.write(trial, beginRow(schema));
+		endRow();
+	}
+
+	/**
+	 * Start a row, to be given cell by cell in schema order to the
+	 * returned writer, then finished with {@link #endRow()}.  The caller
+	 * must hold this logger's lock, or be the only one adding rows.
+	 */
+	RowSchema.CellWriter beginRow(RowSchema<?> schema) {
+		if (_names == null) {
+			final List<String> names = new ArrayList<String>();
+			for (RowSchema.Column<?> c : schema.getColumns()) {
+				names.add(c.getName());
+			}
+			_names = names;
+			_writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					writeHeader(names);
+				}
+			});
+		}
+
+		_cells.start(_names.size());
+		return _cells;
+	}
+
+	/**
+	 * Finish the row started with {@link #beginRow}.
+	 */
+	void endRow() {
+		if (_cells.endRow() == BLOCK_ROWS) flush();
+	}
+
+	/**
+	 * Hand the current block to the writer.
+	 */
+	private void flush() {
+		if (_cells._rows == 0) return;
+		final long[][] numbers = _cells._numbers;
+		final String[][] strings = _cells._strings;
+		final int rows = _cells._rows;
+		_cells.clear();
+		_writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				writeBlock(numbers, strings, rows);
+			}
+		});
+	}
+
+	/**
+	 * Collects the cells of the current block.  Each cell is either a
+	 * number, or text if its string is not null.
+	 */
+	private static final class Cells implements RowSchema.CellWriter {
+		private long[][] _numbers = null;
+		private String[][] _strings = null;
+		private int _rows = 0;
+		private int _column = 0;
+
+		void start(int columns) {
+			if (_numbers == null) {
+				_numbers = new long[columns][BLOCK_ROWS];
+				_strings = new String[columns][BLOCK_ROWS];
+			}
+			_column = 0;
+		}
+
+		int endRow() {
+			return ++_rows;
+		}
+
+		void clear() {
+			_numbers = null;
+			_strings = null;
+			_rows = 0;
+		}
+
+		public void writeLong(long value) {
+			if (_column >= _numbers.length) return;
+			_numbers[_column++][_rows] = value;
+		}
+		public void writeDouble(double value) {
+			writeString(String.valueOf(value));
+		}
+		public void writeFloat(float value) {
+			writeString(String.valueOf(value));
+		}
+		public void writeBoolean(boolean value) {
+			writeString(String.valueOf(value));
+		}
+		public void writeString(String value) {
+			if (_column >= _strings.length) return;
+			_strings[_column++][_rows] = String.valueOf(value);
+		}
+	}
+
+	/**
+	 * Write out any rows collected and close the file, waiting for the
+	 * writer to finish.
+	 */
+	@Override
+	public void shutdown() {
+		synchronized (this) {
+			flush();
+			_writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					close();
+				}
+			});
+		}
+		_writer.shutdown();
+		try {
+			if (!_writer.awaitTermination(10, TimeUnit.SECONDS)) {
+				LogContext.getLogger().severe("Timed out writing columnar data to " + _file);
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeHeader(List<String> names) {
+		try {
+			File file = _file;
+			// appending to an earlier run's file is fine if the columns match
+			for (int alternate = 2; file.exists() && file.length() > 0; alternate++) {
+				if (hasColumns(file, names)) {
+					_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+					_file = file;
+					return;
+				}
+				File next = FileTrialLogger.alternateFile(_file, alternate);
+				LogContext.getLogger().severe(String.format(
+						"Columns of '%s' don't match this session's; writing to '%s' instead",
+						file, next));
+				file = next;
+			}
+			_file = file;
+
+			_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			_out.writeInt(MAGIC);
+			_out.writeShort(VERSION);
+			_out.writeInt(names.size());
+			for (String name : names) {
+				_out.writeUTF(name);
+			}
+			_out.flush();
+		}
+		catch (IOException ex) {
+			LogContext.getLogger().log(Level.WARNING, "Columnar output error", ex);
+			close();
+		}
+	}
+
+	/**
+	 * Determine if the given columnar file has the given columns.  A file
+	 * that can't be read as one doesn't.
+	 */
+	private static boolean hasColumns(File file, List<String> names) {
+		try {
+			return ColumnarTrialReader.readColumnNames(file).equals(names);
+		}
+		catch (IOException ex) {
+			LogContext.getLogger().log(Level.WARNING, "Unable to read " + file, ex);
+			return false;
+		}
+	}
+
+	private void writeBlock(long[][] numbers, String[][] strings, int rows) {
+		if (_out == null) return;
+
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(rows * 4);
+		byte[] compressed = new byte[1024];
+		Deflater deflater = new Deflater();
+		try {
+			_out.writeInt(rows);
+			for (int c = 0; c < numbers.length; c++) {
+				encoded.reset();
+				byte type = encodeColumn(numbers[c], strings[c], rows, encoded);
+				byte[] data = encoded.toByteArray();
+
+				deflater.reset();
+				deflater.setInput(data);
+				deflater.finish();
+				int length = 0;
+				while (!deflater.finished()) {
+					if (length == compressed.length) {
+						compressed = Arrays.copyOf(compressed, compressed.length * 2);
+					}
+					length += deflater.deflate(compressed, length, compressed.length - length);
+				}
+
+				_out.writeByte(type);
+				_out.writeInt(data.length);
+				_out.writeInt(length);
+				_out.write(compressed, 0, length);
+			}
+			_out.flush();
+		}
+		catch (IOException ex) {
+			LogContext.getLogger().log(Level.WARNING, "Columnar output error", ex);
+			close();
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	private void close() {
+		if (_out != null) {
+			try { _out.close(); } catch (IOException ex) {}
+			_out = null;
+		}
+	}
+
+	/**
+	 * Encode the given column values, choosing the type.  Text that is a
+	 * whole number counts as a number.
+	 *
+	 * @param numbers values of cells that are numbers
+	 * @param strings values of cells that are text, or null for numbers
+	 * @return the type used
+	 */
+	static byte encodeColumn(long[] numbers, String[] strings, int rows, ByteArrayOutputStream out) {
+		boolean numeric = true;
+		for (int i = 0; i < rows && numeric; i++) {
+			String s = strings[i];
+			if (s == null) continue;
+			numeric = isCanonicalLong(s);
+			if (numeric) {
+				numbers[i] = Long.parseLong(s);
+				strings[i] = null;
+			}
+		}
+
+		if (numeric) {
+			long last = 0;
+			for (int i = 0; i < rows; i++) {
+				writeVarLong(out, zigzag(numbers[i] - last));
+				last = numbers[i];
+			}
+			return LONG;
+		}
+
+		Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+		int[] indices = new int[rows];
+		for (int i = 0; i < rows; i++) {
+			String value = strings[i] != null ? strings[i] : String.valueOf(numbers[i]);
+			Integer index = dictionary.get(value);
+			if (index == null) {
+				index = dictionary.size() + 1;
+				dictionary.put(value, index);
+			}
+			indices[i] = index;
+		}
+		writeVarLong(out, dictionary.size());
+		try {
+			for (String value : dictionary.keySet()) {
+				byte[] bytes = value.getBytes("UTF-8");
+				writeVarLong(out, bytes.length);
+				out.write(bytes);
+			}
+		}
+		catch (IOException ex) {
+			// UTF-8 always supported, and not writing to a real stream
+			throw new IllegalStateException(ex);
+		}
+		for (int i = 0; i < rows; i++) {
+			writeVarLong(out, indices[i]);
+		}
+		return STRING;
+	}
+
+	/**
+	 * Determine if the given string is a long exactly as
+	 * {@link Long#toString(long)} would format it.
+	 */
+	static boolean isCanonicalLong(String s) {
+		int start = s.startsWith("-") ? 1 : 0;
+		int length = s.length() - start;
+		// shorter than Long.MAX_VALUE, so it can't overflow
+		if (length < 1 || length > 18) return false;
+		if (s.charAt(start) == '0' && (length > 1 || start == 1)) return false;
+		for (int i = start; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') return false;
+		}
+		return true;
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	static void writeVarLong(ByteArrayOutputStream out, long v) {
+		while ((v & ~0x7FL) != 0) {
+			out.write((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+}
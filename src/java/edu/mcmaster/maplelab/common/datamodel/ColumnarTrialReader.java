@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.common.datamodel;
+
+import static edu.mcmaster.maplelab.common.datamodel.ColumnarTrialLogger.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader for files written by {@link ColumnarTrialLogger}.  Blocks are read
+ * in order, decoding only the columns asked for; the others are skipped
+ * without being decompressed.
+ *
+ * Can also be run to convert a columnar file back to the tab-separated
+ * format of {@link FileTrialLogger}:
+ * <pre>
+ * ColumnarTrialReader input.tcol [output.txt]
+ * </pre>
+ *
+ * @author bguseman
+ *
+ */
+public class ColumnarTrialReader implements Closeable {
+	private final DataInputStream _in;
+	private final List<String> _names;
+	private final Inflater _inflater = new Inflater();
+
+	/**
+	 * Constructor.  Reads the column names.
+	 */
+	public ColumnarTrialReader(File file) throws IOException {
+		_in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			_names = readHeader(_in, file);
+		}
+		catch (IOException ex) {
+			close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Read just the column names of the given file.
+	 */
+	public static List<String> readColumnNames(File file) throws IOException {
+		ColumnarTrialReader reader = new ColumnarTrialReader(file);
+		try {
+			return reader.getColumnNames();
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private static List<String> readHeader(DataInputStream in, File file) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException(String.format("'%s' is not a columnar trial file", file));
+		}
+		short version = in.readShort();
+		if (version != VERSION) {
+			throw new IOException(String.format("'%s' has unsupported version %d", file, version));
+		}
+		int count = in.readInt();
+		List<String> retval = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			retval.add(in.readUTF());
+		}
+		return Collections.unmodifiableList(retval);
+	}
+
+	/**
+	 * Get the column names, in order.  Names are not necessarily unique.
+	 */
+	public List<String> getColumnNames() {
+		return _names;
+	}
+
+	/**
+	 * Get the index of the first column with the given name, or -1.
+	 */
+	public int getColumnIndex(String name) {
+		return _names.indexOf(name);
+	}
+
+	/**
+	 * Read the next block, decoding all columns.
+	 *
+	 * @return the block, or null at end of file
+	 */
+	public Block nextBlock() throws IOException {
+		return nextBlock(null);
+	}
+
+	/**
+	 * Read the next block, decoding only the given columns.
+	 *
+	 * @param columns indices of the columns wanted, or null for all
+	 * @return the block, or null at end of file
+	 */
+	public Block nextBlock(int[] columns) throws IOException {
+		int rows;
+		try {
+			rows = _in.readInt();
+		}
+		catch (EOFException ex) {
+			return null;
+		}
+
+		boolean[] wanted = new boolean[_names.size()];
+		if (columns == null) {
+			Arrays.fill(wanted, true);
+		}
+		else {
+			for (int c : columns) wanted[c] = true;
+		}
+
+		Block retval = new Block(rows, _names.size());
+		for (int c = 0; c < _names.size(); c++) {
+			byte type = _in.readByte();
+			int length = _in.readInt();
+			int compressed = _in.readInt();
+			if (!wanted[c]) {
+				while (compressed > 0) {
+					int n = _in.skipBytes(compressed);
+					if (n <= 0) throw new EOFException();
+					compressed -= n;
+				}
+				continue;
+			}
+
+			byte[] data = new byte[compressed];
+			_in.readFully(data);
+			byte[] encoded = new byte[length];
+			_inflater.reset();
+			_inflater.setInput(data);
+			try {
+				if (_inflater.inflate(encoded) != length) {
+					throw new IOException("Truncated column data");
+				}
+			}
+			catch (DataFormatException ex) {
+				throw new IOException("Corrupt column data", ex);
+			}
+			retval.decode(c, type, new ByteArrayInputStream(encoded));
+		}
+		return retval;
+	}
+
+	@Override
+	public void close() throws IOException {
+		_inflater.end();
+		_in.close();
+	}
+
+	/**
+	 * One block of rows.
+	 */
+	public static class Block {
+		private final int _rows;
+		private final long[][] _numbers;
+		private final String[][] _strings;
+
+		private Block(int rows, int columns) {
+			_rows = rows;
+			_numbers = new long[columns][];
+			_strings = new String[columns][];
+		}
+
+		/**
+		 * Get the number of rows.
+		 */
+		public int getRowCount() {
+			return _rows;
+		}
+
+		/**
+		 * Determine if the given column was decoded.
+		 */
+		public boolean isLoaded(int column) {
+			return _numbers[column] != null || _strings[column] != null;
+		}
+
+		/**
+		 * Determine if the given column holds only whole numbers in this
+		 * block, readable with {@link #getLong(int, int)}.
+		 */
+		public boolean isNumeric(int column) {
+			return _numbers[column] != null;
+		}
+
+		/**
+		 * Get a value of a numeric column.
+		 */
+		public long getLong(int column, int row) {
+			return _numbers[column][row];
+		}
+
+		/**
+		 * Get a value as text, as it appears in tab-separated output, or
+		 * null if the row has no value in the column.
+		 */
+		public String getString(int column, int row) {
+			if (_numbers[column] != null) return String.valueOf(_numbers[column][row]);
+			return _strings[column][row];
+		}
+
+		private void decode(int column, byte type, InputStream in) throws IOException {
+			if (type == LONG) {
+				long[] values = new long[_rows];
+				long last = 0;
+				for (int i = 0; i < _rows; i++) {
+					last += unzigzag(readVarLong(in));
+					values[i] = last;
+				}
+				_numbers[column] = values;
+			}
+			else if (type == STRING) {
+				String[] dictionary = new String[(int) readVarLong(in) + 1];
+				for (int i = 1; i < dictionary.length; i++) {
+					byte[] bytes = new byte[(int) readVarLong(in)];
+					if (bytes.length > 0 && in.read(bytes) != bytes.length) throw new EOFException();
+					dictionary[i] = new String(bytes, "UTF-8");
+				}
+				String[] values = new String[_rows];
+				for (int i = 0; i < _rows; i++) {
+					values[i] = dictionary[(int) readVarLong(in)];
+				}
+				_strings[column] = values;
+			}
+			else {
+				throw new IOException("Unknown column type " + type);
+			}
+		}
+	}
+
+	private static long readVarLong(InputStream in) throws IOException {
+		long retval = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) throw new EOFException();
+			retval |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return retval;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Write the given columnar file as tab-separated text, as
+	 * {@link FileTrialLogger} would have.
+	 */
+	public static void toTSV(File file, Writer out) throws IOException {
+		ColumnarTrialReader reader = new ColumnarTrialReader(file);
+		try {
+			String newline = String.format("%n");
+			StringBuilder line = new StringBuilder(512);
+			for (String name : reader.getColumnNames()) {
+				line.append(name).append('\t');
+			}
+			out.write(line.append(newline).toString());
+
+			int columns = reader.getColumnNames().size();
+			Block block;
+			while ((block = reader.nextBlock()) != null) {
+				for (int r = 0; r < block.getRowCount(); r++) {
+					line.setLength(0);
+					for (int c = 0; c < columns; c++) {
+						String value = block.getString(c, r);
+						if (value != null) line.append(value).append('\t');
+					}
+					out.write(line.append(newline).toString());
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: ColumnarTrialReader input." + EXTENSION + " [output.txt]");
+			System.exit(1);
+		}
+
+		try {
+			Writer out = args.length > 1 ?
+				new BufferedWriter(new FileWriter(args[1])) :
+				new BufferedWriter(new OutputStreamWriter(System.out));
+			try {
+				toTSV(new File(args[0]), out);
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException ex) {
+			System.err.println(ex.getMessage());
+			System.exit(1);
+		}
+	}
+}
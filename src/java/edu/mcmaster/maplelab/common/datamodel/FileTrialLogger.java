@@ -13,17 +13,38 @@
 package edu.mcmaster.maplelab.common.datamodel;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import edu.mcmaster.maplelab.common.Experiment;
 import edu.mcmaster.maplelab.common.LogContext;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.IntColumn;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.StringColumn;
 import edu.mcmaster.maplelab.common.datamodel.TrialPositionHierarchy.RelativeTrialPosition;
 import edu.mcmaster.maplelab.common.datamodel.TrialPositionHierarchy.TrialHierarchy;
+import edu.mcmaster.maplelab.common.datamodel.TrialPositionHierarchy.TrialPositionItem;
 
 
 /**
- * Class responsible for logging trial data to a file.
+ * Class responsible for logging trial data to a file.  Rows are formatted on
+ * the calling thread and appended by a background writer, which keeps the
+ * file open and writes whatever has queued up in one go, so submitting a
+ * trial costs no file system calls.  Rows reach the file as soon as the
+ * writer gets to them, and are forced to disk according to the session's
+ * {@link SyncPolicy}; with {@link SyncPolicy#row}, submitting waits until
+ * they have been.
  * @version  $Revision:$
  * @author  <a href="mailto:simeon.fitch@mseedsoft.com">Simeon H.K. Fitch</a>
  * @since  Nov 22, 2006
@@ -40,6 +61,45 @@ public abstract class FileTrialLogger<S extends Session<?, ?, ?>, T extends Tria
 		FileType.create(RESPONSE_ALL_FILE, "txt", "responses", true, false);
 	}
 	
+	/**
+	 * When written rows are forced to disk.  Rows are written to the file as
+	 * soon as possible regardless, so they survive the program exiting;
+	 * forcing them also makes them survive a system crash.
+	 */
+	public enum SyncPolicy {
+		/** 
+		 * Force after every write, and wait for it when submitting, so a
+		 * submitted trial has reached the disk.
+		 */
+		row,
+		/** Force when a new block starts, and on shutdown. */
+		block,
+		/** Force at most once per sync interval, and on shutdown. */
+		interval
+	}
+	
+	private static final String LINE_SEPARATOR = String.format("%n");
+	private static final long MILLIS_PER_MINUTE = 60 * 1000;
+	/** Output directories known to exist. */
+	private static final Set<File> _outputDirs = Collections.synchronizedSet(new HashSet<File>());
+	private static long _stampMinute = -1;
+	private static String _stamp;
+	/** How long shutdown waits for queued rows to be written. */
+	protected static final long CLOSE_TIMEOUT_SECONDS = 10;
+	/** How long the writer waits before retrying after a write error. */
+	private static final long RETRY_MILLIS = 500;
+	
+	/** Columns of the collected file index. */
+	private enum IndexKeys {
+		exp_id,
+		sub_exp_id,
+		subject,
+		session,
+		offset,
+		length,
+		source
+	}
+	
 	private enum SessionKeys {
 		exp_id,
 		sub_exp_id,
@@ -65,6 +125,18 @@ public abstract class FileTrialLogger<S extends Session<?, ?, ?>, T extends Tria
     private final S _session;
     private final File _file;
     private final boolean _deleteTempFile;
+    private final SyncPolicy _syncPolicy;
+    private final long _syncIntervalMillis;
+    private final StringBuilder _row = new StringBuilder(512);
+    private final TextCellWriter _cells = new TextCellWriter();
+    private RowSchema<T> _schema = null;
+    private RowWriter _writer = null;
+    private boolean _headerQueued = false;
+    private int _lastBlock = -1;
+    private volatile IOException _writeError = null;
+    private final boolean _columnarOutput;
+    /** Created on first use, and after each shutdown if there are further trials. */
+    private ColumnarTrialLogger<T> _columnar = null;
     private static File _outputDir;
 
     public FileTrialLogger(S session, File workingDirectory) throws IOException {
@@ -77,6 +149,8 @@ public abstract class FileTrialLogger<S extends Session<?, ?, ?>, T extends Tria
     	
     	_session = session;
         _deleteTempFile = deleteTempFile;
+        _syncPolicy = session.getLogSyncPolicy();
+        _syncIntervalMillis = Math.max(1, session.getLogSyncInterval());
         
         if(!workingDirectory.isDirectory() || !workingDirectory.canWrite()) {
             throw new IOException(String.format("'%s' is not a writable directory", workingDirectory.getAbsoluteFile()));
@@ -95,13 +169,20 @@ public abstract class FileTrialLogger<S extends Session<?, ?, ?>, T extends Tria
         
         LogContext.getLogger().fine("Output file: " + _file);
         
+        _columnarOutput = session.isColumnarOutput();
+        
     }
     
     /**
-     * Get the timestamp in a standard format.
+     * Get the timestamp in a standard format.  Formatted once per minute.
      */
-    public static String getTimeStamp() {
-    	return String.format("%1$ty%1$tm%1$td%1$tH%1$tM", new Date());
+    public static synchronized String getTimeStamp() {
+    	long minute = System.currentTimeMillis() / MILLIS_PER_MINUTE;
+    	if (minute != _stampMinute) {
+    		_stamp = String.format("%1$ty%1$tm%1$td%1$tH%1$tM", new Date(minute * MILLIS_PER_MINUTE));
+    		_stampMinute = minute;
+    	}
+    	return _stamp;
     }
     
     /**
@@ -207,60 +288,226 @@ public abstract class FileTrialLogger<S extends Session<?, ?, ?>, T extends Tria
     	String dirName = String.format("%s-Individual" + File.separator + 
     			"Experiment %s" + File.separator + "Subject %s", s.getExperimentBaseName(),
     			s.getExperimentID(), s.getSubject());
-    	File dir = new File(getBaseOutputDirectory(), dirName);
-    	if (!dir.exists()) dir.mkdirs();
-    	return dir;
+    	return makeDirectory(new File(getBaseOutputDirectory(), dirName));
     }
     
     /**
      * Get the directory in which combined output files should be placed.
      */
     private static File getCombinedFileDirectory(Session<?, ?, ?> s) {
-    	File dir = new File(getBaseOutputDirectory(), 
-    			String.format("%s-Composite", s.getExperimentBaseName()));
-    	if (!dir.exists()) dir.mkdirs();
+    	return makeDirectory(new File(getBaseOutputDirectory(), 
+    			String.format("%s-Composite", s.getExperimentBaseName())));
+    }
+    
+    /**
+     * Create the given directory if needed.  Directories are only checked
+     * the first time they're asked for.
+     */
+    private static File makeDirectory(File dir) {
+    	if (!_outputDirs.contains(dir)) {
+    		if (!dir.exists()) dir.mkdirs();
+    		if (dir.isDirectory()) _outputDirs.add(dir);
+    	}
     	return dir;
     }
 
     /**
      * Called when the experiment completes. On successful completion we
-     * merge local data file into collected one.
+     * merge local data file into collected one.  The data rows are copied
+     * as they are, without the header if the collected file already has
+     * one, while holding a lock on the collected file so that stations
+     * sharing it don't interleave their data.  An entry recording where
+     * the rows went is then added to the collected file's index.
+     * 
+     * If the collected file's header differs from this session's (the
+     * columns have changed), the rows go to a numbered alternate collected
+     * file, with its own index, rather than under the wrong header.
      * {@inheritDoc} 
      * @see edu.mcmaster.maplelab.common.datamodel.TrialLogger#shutdown()
      */
     public void shutdown() {
+        closeWriter();
+        ColumnarTrialLogger<T> columnar;
+        synchronized (this) {
+            columnar = _columnar;
+            _columnar = null;
+        }
+        if (columnar != null) {
+            columnar.shutdown();
+        }
+        
         File collected = getCollectedOutputFile();
-        boolean cExists = collected.exists();
-        LineNumberReader input = null;
-        PrintWriter output = null;
+        FileInputStream input = null;
+        RandomAccessFile output = null;
+        FileLock lock = null;
         try {
-            input = new LineNumberReader(new FileReader(getFile()));
-            output = new PrintWriter(new FileWriter(collected, true));
+            input = new FileInputStream(getFile());
+            FileChannel in = input.getChannel();
+            long header = headerLength(in);
+            FileChannel out;
+            for (int alternate = 2; ; alternate++) {
+                output = new RandomAccessFile(collected, "rw");
+                out = output.getChannel();
+                lock = lock(out, collected);
+                if (out.size() == 0 || sameHeader(in, out, header)) break;
+                
+                File next = alternateFile(getCollectedOutputFile(), alternate);
+                LogContext.getLogger().severe(String.format(
+                    "Header of '%s' doesn't match this session's; merging into '%s' instead", 
+                    collected, next));
+                if (lock != null) lock.release();
+                lock = null;
+                output.close();
+                output = null;
+                collected = next;
+            }
+            
+            long start = out.size();
+            // The first line will have the header, so we skip it.
+            long from = start > 0 ? header : 0;
+            long count = in.size() - from;
             
-            if(cExists) {
-                // The first line will have the header, so we skip it.
-                input.readLine();
+            try {
+                out.position(start);
+                while (count > 0) {
+                    long n = in.transferTo(from, count, out);
+                    if (n <= 0) throw new EOFException("Merge of " + getFile() + " stopped short");
+                    from += n;
+                    count -= n;
+                }
+                out.force(false);
+            }
+            catch (IOException ex) {
+                // don't leave a partial merge behind
+                out.truncate(start);
+                throw ex;
             }
             
-            String line;
-            while((line = input.readLine()) != null) {
-                output.println(line);
+            long end = out.size();
+            if (end > start) {
+                writeIndexEntry(getIndexFile(collected), start, end);
             }
             
             if(_deleteTempFile) {
+                input.close();
+                input = null;
                 getFile().delete();
             }
         }
-        catch(EOFException ex) {
-        }
         catch (IOException ex) {
             LogContext.getLogger().log(Level.WARNING, "Collected results error", ex);
         }
         finally {
+            if(lock != null) try { lock.release(); } catch(Exception ex) {}
             if(input != null) try { input.close(); } catch(Exception ex) {}
             if(output!= null) try { output.close(); } catch(Exception ex) {}
         }
-    }       
+    }
+    
+    /**
+     * Get the index file for the given collected output file.  Each line
+     * gives the byte range of the collected file holding one session's data.
+     */
+    public static File getIndexFile(File collected) {
+        return new File(collected.getParentFile(), collected.getName() + ".idx");
+    }
+    
+    /**
+     * Lock the given channel for writing, waiting for other holders.  Not
+     * all file systems support locking; if this one doesn't, the merge goes
+     * ahead unlocked.
+     * 
+     * @return the lock, or null if locking isn't available
+     */
+    private static FileLock lock(FileChannel channel, File file) {
+        try {
+            return channel.lock();
+        }
+        catch (IOException ex) {
+            LogContext.getLogger().warning(String.format(
+                "Couldn't lock '%s'; merging without a lock: %s", file, ex.getMessage()));
+            return null;
+        }
+    }
+    
+    /**
+     * Get the length in bytes of the first line of the given file,
+     * including the line terminator.
+     */
+    private static long headerLength(FileChannel in) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long pos = 0;
+        while (true) {
+            buf.clear();
+            int n = in.read(buf, pos);
+            if (n < 0) return pos;
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') return pos + i + 1;
+            }
+            pos += n;
+        }
+    }
+    
+    /**
+     * Determine if the given output file starts with the same header (of
+     * the given length, including the line terminator) as the input file.
+     */
+    private static boolean sameHeader(FileChannel in, FileChannel out, long length) throws IOException {
+        if (out.size() < length) return false;
+        ByteBuffer expected = ByteBuffer.allocate((int) length);
+        ByteBuffer actual = ByteBuffer.allocate((int) length);
+        while (expected.hasRemaining() && in.read(expected, expected.position()) > 0);
+        while (actual.hasRemaining() && out.read(actual, actual.position()) > 0);
+        expected.flip();
+        actual.flip();
+        return expected.equals(actual);
+    }
+    
+    /**
+     * Get the given file's numbered alternate, e.g. <code>name-2.txt</code>.
+     */
+    static File alternateFile(File file, int number) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        name = dot > 0 ? name.substring(0, dot) + "-" + number + name.substring(dot) : 
+            name + "-" + number;
+        return new File(file.getParentFile(), name);
+    }
+    
+    /**
+     * Append an entry for this session to the given index file.  Called
+     * while the collected file is locked, which covers its index too.
+     * 
+     * @param start offset of the first byte merged
+     * @param end offset after the last byte merged
+     */
+    private void writeIndexEntry(File index, long start, long end) throws IOException {
+        Session<?, ?, ?> s = getSession();
+        StringBuilder out = new StringBuilder(256);
+        if (!index.exists() || index.length() == 0) {
+            for (IndexKeys k : IndexKeys.values()) {
+                out.append(k.name()).append('\t');
+            }
+            out.append(LINE_SEPARATOR);
+        }
+        out.append(s.getExperimentID()).append('\t')
+            .append(s.getSubExperimentID()).append('\t')
+            .append(s.getSubject()).append('\t')
+            .append(s.getSession()).append('\t')
+            .append(start).append('\t')
+            .append(end - start).append('\t')
+            .append(getFile().getName()).append('\t')
+            .append(LINE_SEPARATOR);
+        
+        FileOutputStream output = new FileOutputStream(index, true);
+        try {
+            output.write(out.toString().getBytes());
+            output.getFD().sync();
+        }
+        finally {
+            output.close();
+        }
+    }
     
     /**
      * {@inheritDoc} 
@@ -273,152 +520,513 @@ public abstract class FileTrialLogger<S extends Session<?, ?, ?>, T extends Tria
      * {@inheritDoc} 
      * @see edu.mcmaster.maplelab.common.datamodel.TrialLogger#submit(edu.mcmaster.maplelab.common.datamodel.Trial)
      */
-    public void submit(T trial) throws IOException {
+    public synchronized void submit(T trial) throws IOException {
+        StringBuilder out = rowBuffer();
+        writeRow(trial, out);
+        queue(out, trial);
+    }
+    
+    /**
+     * Get the buffer for formatting rows, emptied.  The buffer is reused,
+     * so callers must queue its contents before formatting more.
+     */
+    protected StringBuilder rowBuffer() {
+        _row.setLength(0);
+        return _row;
+    }
+    
+    /**
+     * Queue the given formatted rows to be appended to the output file,
+     * preceded by the header if the file is new.  Returns without waiting
+     * for them to be written, unless the sync policy is
+     * {@link SyncPolicy#row}, in which case it waits (a limited time) for
+     * them to be forced to disk.
+     * 
+     * @param rows rows to append
+     * @param trial trial the rows are for, or null
+     * @throws IOException if the writer has been failing to write, or the
+     *         rows weren't forced in time; the rows are still queued, and
+     *         will be written if it recovers
+     */
+    protected synchronized void queue(CharSequence rows, Trial<?> trial) throws IOException {
+        if (_writer == null) {
+            _writer = new RowWriter();
+        }
+        if (!_headerQueued) {
+            StringBuilder header = new StringBuilder(512);
+            writeHeader(header);
+            _writer.add(new Pending(header.toString(), true, false, null, null));
+            _headerQueued = true;
+        }
         
-    	List<Set<? extends Enum<?>>> hList = buildHeaderSets();
-        List<EnumMap<? extends Enum<?>,String>> list = buildDataSets(trial);
+        boolean newBlock = false;
+        if (trial != null) {
+            int block = trial.getBlockNumber();
+            newBlock = _lastBlock >= 0 && block != _lastBlock;
+            _lastBlock = block;
+        }
+        CountDownLatch synced = _syncPolicy == SyncPolicy.row ? new CountDownLatch(1) : null;
+        _writer.add(new Pending(rows.toString(), false, newBlock, null, synced));
         
-        File file = getFile();
+        if (synced != null) {
+            try {
+                if (!synced.await(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS) && _writeError == null) {
+                    throw new IOException("Timed out forcing trial data to " + getFile());
+                }
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
         
-        boolean addHeader = !file.exists();
+        IOException error = _writeError;
+        if (error != null) {
+            throw error;
+        }
+    }
+    
+    /**
+     * Write out and force any queued rows, and close the output file.
+     * Waits a limited time for the writer to finish.
+     */
+    private void closeWriter() {
+        RowWriter writer;
+        Pending close = new Pending(null, false, false, new CountDownLatch(1), null);
+        synchronized (this) {
+            writer = _writer;
+            if (writer == null) return;
+            _writer = null;
+            // file may be deleted once merged
+            _headerQueued = false;
+            writer.add(close);
+        }
+        writer.removeHook();
         
-        FileWriter out = null;
         try {
-            out = new FileWriter(file, true);
-            if(addHeader) {
-                writeHeader(hList, out);
+            if (!close._done.await(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LogContext.getLogger().severe("Timed out writing trial data to " + getFile());
             }
-            
-            writeRow(list, out);
         }
-        finally {
-            if(out != null) out.close();
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Write out a row of data contained in the given map.
+     * Write out a row of data for the given trial.  Also adds the row to
+     * the columnar output, if enabled.
      * 
-     * @param map Map containing data.
-     * @param out output to write to.
-     * @throws IOException on output error.
-     */
-    protected void writeRow(List<EnumMap<? extends Enum<?>, String>> maps, Writer out) throws IOException {
-    	for (EnumMap<? extends Enum<?>, String> map : maps) {
-        	if (map == null || map.isEmpty()) continue;
-        	for (Enum<?> e : map.keySet()) {
-        		out.write(String.format("%s\t", map.get(e)));
-            }
+     * @param trial row source.
+     * @param out buffer to format into.
+     */
+    protected void writeRow(T trial, StringBuilder out) {
+        writeRow(trial, out, getColumnar());
+    }
+    
+    /**
+     * Write out a row of data for the given trial, without adding it to
+     * the columnar output.  For rows that may yet be dropped; those kept
+     * are added with {@link #writeColumnarRow(Trial)}.
+     * 
+     * @param trial row source.
+     * @param out buffer to format into.
+     */
+    protected void writeTextRow(T trial, StringBuilder out) {
+        writeRow(trial, out, null);
+    }
+    
+    /**
+     * Add a row for the given trial to the columnar output, if enabled.
+     */
+    protected void writeColumnarRow(T trial) throws IOException {
+        ColumnarTrialLogger<T> columnar = getColumnar();
+        if (columnar != null) {
+            columnar.submit(trial);
+        }
+    }
+    
+    /**
+     * Get the columnar output, creating it if needed, or null if disabled.
+     * Rows added after a shutdown start a new one, which appends.
+     */
+    private synchronized ColumnarTrialLogger<T> getColumnar() {
+        if (_columnar == null && _columnarOutput) {
+            _columnar = new ColumnarTrialLogger<T>(this);
+        }
+        return _columnar;
+    }
+    
+    private void writeRow(T trial, StringBuilder out, ColumnarTrialLogger<T> columnar) {
+        RowSchema<T> schema = getSchema();
+        _cells._out = out;
+        _cells._next = columnar != null ? columnar.beginRow(schema) : null;
+        schema.write(trial, _cells);
+        out.append(LINE_SEPARATOR);
+        
+        if (columnar != null) {
+            columnar.endRow();
         }
-        out.write(String.format("%n"));
     }
 
     /**
-     * Write out the header for the given set of keys.
+     * Write out the header labelling each column.
      * 
-     * @param keys data set keys.
-     * @param out output to write to.
-     * @throws IOException on output error.
-     */
-    protected void writeHeader(List<Set<? extends Enum<?>>> list, FileWriter out) throws IOException {
-        for (Set<? extends Enum<?>> set : list) {
-        	if (set == null || set.isEmpty()) continue;
-        	for (Enum<?> e : set) {
-                out.write(String.format("%s\t", e.name()));
-            }
+     * @param out buffer to format into.
+     */
+    protected void writeHeader(StringBuilder out) {
+        for (RowSchema.Column<? super T> c : getSchema().getColumns()) {
+            out.append(c.getName()).append('\t');
         }
-        out.write(String.format("%n"));
+        out.append(LINE_SEPARATOR);
     }
     
     /**
-     * Build the list of enum sets that will label each column.  Exposed for subclasses
-     * that need to override.
+     * Get the row schema, building it on first use.
      */
-    protected List<Set<? extends Enum<?>>> buildHeaderSets() {
-    	List<Set<? extends Enum<?>>> retval = new ArrayList<Set<? extends Enum<?>>>();
-    	
-    	retval.add(EnumSet.allOf(SessionKeys.class));
-    	retval.add(getGeneralDataHeaders());
-    	retval.add(EnumSet.allOf(CountKeys.class));
-    	retval.add(getTrialDataHeaders());
-    	
-    	return retval;
+    protected synchronized RowSchema<T> getSchema() {
+        if (_schema == null) {
+            _schema = buildSchema();
+        }
+        return _schema;
     }
     
     /**
-     * Build the list of data sets that will combine for each row.  Exposed for subclasses
-     * that need to override.
+     * Build the schema of each row.  Exposed for subclasses that need to
+     * override.
      */
-    protected List<EnumMap<? extends Enum<?>, String>> buildDataSets(T trial) {
-    	List<EnumMap<? extends Enum<?>, String>> retval = 
-    		new ArrayList<EnumMap<? extends Enum<?>, String>>();
-    	
-    	retval.add(marshalSessionDataToMap(trial));
-    	retval.add(marshalGeneralDataToMap(trial));
-    	retval.add(marshalTrialCountsToMap(trial));
-    	retval.add(marshalTrialDataToMap(trial));
-    	
-    	return retval;
+    protected RowSchema<T> buildSchema() {
+        RowSchema<T> retval = new RowSchema<T>();
+        
+        addSessionColumns(retval);
+        addGeneralColumns(retval);
+        addTrialCountColumns(retval);
+        addTrialColumns(retval);
+        
+        return retval;
     }
  
     /**
-     * Gather session data.
+     * Add session data columns.
      */
-    protected EnumMap<? extends Enum<?>, String> marshalSessionDataToMap(T trial) {
-    	Session<?, ?, ?> session = getSession();
-    	
-        EnumMap<SessionKeys, String> fields = new EnumMap<SessionKeys, String>(SessionKeys.class);
-
-        // Meta information
-        fields.put(SessionKeys.exp_id, session.getExperimentID());
-        fields.put(SessionKeys.sub_exp_id, session.getSubExperimentID());
-        fields.put(SessionKeys.exp_build, Experiment.getBuildVersion());
-        fields.put(SessionKeys.exp_build_date, Experiment.getBuildDate());
-        fields.put(SessionKeys.ra_id, session.getRAID());
-        fields.put(SessionKeys.subject, String.valueOf(session.getSubject()));
-        fields.put(SessionKeys.session, String.valueOf(session.getSession()));
+    protected void addSessionColumns(RowSchema<T> schema) {
+        final Session<?, ?, ?> session = getSession();
         
-        return fields;
+        // Meta information
+        schema.add(new StringColumn<Trial<?>>(SessionKeys.exp_id) {
+            protected String get(Trial<?> trial) { return session.getExperimentID(); }
+        });
+        schema.add(new StringColumn<Trial<?>>(SessionKeys.sub_exp_id) {
+            protected String get(Trial<?> trial) { return session.getSubExperimentID(); }
+        });
+        schema.add(new StringColumn<Trial<?>>(SessionKeys.exp_build) {
+            protected String get(Trial<?> trial) { return Experiment.getBuildVersion(); }
+        });
+        schema.add(new StringColumn<Trial<?>>(SessionKeys.exp_build_date) {
+            protected String get(Trial<?> trial) { return Experiment.getBuildDate(); }
+        });
+        schema.add(new StringColumn<Trial<?>>(SessionKeys.ra_id) {
+            protected String get(Trial<?> trial) { return session.getRAID(); }
+        });
+        schema.add(new IntColumn<Trial<?>>(SessionKeys.subject) {
+            protected int get(Trial<?> trial) { return session.getSubject(); }
+        });
+        schema.add(new IntColumn<Trial<?>>(SessionKeys.session) {
+            protected int get(Trial<?> trial) { return session.getSession(); }
+        });
     }
  
     /**
-     * Gather trial count data.
+     * Add trial count columns.
      */
-    protected EnumMap<? extends Enum<?>, String> marshalTrialCountsToMap(T trial) {
-        EnumMap<CountKeys, String> fields = new EnumMap<CountKeys, String>(CountKeys.class);
-        
-        fields.put(CountKeys.trial_num, String.valueOf(trial.getNumber(TrialHierarchy.TRIAL)));
-    	fields.put(CountKeys.block_num, String.valueOf(trial.getNumber(TrialHierarchy.BLOCK)));
-    	fields.put(CountKeys.metablock_num, String.valueOf(trial.getNumber(TrialHierarchy.METABLOCK)));
-    	fields.put(CountKeys.block_instance, String.valueOf(trial.getNumber(RelativeTrialPosition.BLOCK_INSTANCE)));
-        fields.put(CountKeys.repetition_num, String.valueOf(trial.getNumber(RelativeTrialPosition.REPETITION)));
-        fields.put(CountKeys.trial_in_metablock, String.valueOf(trial.getNumber(RelativeTrialPosition.TRIAL_IN_METABLOCK)));
-        fields.put(CountKeys.block_in_metablock, String.valueOf(trial.getNumber(RelativeTrialPosition.BLOCK_IN_METABLOCK)));
-        fields.put(CountKeys.trial_in_block, String.valueOf(trial.getNumber(RelativeTrialPosition.TRIAL_IN_BLOCK)));
-        fields.put(CountKeys.time_stamp, trial.getTimeStamp());
-        
-        return fields;
+    protected void addTrialCountColumns(RowSchema<T> schema) {
+        schema.add(new PositionColumn(CountKeys.trial_num, TrialHierarchy.TRIAL));
+        schema.add(new PositionColumn(CountKeys.block_num, TrialHierarchy.BLOCK));
+        schema.add(new PositionColumn(CountKeys.metablock_num, TrialHierarchy.METABLOCK));
+        schema.add(new PositionColumn(CountKeys.block_instance, RelativeTrialPosition.BLOCK_INSTANCE));
+        schema.add(new PositionColumn(CountKeys.repetition_num, RelativeTrialPosition.REPETITION));
+        schema.add(new PositionColumn(CountKeys.trial_in_metablock, RelativeTrialPosition.TRIAL_IN_METABLOCK));
+        schema.add(new PositionColumn(CountKeys.block_in_metablock, RelativeTrialPosition.BLOCK_IN_METABLOCK));
+        schema.add(new PositionColumn(CountKeys.trial_in_block, RelativeTrialPosition.TRIAL_IN_BLOCK));
+        schema.add(new StringColumn<Trial<?>>(CountKeys.time_stamp) {
+            protected String get(Trial<?> trial) { return trial.getTimeStamp(); }
+        });
     }
  
     /**
-     * Get a set of items responsible for enumerating the types of general data.
+     * Add general data columns - intended for data specific to the experiment
+     * that is still general in the same way as the session data.  None by
+     * default.
      */
-    protected abstract Set<? extends Enum<?>> getGeneralDataHeaders();
+    protected void addGeneralColumns(RowSchema<T> schema) {
+    }
  
     /**
-     * Gather general data - intended for data specific to the experiment that is still
-     * general in the same way as the session data.
+     * Add trial data columns.
      */
-    protected abstract EnumMap<? extends Enum<?>, String> marshalGeneralDataToMap(T trial);
- 
+    protected abstract void addTrialColumns(RowSchema<T> schema);
+    
     /**
-     * Get a set of items responsible for enumerating the types of trial data.
+     * Column of a trial position number.
      */
-    protected abstract Set<? extends Enum<?>> getTrialDataHeaders();
- 
+    private static final class PositionColumn extends IntColumn<Trial<?>> {
+        private final TrialPositionItem _item;
+        
+        PositionColumn(Enum<?> key, TrialPositionItem item) {
+            super(key);
+            _item = item;
+        }
+        
+        @Override
+        protected int get(Trial<?> trial) {
+            return trial.getNumber(_item);
+        }
+    }
+    
     /**
-     * Gather trial data.
+     * Formats values as tab-terminated text, as <code>String.valueOf</code>
+     * would, without creating strings for primitive values.  Values are
+     * also passed on to the next writer, if any.
      */
-    protected abstract EnumMap<? extends Enum<?>, String> marshalTrialDataToMap(T trial);
+    private static final class TextCellWriter implements RowSchema.CellWriter {
+        private StringBuilder _out;
+        private RowSchema.CellWriter _next;
+        
+        public void writeLong(long value) {
+            _out.append(value).append('\t');
+            if (_next != null) _next.writeLong(value);
+        }
+        public void writeDouble(double value) {
+            _out.append(value).append('\t');
+            if (_next != null) _next.writeDouble(value);
+        }
+        public void writeFloat(float value) {
+            _out.append(value).append('\t');
+            if (_next != null) _next.writeFloat(value);
+        }
+        public void writeBoolean(boolean value) {
+            _out.append(value).append('\t');
+            if (_next != null) _next.writeBoolean(value);
+        }
+        public void writeString(String value) {
+            _out.append(value).append('\t');
+            if (_next != null) _next.writeString(value);
+        }
+    }
+    
+    /**
+     * Text queued for the writer.
+     */
+    private static final class Pending {
+        private final String _text;
+        /** Header, to be written only if the file is empty. */
+        private final boolean _header;
+        /** First rows of a new block. */
+        private final boolean _newBlock;
+        /** If not null, close after writing and count down. */
+        private final CountDownLatch _done;
+        /** If not null, counted down once the text is forced to disk. */
+        private final CountDownLatch _synced;
+        
+        Pending(String text, boolean header, boolean newBlock, CountDownLatch done, 
+                CountDownLatch synced) {
+            _text = text;
+            _header = header;
+            _newBlock = newBlock;
+            _done = done;
+            _synced = synced;
+        }
+    }
+    
+    /**
+     * Background writer for the output file.  Each pass takes everything
+     * queued so far and appends it with a single write, then forces it to
+     * disk if the sync policy calls for it.  If writing fails, the file is
+     * cut back to where the batch started and the same text is retried,
+     * with the file reopened, until it succeeds.
+     * 
+     * A shutdown hook writes out anything still queued if the program exits
+     * without the logger being shut down.
+     */
+    private final class RowWriter implements Runnable {
+        private final BlockingQueue<Pending> _queue = new LinkedBlockingQueue<Pending>();
+        private final List<Pending> _batch = new ArrayList<Pending>();
+        private final StringBuilder _text = new StringBuilder(4096);
+        private final CharsetEncoder _encoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final Thread _hook;
+        private ByteBuffer _bytes = ByteBuffer.allocate(8192);
+        private FileChannel _channel = null;
+        /** File size before the current batch was first tried, or -1. */
+        private long _batchStart = -1;
+        private boolean _dirty = false;
+        private long _lastSync = 0;
+        
+        RowWriter() {
+            Thread t = new Thread(this, "trial-log-writer");
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            t.start();
+            
+            _hook = new Thread(new Runnable() {
+                public void run() {
+                    closeWriter();
+                }
+            }, "trial-log-exit");
+            Runtime.getRuntime().addShutdownHook(_hook);
+        }
+        
+        void add(Pending p) {
+            _queue.add(p);
+        }
+        
+        void removeHook() {
+            try {
+                Runtime.getRuntime().removeShutdownHook(_hook);
+            }
+            catch (IllegalStateException ex) {
+                // already exiting; this may be the hook
+            }
+        }
+        
+        public void run() {
+            while (true) {
+                try {
+                    if (_batch.isEmpty()) {
+                        Pending p = null;
+                        if (_dirty && _syncPolicy == SyncPolicy.interval) {
+                            long wait = _lastSync + _syncIntervalMillis - System.currentTimeMillis();
+                            p = wait > 0 ? _queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                            if (p == null) {
+                                sync();
+                                continue;
+                            }
+                        }
+                        else {
+                            p = _queue.take();
+                        }
+                        _batch.add(p);
+                        _queue.drainTo(_batch);
+                    }
+                    
+                    if (write()) return;
+                }
+                catch (InterruptedException ex) {
+                    // not expected; keep going, as rows may still be queued
+                }
+                catch (IOException ex) {
+                    if (_writeError == null) {
+                        LogContext.getLogger().log(Level.SEVERE, "Error writing trial data to " + getFile(), ex);
+                    }
+                    _writeError = ex;
+                    close();
+                    try {
+                        Thread.sleep(RETRY_MILLIS);
+                    }
+                    catch (InterruptedException ie) {
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Append the current batch, and sync or close as called for.
+         * 
+         * @return true if closed
+         */
+        private boolean write() throws IOException {
+            if (_channel == null) {
+                _channel = new FileOutputStream(getFile(), true).getChannel();
+            }
+            if (_batchStart < 0) {
+                _batchStart = _channel.size();
+            }
+            else if (_channel.size() > _batchStart) {
+                // partly written by a failed attempt
+                _channel.truncate(_batchStart);
+            }
+            
+            _text.setLength(0);
+            boolean sync = _syncPolicy == SyncPolicy.row;
+            Pending close = null;
+            for (Pending p : _batch) {
+                if (p._done != null) {
+                    close = p;
+                    continue;
+                }
+                if (p._header && _batchStart > 0) continue;
+                if (p._newBlock && _syncPolicy == SyncPolicy.block) sync = true;
+                _text.append(p._text);
+            }
+            
+            if (_text.length() > 0) {
+                encode();
+                while (_bytes.hasRemaining()) {
+                    _channel.write(_bytes);
+                }
+                _dirty = true;
+            }
+            if (sync || close != null || 
+                (_syncPolicy == SyncPolicy.interval && 
+                    System.currentTimeMillis() - _lastSync >= _syncIntervalMillis)) {
+                sync();
+            }
+            for (Pending p : _batch) {
+                if (p._synced != null) p._synced.countDown();
+            }
+            _batch.clear();
+            _batchStart = -1;
+            _writeError = null;
+            
+            if (close != null) {
+                close();
+                close._done.countDown();
+                return true;
+            }
+            return false;
+        }
+        
+        private void sync() throws IOException {
+            if (_dirty && _channel != null) {
+                _channel.force(false);
+            }
+            _dirty = false;
+            _lastSync = System.currentTimeMillis();
+        }
+        
+        private void close() {
+            if (_channel != null) {
+                try { _channel.close(); } catch (IOException ex) {}
+                _channel = null;
+            }
+        }
+        
+        /**
+         * Encode the batch text into the byte buffer, growing it as needed,
+         * and flip it for writing.
+         */
+        private void encode() {
+            CharBuffer in = CharBuffer.wrap(_text);
+            _encoder.reset();
+            _bytes.clear();
+            boolean flushing = false;
+            while (true) {
+                CoderResult r = flushing ? _encoder.flush(_bytes) : _encoder.encode(in, _bytes, true);
+                if (r.isOverflow()) {
+                    ByteBuffer larger = ByteBuffer.allocate(_bytes.capacity() * 2);
+                    _bytes.flip();
+                    larger.put(_bytes);
+                    _bytes = larger;
+                }
+                else if (flushing) {
+                    break;
+                }
+                else {
+                    flushing = true;
+                }
+            }
+            _bytes.flip();
+        }
+    }
 
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2011 McMaster University PI: Dr. Michael Schutz
+ * <schutz@mcmaster.ca>
+ *
+ * Distributed under the terms of the GNU Lesser General Public License (LGPL).
+ * See LICENSE.TXT that came with this file.
+ */
+package edu.mcmaster.maplelab.common.datamodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The columns of a logged row, declared once with typed accessors.  Writing
+ * a row calls each column's accessor and passes the value straight to a
+ * {@link CellWriter}, so no intermediate maps or strings are built for it.
+ *
+ * Columns are keyed by enum constants, whose names label them.  Accessors
+ * that sometimes have no value override <code>has</code>, and
+ * {@link TrialLogger#NA} (or whatever <code>writeMissing</code> writes) is
+ * written in their place.
+ *
+ * @author bguseman
+ *
+ * @param <R> row source type
+ */
+public class RowSchema<R> {
+	private final List<Column<? super R>> _columns = new ArrayList<Column<? super R>>();
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Column<? super R>[] _array = new Column[0];
+
+	/**
+	 * Add a column after those already added.
+	 *
+	 * @return this, for chaining
+	 */
+	public RowSchema<R> add(Column<? super R> column) {
+		_columns.add(column);
+		_array = _columns.toArray(_array);
+		return this;
+	}
+
+	/**
+	 * Get the number of columns.
+	 */
+	public int size() {
+		return _array.length;
+	}
+
+	/**
+	 * Get the columns, in order.
+	 */
+	public List<Column<? super R>> getColumns() {
+		return Collections.unmodifiableList(_columns);
+	}
+
+	/**
+	 * Write the given row's values, in column order.
+	 */
+	public void write(R row, CellWriter out) {
+		for (Column<? super R> c : _array) {
+			c.write(row, out);
+		}
+	}
+
+	/**
+	 * Receiver of row values, one call per column.
+	 */
+	public interface CellWriter {
+		void writeLong(long value);
+		void writeDouble(double value);
+		void writeFloat(float value);
+		void writeBoolean(boolean value);
+		/** Write a text value; null is written as "null". */
+		void writeString(String value);
+	}
+
+	/**
+	 * A column and its accessor.
+	 */
+	public static abstract class Column<R> {
+		private final Enum<?> _key;
+
+		public Column(Enum<?> key) {
+			_key = key;
+		}
+
+		/**
+		 * Get the key identifying this column.
+		 */
+		public Enum<?> getKey() {
+			return _key;
+		}
+
+		/**
+		 * Get the column label.
+		 */
+		public String getName() {
+			return _key.name();
+		}
+
+		/**
+		 * Determine if the given row has a value for this column.  If not,
+		 * the placeholder from {@link #writeMissing} is written.
+		 */
+		protected boolean has(R row) {
+			return true;
+		}
+
+		/**
+		 * Write this column's value for the given row.
+		 */
+		public final void write(R row, CellWriter out) {
+			if (has(row)) writeValue(row, out);
+			else writeMissing(out);
+		}
+
+		/**
+		 * Write the placeholder for a row without a value.
+		 */
+		protected void writeMissing(CellWriter out) {
+			out.writeString(TrialLogger.NA);
+		}
+
+		protected abstract void writeValue(R row, CellWriter out);
+	}
+
+	public static abstract class IntColumn<R> extends Column<R> {
+		public IntColumn(Enum<?> key) {
+			super(key);
+		}
+		protected abstract int get(R row);
+		@Override
+		protected final void writeValue(R row, CellWriter out) {
+			out.writeLong(get(row));
+		}
+	}
+
+	public static abstract class LongColumn<R> extends Column<R> {
+		public LongColumn(Enum<?> key) {
+			super(key);
+		}
+		protected abstract long get(R row);
+		@Override
+		protected final void writeValue(R row, CellWriter out) {
+			out.writeLong(get(row));
+		}
+	}
+
+	public static abstract class FloatColumn<R> extends Column<R> {
+		public FloatColumn(Enum<?> key) {
+			super(key);
+		}
+		protected abstract float get(R row);
+		@Override
+		protected final void writeValue(R row, CellWriter out) {
+			out.writeFloat(get(row));
+		}
+	}
+
+	public static abstract class DoubleColumn<R> extends Column<R> {
+		public DoubleColumn(Enum<?> key) {
+			super(key);
+		}
+		protected abstract double get(R row);
+		@Override
+		protected final void writeValue(R row, CellWriter out) {
+			out.writeDouble(get(row));
+		}
+	}
+
+	public static abstract class BooleanColumn<R> extends Column<R> {
+		public BooleanColumn(Enum<?> key) {
+			super(key);
+		}
+		protected abstract boolean get(R row);
+		@Override
+		protected final void writeValue(R row, CellWriter out) {
+			out.writeBoolean(get(row));
+		}
+	}
+
+	/**
+	 * Column of enum values, written by name.
+	 */
+	public static abstract class EnumColumn<R> extends Column<R> {
+		public EnumColumn(Enum<?> key) {
+			super(key);
+		}
+		protected abstract Enum<?> get(R row);
+		@Override
+		protected final void writeValue(R row, CellWriter out) {
+			Enum<?> value = get(row);
+			out.writeString(value != null ? value.name() : null);
+		}
+	}
+
+	public static abstract class StringColumn<R> extends Column<R> {
+		public StringColumn(Enum<?> key) {
+			super(key);
+		}
+		protected abstract String get(R row);
+		@Override
+		protected final void writeValue(R row, CellWriter out) {
+			out.writeString(get(row));
+		}
+	}
+}
@@ -22,6 +22,7 @@ import java.util.concurrent.*;
 import java.util.logging.Level;
 
 import edu.mcmaster.maplelab.common.LogContext;
+import edu.mcmaster.maplelab.common.datamodel.FileTrialLogger.SyncPolicy;
 import edu.mcmaster.maplelab.common.gui.DemoGUIPanel;
 import edu.mcmaster.maplelab.common.util.MathUtils;
 
@@ -69,7 +70,10 @@ public abstract class Session<TM extends TrialManager<?, T>, T extends Trial<?>,
         playbackGain,
         speedMode,
         propertyPrefix,
-        reverberation
+        reverberation,
+        logSyncPolicy,
+        logSyncInterval,
+        columnarOutput
     }
     
     /**
@@ -316,6 +320,36 @@ public abstract class Session<TM extends TrialManager<?, T>, T extends Trial<?>,
         return getInteger(ConfigKeys.trialDelay, 0);
     }    
     
+    /**
+     * Get when logged trial data should be forced to disk.
+     */
+    public SyncPolicy getLogSyncPolicy() {
+        String policy = getString(ConfigKeys.logSyncPolicy, SyncPolicy.row.name());
+        try {
+            return SyncPolicy.valueOf(policy.trim().toLowerCase());
+        }
+        catch (IllegalArgumentException ex) {
+            LogContext.getLogger().warning("Unknown log sync policy: " + policy);
+            return SyncPolicy.row;
+        }
+    }
+    
+    /**
+     * Get the number of milliseconds between forcing logged trial data to
+     * disk, for the interval sync policy.
+     */
+    public int getLogSyncInterval() {
+        return getInteger(ConfigKeys.logSyncInterval, 1000);
+    }
+    
+    /**
+     * Flag to indicate that trial data should also be written in columnar
+     * binary form.
+     */
+    public boolean isColumnarOutput() {
+        return getBoolean(ConfigKeys.columnarOutput, false);
+    }
+    
     /**
      * Get the number of times a set of blocks should be repeated.
      */
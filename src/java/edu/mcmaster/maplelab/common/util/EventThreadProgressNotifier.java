@@ -87,7 +87,7 @@ public class EventThreadProgressNotifier implements Runnable, ProgressListener {
      */
     public void percentChanged(int percentage) {
         // Clamp to range of 0 to 100.
-        post(new Update(Math.max(Math.min(0,percentage),100)));
+        post(new Update(Math.min(Math.max(0,percentage),100)));
     }
 
 
@@ -12,16 +12,28 @@
 package edu.mcmaster.maplelab.rhythm;
 
 import java.io.*;
-import java.util.EnumMap;
-import java.util.EnumSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 import javax.sound.midi.*;
 import javax.sound.midi.MidiDevice.Info;
 
+import edu.mcmaster.maplelab.common.LogContext;
 import edu.mcmaster.maplelab.common.datamodel.FileTrialLogger;
 import edu.mcmaster.maplelab.common.datamodel.FileType;
-import edu.mcmaster.maplelab.common.datamodel.ConfidenceResponse;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.BooleanColumn;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.EnumColumn;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.FloatColumn;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.IntColumn;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.LongColumn;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.StringColumn;
 import edu.mcmaster.maplelab.midi.MidiInterpreter;
 import edu.mcmaster.maplelab.midi.MultiMidiEvent;
 import edu.mcmaster.maplelab.midi.ToneGenerator;
@@ -76,42 +88,60 @@ public class RhythmTrialLogger extends
     	return getOutputFile(FileType.get(RESPONSE_FILE));
     }
 
-	@Override
-	protected Set<? extends Enum<?>> getTrialDataHeaders() {
-		return EnumSet.allOf(Keys.class);
-	}
-
-	@Override
-	protected Set<? extends Enum<?>> getGeneralDataHeaders() {
-		return null;
-	}
-
     @Override
-    protected EnumMap<? extends Enum<?>, String> marshalTrialDataToMap(RhythmTrial trial) {
-    	
-        EnumMap<Keys, String> fields = new EnumMap<Keys, String>(Keys.class);
-        
+    protected void addTrialColumns(RowSchema<RhythmTrial> schema) {
         // Calculate trial parameters
-        fields.put(Keys.baseIOI, String.valueOf(trial.getBaseIOI()));
-        fields.put(Keys.offsetDegree, String.valueOf(trial.getBaseIOIOffsetDegree()));
-        fields.put(Keys.probeDetuneAmount, String.valueOf(trial.getProbeDetuneAmount()));
-        fields.put(Keys.withTap, String.valueOf(trial.isWithTap()));
+        addTrialParameterColumns(schema, Keys.baseIOI, Keys.offsetDegree, Keys.probeDetuneAmount);
+        schema.add(new BooleanColumn<RhythmTrial>(Keys.withTap) {
+            protected boolean get(RhythmTrial trial) {
+                return trial.isWithTap();
+            }
+        });
         
         // Output subject response information
-        ConfidenceResponse response = trial.getResponse();
-        fields.put(Keys.confidence, String.valueOf(response.getValue().ordinal()));
-        fields.put(Keys.subjResponse, String.valueOf(
-        		RhythmResponseParameters.isProbeToneAccurate(response)));
-        fields.put(Keys.responseCorrect, String.valueOf(trial.isResponseCorrect()));
-        fields.put(Keys.data_type, DataType.response.name());
-
-        return fields;
+        schema.add(new IntColumn<RhythmTrial>(Keys.confidence) {
+            protected int get(RhythmTrial trial) {
+                return trial.getResponse().getValue().ordinal();
+            }
+        });
+        schema.add(new BooleanColumn<RhythmTrial>(Keys.subjResponse) {
+            protected boolean get(RhythmTrial trial) {
+                return RhythmResponseParameters.isProbeToneAccurate(trial.getResponse());
+            }
+        });
+        schema.add(new BooleanColumn<RhythmTrial>(Keys.responseCorrect) {
+            protected boolean get(RhythmTrial trial) {
+                return trial.isResponseCorrect();
+            }
+        });
+        schema.add(new EnumColumn<RhythmTrial>(Keys.data_type) {
+            protected Enum<?> get(RhythmTrial trial) {
+                return DataType.response;
+            }
+        });
+    }
+    
+    /**
+     * Add the columns of trial parameters shared by both loggers.
+     */
+    private static void addTrialParameterColumns(RowSchema<RhythmTrial> schema, 
+    		Enum<?> baseIOIKey, Enum<?> offsetKey, Enum<?> detuneKey) {
+        schema.add(new IntColumn<RhythmTrial>(baseIOIKey) {
+            protected int get(RhythmTrial trial) {
+                return trial.getBaseIOI();
+            }
+        });
+        schema.add(new FloatColumn<RhythmTrial>(offsetKey) {
+            protected float get(RhythmTrial trial) {
+                return trial.getBaseIOIOffsetDegree();
+            }
+        });
+        schema.add(new IntColumn<RhythmTrial>(detuneKey) {
+            protected int get(RhythmTrial trial) {
+                return trial.getProbeDetuneAmount();
+            }
+        });
     }
-
-	@Override
-	protected EnumMap<? extends Enum<?>, String> marshalGeneralDataToMap(RhythmTrial trial) {
-		return null;
-	}
     
     @Override
     public void submit(RhythmTrial trial) throws IOException {
@@ -119,6 +149,17 @@ public class RhythmTrialLogger extends
         _tapLogger.submit(trial);
     }
     
+    /**
+     * Start logging the taps of the given trial as they are recorded, 
+     * rather than when it is submitted.
+     * 
+     * @param playback sequence about to be played
+     * @return listener to be given the participant's events
+     */
+    public TapRecorder.TapListener beginTaps(RhythmTrial trial, Sequence playback) {
+        return _tapLogger.beginTrial(trial, playback);
+    }
+    
     @Override
     public void shutdown() {
         super.shutdown();
@@ -133,6 +174,8 @@ public class RhythmTrialLogger extends
     	private static final String TAP_TEXT_FILE = "tap_text";
     	private static final String TAP_MIDI_FILE = "tap_midi";
     	private static final String TAP_TEXT_ALL_FILE = "tap_all";
+    	/** Number of midi files that may wait to be written. */
+    	private static final int MIDI_QUEUE_SIZE = 4;
 
     	private enum TapKeys {
             baseIOI, 
@@ -167,6 +210,12 @@ public class RhythmTrialLogger extends
 
         private TapType _type;
         private MidiEvent _currEvent;
+        /** Tap input device, looked up once per trial. */
+        private Info _devInfo;
+        /** Trial whose taps are being logged as recorded, if any. */
+        private TapStream _stream;
+        private ExecutorService _midiWriter;
+        private volatile IOException _midiError;
 
         public TapLogger(RhythmSession session, File workingDirectory) throws IOException {
             super(session, workingDirectory);
@@ -197,39 +246,158 @@ public class RhythmTrialLogger extends
         }
         
         @Override
-        protected EnumMap<? extends Enum<?>, String> marshalTrialDataToMap(RhythmTrial trial) {
-        	
-            EnumMap<TapKeys, String> fields = new EnumMap<TapKeys, String>(TapKeys.class);
+        protected void addTrialColumns(RowSchema<RhythmTrial> schema) {
+            addTrialParameterColumns(schema, TapKeys.baseIOI, TapKeys.offsetDegree, 
+            		TapKeys.probeDetuneAmount);
+            schema.add(new EnumColumn<RhythmTrial>(TapKeys.trialTestingType) {
+                protected Enum<?> get(RhythmTrial trial) {
+                    return trial.getTrialTestingType();
+                }
+            });
+            schema.add(new BooleanColumn<RhythmTrial>(TapKeys.withTap) {
+                protected boolean get(RhythmTrial trial) {
+                    return trial.isWithTap();
+                }
+            });
+            
+            // remaining columns are of the current event
+            schema.add(new EnumColumn<RhythmTrial>(TapKeys.opcode) {
+                protected Enum<?> get(RhythmTrial trial) {
+                    return MidiInterpreter.getOpcode(_currEvent.getMessage()) == ShortMessage.NOTE_ON ? 
+                    		OpType.note_on : OpType.note_off;
+                }
+            });
+            schema.add(new IntColumn<RhythmTrial>(TapKeys.channel) {
+                protected int get(RhythmTrial trial) {
+                    return MidiInterpreter.getChannel(_currEvent.getMessage());
+                }
+            });
+            schema.add(new IntColumn<RhythmTrial>(TapKeys.key) {
+                protected int get(RhythmTrial trial) {
+                    return MidiInterpreter.getKey(_currEvent.getMessage());
+                }
+            });
+            schema.add(new IntColumn<RhythmTrial>(TapKeys.velocity) {
+                protected int get(RhythmTrial trial) {
+                    return MidiInterpreter.getVelocity(_currEvent.getMessage());
+                }
+            });
+            schema.add(new EnumColumn<RhythmTrial>(TapKeys.type) {
+                protected Enum<?> get(RhythmTrial trial) {
+                    return _type;
+                }
+            });
+            schema.add(new LongColumn<RhythmTrial>(TapKeys.beat) {
+                protected boolean has(RhythmTrial trial) {
+                    return _type != TapType.participant;
+                }
+                protected long get(RhythmTrial trial) {
+                    return _currEvent.getTick() - ToneGenerator.INITIALIZATION_TIMING_OFFSET;	// guanw
+                }
+                // not NA, for compatibility
+                protected void writeMissing(RowSchema.CellWriter out) {
+                    out.writeString("-");
+                }
+            });
+            schema.add(new LongColumn<RhythmTrial>(TapKeys.tap) {
+                protected boolean has(RhythmTrial trial) {
+                    return _type == TapType.participant;
+                }
+                protected long get(RhythmTrial trial) {
+                    return _currEvent.getTick() - ToneGenerator.INITIALIZATION_TIMING_OFFSET;	// guanw
+                }
+                protected void writeMissing(RowSchema.CellWriter out) {
+                    out.writeString("-");
+                }
+            });
+            schema.add(new EnumColumn<RhythmTrial>(TapKeys.data_type) {
+                protected Enum<?> get(RhythmTrial trial) {
+                    return _type == TapType.participant ? DataType.tap_subject : DataType.tap_computer;
+                }
+            });
+        }
+
+        /**
+         * Start logging the taps of the given trial as they are recorded.
+         * The computer's events are formatted immediately; the participant's
+         * are formatted by the returned listener as the tap recorder accepts
+         * them, so nothing is left to format when the trial is submitted.
+         * The rows are queued when the trial is submitted, and dropped if
+         * another trial begins first.
+         * 
+         * @param playback sequence about to be played, with the computer's
+         *        events in its first track
+         */
+        public synchronized TapRecorder.TapListener beginTrial(RhythmTrial trial, Sequence playback) {
+            TapStream stream = new TapStream(trial);
+            _stream = stream;
+            lookupDevice();
             
-            fields.put(TapKeys.baseIOI, String.valueOf(trial.getBaseIOI()));
-            fields.put(TapKeys.offsetDegree, String.valueOf(trial.getBaseIOIOffsetDegree()));
-            fields.put(TapKeys.probeDetuneAmount, String.valueOf(trial.getProbeDetuneAmount()));
-            fields.put(TapKeys.trialTestingType, trial.getTrialTestingType().name());
-            fields.put(TapKeys.withTap, String.valueOf(trial.isWithTap()));
+            Track[] tracks = playback.getTracks();
+            if (tracks.length > 0) stream.addTrack(tracks[0], TapType.sync);
+            return stream;
+        }
+        
+        /**
+         * Rows for one trial, formatted as its events arrive and queued
+         * together when it is submitted.  Participant events are given to
+         * it by the tap recorder.  Used under the logger's lock.
+         */
+        private class TapStream implements TapRecorder.TapListener {
+            private final RhythmTrial _trial;
+            private final StringBuilder _rows = new StringBuilder(4096);
+            /** Logged events and their types, for the columnar output. */
+            private final List<MidiEvent> _events = new ArrayList<MidiEvent>();
+            private final List<TapType> _types = new ArrayList<TapType>();
             
-            MidiMessage m = _currEvent.getMessage();
-            OpType ot = MidiInterpreter.getOpcode(m) == ShortMessage.NOTE_ON ? 
-            		OpType.note_on : OpType.note_off;
+            TapStream(RhythmTrial trial) {
+                _trial = trial;
+            }
             
-            fields.put(TapKeys.opcode, ot.name());
-            fields.put(TapKeys.channel, String.valueOf(MidiInterpreter.getChannel(m)));
-            fields.put(TapKeys.key, String.valueOf(MidiInterpreter.getKey(m)));
-            fields.put(TapKeys.velocity, String.valueOf(MidiInterpreter.getVelocity(m)));
-            fields.put(TapKeys.type, _type.toString());
-
-            long tick = _currEvent.getTick();
-            String beat = _type != TapType.participant ? String.valueOf(tick-ToneGenerator.INITIALIZATION_TIMING_OFFSET) : "-";	// guanw
-            String tap = _type == TapType.participant ? String.valueOf(tick-ToneGenerator.INITIALIZATION_TIMING_OFFSET) : "-";	// guanw
-            DataType data = _type == TapType.participant ? DataType.tap_subject :
-                    DataType.tap_computer;
-
-            fields.put(TapKeys.beat, beat);
-            fields.put(TapKeys.tap, tap);
-            fields.put(TapKeys.data_type, data.name());
-
-            return fields;
+            @Override
+            public void tapRecorded(MidiEvent event) {
+                synchronized (TapLogger.this) {
+                    // a later trial has started
+                    if (_stream != this) return;
+                    add(event, TapType.participant);
+                }
+            }
+            
+            /**
+             * Format a row for each loggable event of the given track.
+             */
+            void addTrack(Track track, TapType type) {
+                for (int j = 0; j < track.size(); j++) {
+                    // Nasty hack to figure out if this might be the last
+                    // note on event for beat.
+                    boolean critical = type == TapType.sync && j >= track.size() - 3;
+                    add(track.get(j), critical ? TapType.critical : type);
+                }
+            }
+            
+            /**
+             * Format a row for the given event, if it is one that is logged.
+             */
+            void add(MidiEvent event, TapType type) {
+                if (!setCurrentEvent(event, type)) return;
+                writeTextRow(_trial, _rows);
+                _events.add(event);
+                _types.add(type);
+            }
+            
+            /**
+             * Queue the rows, and add them to the columnar output.
+             */
+            void commit() throws IOException {
+                for (int i = 0; i < _events.size(); i++) {
+                    setCurrentEvent(_events.get(i), _types.get(i));
+                    writeColumnarRow(_trial);
+                }
+                // the whole trial goes out as one write
+                queue(_rows, _trial);
+            }
         }
-
+        
         /**
          * {@inheritDoc}
          * 
@@ -237,99 +405,151 @@ public class RhythmTrialLogger extends
          *      edu.mcmaster.maplelab.common.datamodel.Trial)
          */
         @Override
-        public void submit(RhythmTrial trial) throws IOException {
+        public synchronized void submit(RhythmTrial trial) throws IOException {
+            TapStream stream = _stream;
+            _stream = null;
             Sequence recording = trial.getRecording();
             if (recording == null) return;
             
             writeMidiFile(recording, trial);
-            writeTextFile(recording, trial);
+            if (stream == null || stream._trial != trial) {
+                // not logged as recorded
+                lookupDevice();
+                stream = new TapStream(trial);
+                Track[] tracks = recording.getTracks();
+                for (int i = 0; i < tracks.length; i++) {
+                    stream.addTrack(tracks[i], i == 0 ? TapType.sync : TapType.participant);
+                }
+            }
+            stream.commit();
         }
         
         /**
-         * Write the designated midi file to contain tracks for experiment and participant events.
-         */
-        private void writeMidiFile(Sequence recording, RhythmTrial trial) throws IOException {
-        	MidiSystem.write(recording, 1, createMidiFile(trial));
-		}
-
-		/**
-         * Write a text file containing a table of all block and trial information.
+         * Write the designated midi file to contain tracks for experiment and 
+         * participant events.  The file is written on a background thread;
+         * if it has fallen behind by more than a few trials, the file is 
+         * written by the calling thread instead.  An error writing an earlier 
+         * file is reported here.
          */
-        private void writeTextFile(Sequence recording, RhythmTrial trial) throws IOException {
-            File textFile = getFile();
-
-            boolean addHeader = !textFile.exists();
-
-            FileWriter out = null;
-            try {
-                out = new FileWriter(textFile, true);
-                if (addHeader) {
-                    writeHeader(buildHeaderSets(), out);
-                }
-
-                Track[] tracks = recording.getTracks();
-                for (int i = 0; i < tracks.length; i++) {
-                    Track track = tracks[i];
-                    _type = i == 0 ? TapType.sync : TapType.participant;
-                    for (int j = 0; j < track.size(); j++) {
-                        // Saving current event data as class members is a
-                        // hack to allow us to reuse the marshalToMap
-                        // method, just because it's conceptually clean
-                    	MultiMidiEvent mme = MultiMidiEvent.getMultiEvent(track.get(j));
-                    	_currEvent = mme.hasModifiedSource() ? mme.getModifiedSourceEvent() : mme;
-                        
-                        if (!MidiInterpreter.isNoteOnEvent(_currEvent) && 
-                        		(!getSession().recordNoteOffEvents() || !MidiInterpreter.isNoteOffEvent(_currEvent))) {
-                        	continue;
-                    	}
-                        
-                        // Nasty hack to figure out if this might be the last
-                        // note on event for beat.
-                        if(i == 0 && j >= track.size() - 3) {
-                            _type = TapType.critical;
+        private void writeMidiFile(final Sequence recording, RhythmTrial trial) throws IOException {
+            if (_midiWriter == null) {
+                _midiWriter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, 
+                    new ArrayBlockingQueue<Runnable>(MIDI_QUEUE_SIZE), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "tap-midi-writer");
+                            t.setDaemon(true);
+                            t.setPriority(Thread.NORM_PRIORITY - 1);
+                            return t;
                         }
-
-                        writeRow(buildDataSets(trial), out);
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            }
+            
+            final File file = createMidiFile(trial);
+            _midiWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        MidiSystem.write(recording, 1, file);
+                    }
+                    catch (IOException ex) {
+                        LogContext.getLogger().log(Level.SEVERE, "Error writing " + file, ex);
+                        _midiError = ex;
                     }
                 }
-            }
-            finally {
-                if (out != null) out.close();
+            });
+            
+            IOException error = _midiError;
+            if (error != null) {
+                _midiError = null;
+                throw error;
             }
         }
 
-		@Override
-		protected Set<? extends Enum<?>> getGeneralDataHeaders() {
-			return EnumSet.allOf(MidiKeys.class);
-		}
-
-		@Override
-		protected Set<? extends Enum<?>> getTrialDataHeaders() {
-			return EnumSet.allOf(TapKeys.class);
-		}
-
-		@Override
-		protected EnumMap<? extends Enum<?>, String> marshalGeneralDataToMap(RhythmTrial trial) {
-        	
-            EnumMap<MidiKeys, String> fields = new EnumMap<MidiKeys, String>(MidiKeys.class);
+        /**
+         * Look up the tap input device, once per trial.
+         */
+        private void lookupDevice() {
+            int id = getSession().getTapInputDevID();
+            _devInfo = id >= 0 ? MidiSystem.getMidiDeviceInfo()[id] : null;
+        }
+        
+        /**
+         * Make the given event the one the event columns are written from.
+         * 
+         * @return true if it is one that is logged
+         */
+        private boolean setCurrentEvent(MidiEvent event, TapType type) {
+            // Saving current event data as class members is a
+            // hack to allow us to reuse the trial row schema,
+            // just because it's conceptually clean
+            MultiMidiEvent mme = MultiMidiEvent.getMultiEvent(event);
+            _currEvent = mme.hasModifiedSource() ? mme.getModifiedSourceEvent() : mme;
+            _type = type;
             
-            RhythmSession session = getSession();
-            int id = session.getTapInputDevID();
-            if (id >= 0) {
-                Info info = MidiSystem.getMidiDeviceInfo()[id];
-                fields.put(MidiKeys.midi_dev_id, String.valueOf(id));
-                fields.put(MidiKeys.midi_dev_name, info.getName());
-                fields.put(MidiKeys.midi_dev_version, info.getVersion());
-                fields.put(MidiKeys.midi_dev_vendor, info.getVendor());
+            return MidiInterpreter.isNoteOnEvent(_currEvent) || 
+                    (getSession().recordNoteOffEvents() && MidiInterpreter.isNoteOffEvent(_currEvent));
+        }
+        
+        /**
+         * Finish writing midi files, then close the text file.
+         */
+        @Override
+        public void shutdown() {
+            ExecutorService midiWriter;
+            synchronized (this) {
+                midiWriter = _midiWriter;
+                _midiWriter = null;
+                _stream = null;
             }
-            else {
-                fields.put(MidiKeys.midi_dev_id, NA);
-                fields.put(MidiKeys.midi_dev_name, NA);
-                fields.put(MidiKeys.midi_dev_version, NA);
-                fields.put(MidiKeys.midi_dev_vendor, NA);
+            if (midiWriter != null) {
+                midiWriter.shutdown();
+                try {
+                    if (!midiWriter.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                        LogContext.getLogger().severe("Timed out writing tap midi files");
+                    }
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
             }
-            
-            return fields;
-		}
+            super.shutdown();
+        }
+
+        @Override
+        protected void addGeneralColumns(RowSchema<RhythmTrial> schema) {
+            schema.add(new IntColumn<RhythmTrial>(MidiKeys.midi_dev_id) {
+                protected boolean has(RhythmTrial trial) {
+                    return _devInfo != null;
+                }
+                protected int get(RhythmTrial trial) {
+                    return getSession().getTapInputDevID();
+                }
+            });
+            schema.add(new StringColumn<RhythmTrial>(MidiKeys.midi_dev_name) {
+                protected boolean has(RhythmTrial trial) {
+                    return _devInfo != null;
+                }
+                protected String get(RhythmTrial trial) {
+                    return _devInfo.getName();
+                }
+            });
+            schema.add(new StringColumn<RhythmTrial>(MidiKeys.midi_dev_version) {
+                protected boolean has(RhythmTrial trial) {
+                    return _devInfo != null;
+                }
+                protected String get(RhythmTrial trial) {
+                    return _devInfo.getVersion();
+                }
+            });
+            schema.add(new StringColumn<RhythmTrial>(MidiKeys.midi_dev_vendor) {
+                protected boolean has(RhythmTrial trial) {
+                    return _devInfo != null;
+                }
+                protected String get(RhythmTrial trial) {
+                    return _devInfo.getVendor();
+                }
+            });
+        }
     }
 }
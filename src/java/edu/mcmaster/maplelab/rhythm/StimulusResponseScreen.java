@@ -445,6 +445,9 @@ public class StimulusResponseScreen extends BasicStep {
                 	// this is not intuitive, but we still want the 
                 	// tap recorder to handle computer taps
                 	_tapRecorder.setWithTap(_trial.isWithTap());
+                	// taps are logged as they come in
+                	_tapRecorder.setTapListener(
+                		_session.getTrialLogger().beginTaps(_trial, _currSequence));
                 	// Must be called to initialize resources for tapping/recording
                     _tapRecorder.initializeSequencerForRecording();
                 }
@@ -59,6 +59,7 @@ public class TapRecorder implements AWTEventListener, Receiver {
     private Sequencer _sequencer;
     private Track _track;
     private Receiver _logReceiver;
+    private TapListener _tapListener;
     private int _midiInputDevID = -1;
     private MidiDevice _midiInput;
     private Integer _tapSynthID = null;
@@ -113,6 +114,25 @@ public class TapRecorder implements AWTEventListener, Receiver {
         _logReceiver = receiver;
     }
 
+    /**
+     * Set object to hand each recorded event to, as it is accepted.  Cleared
+     * when recording stops.
+     */
+    public void setTapListener(TapListener listener) {
+        _tapListener = listener;
+    }
+    
+    /**
+     * Receiver of the events recorded to the track, as they are recorded.
+     */
+    public interface TapListener {
+        /**
+         * Called with each event added to the recording track, after its
+         * feedback sound has been sent.
+         */
+        void tapRecorded(MidiEvent event);
+    }
+
     /**
      * Set the MIDI device ID to use for input.
      * 
@@ -341,6 +361,7 @@ public class TapRecorder implements AWTEventListener, Receiver {
         //if (_midiInput != null) _midiInput.close();
 
         _track = null;
+        _tapListener = null;
         _lastOnTick = null;
         _skippedOnEvents.clear(); // in case stop preceded a corresponding note-off
         _lastKeyDown = null;
@@ -491,6 +512,9 @@ public class TapRecorder implements AWTEventListener, Receiver {
     			LogContext.getLogger().fine("Subject tap sound cancelled because receiver closed.");
     		}
     	}
+    	
+    	TapListener listener = _tapListener;
+    	if (listener != null) listener.tapRecorded(event);
     }
     
     /**
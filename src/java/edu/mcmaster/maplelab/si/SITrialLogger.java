@@ -2,21 +2,19 @@ package edu.mcmaster.maplelab.si;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.EnumMap;
-import java.util.EnumSet;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
-import edu.mcmaster.maplelab.av.media.Playable;
-import edu.mcmaster.maplelab.av.media.animation.AnimationSequence;
-import edu.mcmaster.maplelab.common.datamodel.FileTrialLogger;
+import edu.mcmaster.maplelab.av.AVTrialLogger;
 import edu.mcmaster.maplelab.common.datamodel.FileType;
 import edu.mcmaster.maplelab.common.datamodel.IntegerResponse;
-import edu.mcmaster.maplelab.common.datamodel.MultiResponse;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.IntColumn;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.LongColumn;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.StringColumn;
 import edu.mcmaster.maplelab.si.datamodel.SISession;
 import edu.mcmaster.maplelab.si.datamodel.SITrial;
 
-public class SITrialLogger extends FileTrialLogger<SISession, SITrial> {
+public class SITrialLogger extends AVTrialLogger<SISession, SITrial> {
 
 	public enum Keys {
         audioFile,
@@ -31,7 +29,11 @@ public class SITrialLogger extends FileTrialLogger<SISession, SITrial> {
         subjDurationResponse,
         subjDurationValue,
         subjAgreementResponse,
-        subjAgreementValue
+        subjAgreementValue,
+        schedLatenessP50,
+        schedLatenessP99,
+        schedLatenessMax,
+        missedFrames
     }
 
 	public SITrialLogger(SISession session, File workingDirectory) throws IOException {
@@ -53,87 +55,130 @@ public class SITrialLogger extends FileTrialLogger<SISession, SITrial> {
     	return getOutputFile(FileType.get(RESPONSE_FILE));
     }
 
-	@Override
-	protected Set<? extends Enum<?>> getGeneralDataHeaders() {
-		return null;
-	}
-
-	@Override
-	protected EnumMap<? extends Enum<?>, String> marshalGeneralDataToMap(SITrial trial) {
-		return null;
-	}
-
-	@Override
-	protected Set<? extends Enum<?>> getTrialDataHeaders() {
-		return EnumSet.allOf(Keys.class);
-	}
-
     @Override
-    protected EnumMap<? extends Enum<?>, String> marshalTrialDataToMap(SITrial trial) {
-    	
-        EnumMap<Keys, String> fields = new EnumMap<Keys, String>(Keys.class);
-        
+    protected void addTrialColumns(RowSchema<SITrial> schema) {
         // Calculate trial parameters
-        boolean vid = trial.isVideo();
-        Playable media = vid ? trial.getVideoPlayable() : trial.getAudioPlayable();
-        AnimationSequence as = trial.getAnimationSequence();
-        fields.put(Keys.audioFile, !vid && media != null ? media.name() : NA);
-        fields.put(Keys.vidFile, vid && media != null ? media.name() : NA);
-        fields.put(Keys.visFile, as != null ? as.getSourceFileName() : NA);
-        Long millisVal = TimeUnit.MILLISECONDS.convert(
-        		trial.getOffsetNanos(), TimeUnit.NANOSECONDS);
-        fields.put(Keys.audioOffset, String.valueOf(millisVal));
-        fields.put(Keys.numDots, String.valueOf(trial.getNumPoints()));
-        if (!vid) {
-            Long start = trial.getLastAnimationStartNanos();
-            if (start != null) {
-                millisVal = TimeUnit.MILLISECONDS.convert(start, TimeUnit.NANOSECONDS);
-                fields.put(Keys.animationStart, String.valueOf(millisVal));
-                millisVal = TimeUnit.MILLISECONDS.convert(
-                		trial.getAnimationStrikeTimeNanos(), TimeUnit.NANOSECONDS);
-                fields.put(Keys.aniStrikeDelay, String.valueOf(millisVal));
-            }
-            else {
-                fields.put(Keys.animationStart, NA);
-                fields.put(Keys.aniStrikeDelay, NA);
-            }
-            start = trial.getLastMediaStartNanos();
-            millisVal = start != null ? 
-            		TimeUnit.MILLISECONDS.convert(start, TimeUnit.NANOSECONDS) : null;
-            fields.put(Keys.audioStart, start != null ? String.valueOf(millisVal) : NA);
-            millisVal = TimeUnit.MILLISECONDS.convert(
-            		trial.getAudioToneOnsetNanos(), TimeUnit.NANOSECONDS);
-            fields.put(Keys.audioToneDelay, String.valueOf(millisVal));
-        }
-        else {
-            fields.put(Keys.animationStart, NA);
-            fields.put(Keys.aniStrikeDelay, NA);
-            fields.put(Keys.audioStart, NA);
-            fields.put(Keys.audioToneDelay, NA);
-        }
+        schema.add(new StringColumn<SITrial>(Keys.audioFile) {
+            protected boolean has(SITrial trial) {
+                return !trial.isVideo() && trial.getAudioPlayable() != null;
+            }
+            protected String get(SITrial trial) {
+                return trial.getAudioPlayable().name();
+            }
+        });
+        schema.add(new StringColumn<SITrial>(Keys.vidFile) {
+            protected boolean has(SITrial trial) {
+                return trial.isVideo() && trial.getVideoPlayable() != null;
+            }
+            protected String get(SITrial trial) {
+                return trial.getVideoPlayable().name();
+            }
+        });
+        schema.add(new StringColumn<SITrial>(Keys.visFile) {
+            protected boolean has(SITrial trial) {
+                return trial.getAnimationSequence() != null;
+            }
+            protected String get(SITrial trial) {
+                return trial.getAnimationSequence().getSourceFileName();
+            }
+        });
+        schema.add(new LongColumn<SITrial>(Keys.audioOffset) {
+            protected long get(SITrial trial) {
+                return TimeUnit.NANOSECONDS.toMillis(trial.getOffsetNanos());
+            }
+        });
+        schema.add(new IntColumn<SITrial>(Keys.numDots) {
+            protected int get(SITrial trial) {
+                return trial.getNumPoints();
+            }
+        });
+        // timing is only known for animated trials
+        schema.add(new LongColumn<SITrial>(Keys.animationStart) {
+            protected boolean has(SITrial trial) {
+                return !trial.isVideo() && trial.getLastAnimationStartNanos() != null;
+            }
+            protected long get(SITrial trial) {
+                return TimeUnit.NANOSECONDS.toMillis(trial.getLastAnimationStartNanos());
+            }
+        });
+        schema.add(new LongColumn<SITrial>(Keys.aniStrikeDelay) {
+            protected boolean has(SITrial trial) {
+                return !trial.isVideo() && trial.getLastAnimationStartNanos() != null;
+            }
+            protected long get(SITrial trial) {
+                return TimeUnit.NANOSECONDS.toMillis(trial.getAnimationStrikeTimeNanos());
+            }
+        });
+        schema.add(new LongColumn<SITrial>(Keys.audioStart) {
+            protected boolean has(SITrial trial) {
+                return !trial.isVideo() && trial.getLastMediaStartNanos() != null;
+            }
+            protected long get(SITrial trial) {
+                return TimeUnit.NANOSECONDS.toMillis(trial.getLastMediaStartNanos());
+            }
+        });
+        schema.add(new LongColumn<SITrial>(Keys.audioToneDelay) {
+            protected boolean has(SITrial trial) {
+                return !trial.isVideo();
+            }
+            protected long get(SITrial trial) {
+                return TimeUnit.NANOSECONDS.toMillis(trial.getAudioToneOnsetNanos());
+            }
+        });
         
         // Output subject response information
-        MultiResponse response = trial.getResponse();
-        IntegerResponse dr = (IntegerResponse) response.getResponse(0);
-        if (dr != null) {
-            fields.put(Keys.subjDurationResponse, dr.getAnswer().toString());
-            fields.put(Keys.subjDurationValue, String.valueOf(dr.getValue()));
-        }
-        else {
-            fields.put(Keys.subjDurationResponse, NA);
-            fields.put(Keys.subjDurationValue, NA);
-        }
-        IntegerResponse ir = (IntegerResponse) response.getResponse(1);
-        if (ir != null) {
-            fields.put(Keys.subjAgreementResponse, ir.getAnswer().toString());
-            fields.put(Keys.subjAgreementValue, String.valueOf(ir.getValue()));
-        }
-        else {
-            fields.put(Keys.subjAgreementResponse, NA);
-            fields.put(Keys.subjAgreementValue, NA);
-        }
-
-        return fields;
+        schema.add(new ResponseAnswerColumn(Keys.subjDurationResponse, 0));
+        schema.add(new ResponseValueColumn(Keys.subjDurationValue, 0));
+        schema.add(new ResponseAnswerColumn(Keys.subjAgreementResponse, 1));
+        schema.add(new ResponseValueColumn(Keys.subjAgreementValue, 1));
+        
+        // Output scheduling accuracy, in microseconds
+        addSchedulingColumns(schema, Keys.schedLatenessP50, Keys.schedLatenessP99, 
+        		Keys.schedLatenessMax, Keys.missedFrames);
+    }
+    
+    private static IntegerResponse getResponse(SITrial trial, int index) {
+    	return (IntegerResponse) trial.getResponse().getResponse(index);
+    }
+    
+    /**
+     * Column of the answer to one of the trial's responses.
+     */
+    private static class ResponseAnswerColumn extends StringColumn<SITrial> {
+    	private final int _index;
+    	
+    	ResponseAnswerColumn(Enum<?> key, int index) {
+    		super(key);
+    		_index = index;
+    	}
+    	@Override
+    	protected boolean has(SITrial trial) {
+    		return getResponse(trial, _index) != null;
+    	}
+    	@Override
+    	protected String get(SITrial trial) {
+    		return getResponse(trial, _index).getAnswer().toString();
+    	}
+    }
+    
+    /**
+     * Column of the value of one of the trial's responses.
+     */
+    private static class ResponseValueColumn extends StringColumn<SITrial> {
+    	private final int _index;
+    	
+    	ResponseValueColumn(Enum<?> key, int index) {
+    		super(key);
+    		_index = index;
+    	}
+    	@Override
+    	protected boolean has(SITrial trial) {
+    		return getResponse(trial, _index) != null;
+    	}
+    	@Override
+    	protected String get(SITrial trial) {
+    		return String.valueOf(getResponse(trial, _index).getValue());
+    	}
     }
 
 }
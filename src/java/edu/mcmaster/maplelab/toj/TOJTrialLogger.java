@@ -9,24 +9,22 @@ package edu.mcmaster.maplelab.toj;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.EnumMap;
-import java.util.EnumSet;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
-import edu.mcmaster.maplelab.av.media.Playable;
-import edu.mcmaster.maplelab.av.media.animation.AnimationSequence;
-import edu.mcmaster.maplelab.common.datamodel.FileTrialLogger;
+import edu.mcmaster.maplelab.av.AVTrialLogger;
 import edu.mcmaster.maplelab.common.datamodel.FileType;
-import edu.mcmaster.maplelab.common.datamodel.ConfidenceResponse;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.IntColumn;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.LongColumn;
+import edu.mcmaster.maplelab.common.datamodel.RowSchema.StringColumn;
 import edu.mcmaster.maplelab.toj.datamodel.TOJResponseParameters;
 import edu.mcmaster.maplelab.toj.datamodel.TOJSession;
 import edu.mcmaster.maplelab.toj.datamodel.TOJTrial;
 /**
- * TOJ specific extension of FileTrialLogger.
+ * TOJ specific extension of AVTrialLogger.
  * @author Catherine Elder <cje@datamininglab.com>
  */
-public class TOJTrialLogger extends FileTrialLogger<TOJSession, TOJTrial> {
+public class TOJTrialLogger extends AVTrialLogger<TOJSession, TOJTrial> {
 
 	public enum Keys {
         audioFile,
@@ -39,7 +37,11 @@ public class TOJTrialLogger extends FileTrialLogger<TOJSession, TOJTrial> {
         audioToneDelay,
         confidence, 
         subjResponse,
-        responseCorrect
+        responseCorrect,
+        schedLatenessP50,
+        schedLatenessP99,
+        schedLatenessMax,
+        missedFrames
     }
 
     public TOJTrialLogger(TOJSession session, File workingDirectory) throws IOException {
@@ -61,57 +63,82 @@ public class TOJTrialLogger extends FileTrialLogger<TOJSession, TOJTrial> {
     	return getOutputFile(FileType.get(RESPONSE_FILE));
     }
 
-	@Override
-	protected Set<? extends Enum<?>> getGeneralDataHeaders() {
-		return null;
-	}
-
-	@Override
-	protected EnumMap<? extends Enum<?>, String> marshalGeneralDataToMap(TOJTrial trial) {
-		return null;
-	}
-
-	@Override
-	protected Set<? extends Enum<?>> getTrialDataHeaders() {
-		return EnumSet.allOf(Keys.class);
-	}
-
     @Override
-    protected EnumMap<? extends Enum<?>, String> marshalTrialDataToMap(TOJTrial trial) {
-    	
-        EnumMap<Keys, String> fields = new EnumMap<Keys, String>(Keys.class);
-        
+    protected void addTrialColumns(RowSchema<TOJTrial> schema) {
         // Calculate trial parameters
-        Playable p = trial.getAudioPlayable();
-        AnimationSequence as = trial.getAnimationSequence();
-        fields.put(Keys.audioFile, p != null ? p.name() : NA);
-        fields.put(Keys.visFile, as != null ? as.getSourceFileName() : NA);
-        long millisVal = TimeUnit.MILLISECONDS.convert(
-        		trial.getOffsetNanos(), TimeUnit.NANOSECONDS);
-        fields.put(Keys.audioOffset, String.valueOf(millisVal));
-        fields.put(Keys.numDots, String.valueOf(trial.getNumPoints()));
-        Long start = trial.getLastAnimationStartNanos();
-        millisVal = start != null ? 
-        		TimeUnit.MILLISECONDS.convert(start, TimeUnit.NANOSECONDS) : null;
-        fields.put(Keys.animationStart, start != null ? String.valueOf(millisVal) : NA);
-        millisVal = TimeUnit.MILLISECONDS.convert(
-        		trial.getAnimationStrikeTimeNanos(), TimeUnit.NANOSECONDS);
-        fields.put(Keys.aniStrikeDelay, String.valueOf(millisVal));
-        start = trial.getLastMediaStartNanos();
-        millisVal = start != null ? 
-        		TimeUnit.MILLISECONDS.convert(start, TimeUnit.NANOSECONDS) : null;
-        fields.put(Keys.audioStart, start != null ? String.valueOf(millisVal) : NA);
-        millisVal = TimeUnit.MILLISECONDS.convert(
-        		trial.getAudioToneOnsetNanos(), TimeUnit.NANOSECONDS);
-        fields.put(Keys.audioToneDelay, String.valueOf(millisVal));
+        schema.add(new StringColumn<TOJTrial>(Keys.audioFile) {
+            protected boolean has(TOJTrial trial) {
+                return trial.getAudioPlayable() != null;
+            }
+            protected String get(TOJTrial trial) {
+                return trial.getAudioPlayable().name();
+            }
+        });
+        schema.add(new StringColumn<TOJTrial>(Keys.visFile) {
+            protected boolean has(TOJTrial trial) {
+                return trial.getAnimationSequence() != null;
+            }
+            protected String get(TOJTrial trial) {
+                return trial.getAnimationSequence().getSourceFileName();
+            }
+        });
+        schema.add(new LongColumn<TOJTrial>(Keys.audioOffset) {
+            protected long get(TOJTrial trial) {
+                return TimeUnit.NANOSECONDS.toMillis(trial.getOffsetNanos());
+            }
+        });
+        schema.add(new IntColumn<TOJTrial>(Keys.numDots) {
+            protected int get(TOJTrial trial) {
+                return trial.getNumPoints();
+            }
+        });
+        schema.add(new LongColumn<TOJTrial>(Keys.animationStart) {
+            protected boolean has(TOJTrial trial) {
+                return trial.getLastAnimationStartNanos() != null;
+            }
+            protected long get(TOJTrial trial) {
+                return TimeUnit.NANOSECONDS.toMillis(trial.getLastAnimationStartNanos());
+            }
+        });
+        schema.add(new LongColumn<TOJTrial>(Keys.aniStrikeDelay) {
+            protected long get(TOJTrial trial) {
+                return TimeUnit.NANOSECONDS.toMillis(trial.getAnimationStrikeTimeNanos());
+            }
+        });
+        schema.add(new LongColumn<TOJTrial>(Keys.audioStart) {
+            protected boolean has(TOJTrial trial) {
+                return trial.getLastMediaStartNanos() != null;
+            }
+            protected long get(TOJTrial trial) {
+                return TimeUnit.NANOSECONDS.toMillis(trial.getLastMediaStartNanos());
+            }
+        });
+        schema.add(new LongColumn<TOJTrial>(Keys.audioToneDelay) {
+            protected long get(TOJTrial trial) {
+                return TimeUnit.NANOSECONDS.toMillis(trial.getAudioToneOnsetNanos());
+            }
+        });
         
         // Output subject response information
-        ConfidenceResponse response = trial.getResponse();
-        fields.put(Keys.confidence, String.valueOf(response.getValue().ordinal()));
-        fields.put(Keys.subjResponse, TOJResponseParameters.isDotFirst(response) ? "Dot" : "Tone");
-        fields.put(Keys.responseCorrect, trial.isResponseCorrect() ? "Correct" : "Incorrect");
-
-        return fields;
+        schema.add(new IntColumn<TOJTrial>(Keys.confidence) {
+            protected int get(TOJTrial trial) {
+                return trial.getResponse().getValue().ordinal();
+            }
+        });
+        schema.add(new StringColumn<TOJTrial>(Keys.subjResponse) {
+            protected String get(TOJTrial trial) {
+                return TOJResponseParameters.isDotFirst(trial.getResponse()) ? "Dot" : "Tone";
+            }
+        });
+        schema.add(new StringColumn<TOJTrial>(Keys.responseCorrect) {
+            protected String get(TOJTrial trial) {
+                return trial.isResponseCorrect() ? "Correct" : "Incorrect";
+            }
+        });
+        
+        // Output scheduling accuracy, in microseconds
+        addSchedulingColumns(schema, Keys.schedLatenessP50, Keys.schedLatenessP99, 
+        		Keys.schedLatenessMax, Keys.missedFrames);
     }
 
 }